@@ -0,0 +1,5 @@
+#! /bin/bash
+# Writes a synthetic data set in the format of ../data, at any scale.
+# Example: source ./generate.sh ../data/scale100 --scale 100 --seed 7
+# then:    source ./run.sh flightDB 5432 user load ../data/scale100 --defer-constraints --truncate
+java $JAVA_OPTS -cp bin/ DataGenerator "$@"
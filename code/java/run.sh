@@ -4,4 +4,8 @@ PORT=$2
 USER=$3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER
+# Tuning options are passed as system properties, e.g.
+# JAVA_OPTS="-Dshop.pool.max=16" source ./run.sh flightDB 5432 user
+# Any further arguments select a command instead of the menu, e.g.
+# source ./run.sh flightDB 5432 user load ../data --defer-constraints
+java $JAVA_OPTS -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER "${@:4}"
@@ -0,0 +1,187 @@
+/*
+ * Request archival for the Mechanic Shop
+ * ======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class defines the archival of old service and closed requests. The
+ * request tables are partitioned by year, so a year is archived by
+ * exporting its partitions to gzip-compressed CSV files and detaching and
+ * dropping them, without deleting a single row from the tables that stay.
+ * Years are archived oldest first and the archive stops at the first year
+ * that still has open requests, or requests closed in a later year, so no
+ * closed request left in the shop loses its request and no request left
+ * loses the closed request that closes it. The archived bills leave the
+ * running totals of report 10 with their closed requests, so the totals
+ * still agree with a rebuild and with the date-range form of the report.
+ * A partition that changed between its export and its detach is kept.
+ *
+ */
+public class Archiver {
+	static final Pattern PARTITION_NAME = Pattern.compile("(\\w+)_(\\d{4})");
+	static final String PARTITIONS_SQL =
+		"SELECT c.relname FROM pg_inherits i, pg_class c " +
+		"WHERE i.inhrelid = c.oid AND i.inhparent = ?::regclass";
+	static final String OPEN_REQUESTS_SQL =
+		"SELECT COUNT(*) FROM %s S WHERE S.status = 'W'";
+	// closed requests of later years that close a request of the partition
+	static final String CLOSED_LATER_SQL =
+		"SELECT COUNT(*) FROM closed_request C WHERE C.date >= ? AND C.rid IN (SELECT S.rid FROM %s S)";
+	static final String SUBTRACT_BILLS_SQL =
+		"WITH archived AS (" +
+			"SELECT S.customer_id, SUM(C.bill) AS bills FROM %s C, Service_Request S " +
+			"WHERE C.rid = S.rid GROUP BY S.customer_id) " +
+		"UPDATE customer_bill_total T SET total = T.total - A.bills FROM archived A WHERE T.customer_id = A.customer_id";
+	// bills are positive, so a total of 0 is a customer without closed requests left
+	static final String DROP_EMPTY_TOTALS_SQL = "DELETE FROM customer_bill_total WHERE total = 0";
+
+	// the numbers of a dropped partition leave the registry of migration 7
+	static final String DELETE_KEYS_SQL = "DELETE FROM %1$s_key K USING %2$s P WHERE K.%3$s = P.%3$s AND K.date = P.date";
+
+	// the closed requests of a year go first, so nothing references the numbers of its requests
+	static final BulkLoader.TableLoad[] TABLES = { BulkLoader.CLOSED_REQUEST, BulkLoader.SERVICE_REQUEST };
+
+	private final MechanicShop _esql;
+	private final File _outDir;
+
+	public Archiver(MechanicShop esql, File outDir) {
+		this._esql = esql;
+		this._outDir = outDir;
+	}
+
+	/**
+	 * Method to run the command line form of the archival.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: before outDir
+	 * @throws java.lang.Exception when an export or a detach fails
+	 */
+	public static void run(MechanicShop esql, String[] args) throws Exception {
+		if (args.length != 2) {
+			throw new IllegalArgumentException("Usage: archive <before yyyy-mm-dd> <outDir>");
+		}
+		new Archiver(esql, new File(args[1])).archive(LocalDate.parse(args[0]));
+	}
+
+	/**
+	 * Method to archive the years that end on or before the given date.
+	 *
+	 * @param before the first date kept
+	 * @return the number of partitions archived
+	 * @throws java.lang.Exception when an export or a detach fails; the
+	 *         partitions archived until then stay archived
+	 */
+	public int archive(LocalDate before) throws Exception {
+		// rows of old years still in the default partitions get their own first
+		this._esql.ensurePartitions();
+		Set<String> partitions = new HashSet<String>();
+		TreeSet<Integer> years = new TreeSet<Integer>();
+		for (BulkLoader.TableLoad t : TABLES) {
+			for (List<String> row : this._esql.executeQueryAndReturnResult(PARTITIONS_SQL, t.table)) {
+				String partition = row.get(0).trim();
+				Matcher m = PARTITION_NAME.matcher(partition);
+				if (m.matches() && m.group(1).equals(t.table)) {
+					int year = Integer.parseInt(m.group(2));
+					if (!LocalDate.of(year + 1, 1, 1).isAfter(before)) {
+						partitions.add(partition);
+						years.add(year);
+					}
+				}
+			}
+		}
+
+		Exporter exporter = new Exporter(this._esql, this._outDir, true, 1);
+		int archived = 0;
+		for (int year : years) {
+			String requests = BulkLoader.SERVICE_REQUEST.table + "_" + year;
+			if (partitions.contains(requests)) {
+				String open = this._esql.executeQueryAndReturnResult(String.format(OPEN_REQUESTS_SQL, requests)).get(0).get(0).trim();
+				if (!open.equals("0")) {
+					System.out.println("Stopped at " + year + ": " + open + " of its service requests are still open");
+					break;
+				}
+				String later = this._esql.executeQueryAndReturnResult(String.format(CLOSED_LATER_SQL, requests),
+					Date.valueOf(LocalDate.of(year + 1, 1, 1))).get(0).get(0).trim();
+				if (!later.equals("0")) {
+					System.out.println("Stopped at " + year + ": " + later + " of its service requests were closed in a later year");
+					break;
+				}
+			}
+			for (BulkLoader.TableLoad t : TABLES) {
+				String partition = t.table + "_" + year;
+				if (partitions.contains(partition)) {
+					archive(exporter, t, partition);
+					++archived;
+				}
+			}
+		}
+		System.out.println("Archived " + archived + " partitions to " + this._outDir.getPath());
+		return archived;
+	}
+
+	/**
+	 * Method to export one partition, then detach and drop it if it still
+	 * holds exactly the exported rows.
+	 *
+	 * @param exporter the exporter writing to the archive directory
+	 * @param t the partitioned table
+	 * @param partition the partition to archive
+	 * @throws java.lang.Exception when the export, the detach or the drop fails
+	 */
+	void archive(Exporter exporter, BulkLoader.TableLoad t, String partition) throws Exception {
+		// an earlier archive of the same name is never overwritten
+		File file = new File(this._outDir, partition + ".csv.gz");
+		if (file.exists()) {
+			throw new IOException("Archive " + file.getPath() + " already exists");
+		}
+		// every column, so the statuses of the requests come back with them
+		long rows = exporter.exportOne(partition, partition, null);
+		this._esql.beginTransaction();
+		try {
+			ConnectionPool.PooledConnection conn = this._esql.acquire();
+			try (Statement stmt = conn.connection().createStatement()) {
+				// locks the table, so nothing reaches the partition once it is counted
+				stmt.execute("ALTER TABLE " + t.table + " DETACH PARTITION " + partition);
+				long left;
+				try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + partition)) {
+					rs.next();
+					left = rs.getLong(1);
+				}
+				if (left != rows) {
+					throw new SQLException(partition + " has " + left + " rows but " + rows + " were exported; it was kept");
+				}
+				if (t == BulkLoader.CLOSED_REQUEST) {
+					stmt.executeUpdate(String.format(SUBTRACT_BILLS_SQL, partition));
+					stmt.executeUpdate(DROP_EMPTY_TOTALS_SQL);
+				}
+				stmt.executeUpdate(String.format(DELETE_KEYS_SQL, t.table, partition, t == BulkLoader.SERVICE_REQUEST ? "rid" : "wid"));
+				stmt.execute("DROP TABLE " + partition);
+			} finally {
+				this._esql.release();
+			}
+			this._esql.tablesChanged(t.table, "customer_bill_total");
+			this._esql.commitTransaction();
+		} catch (SQLException e) {
+			this._esql.rollbackTransaction();
+			file.delete();
+			throw e;
+		}
+	}
+}
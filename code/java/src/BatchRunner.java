@@ -0,0 +1,614 @@
+/*
+ * Batch command mode for the Mechanic Shop
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.BatchUpdateException;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class defines the non-interactive batch mode. A batch file holds one
+ * operation per line, tab separated:
+ *
+ *   customer  fname  lname  phone  address  [label]
+ *   mechanic  fname  lname  experience  [label]
+ *   car       vin  make  model  year  owner
+ *   request   customer  vin  odometer  complaint  [label]
+ *   close     request  mechanic  bill  [comment]
+ *
+ * where owner, customer, request and mechanic are ids or @label references
+ * to an earlier line. Blank lines and lines starting with # are ignored.
+ * Lines are validated with the rules of the menu operations, then run in
+ * chunks: each chunk reserves its ids in one round trip per sequence, sends
+ * each statement shape as one JDBC batch, and commits as one transaction.
+ * When a chunk fails it is rolled back and replayed one operation per
+ * transaction, so only the failing lines are rejected. Every line gets one
+ * JSON result in the log.
+ *
+ */
+public class BatchRunner {
+	static final int DEFAULT_CHUNK_SIZE = 500;
+
+	static final String CUSTOMER = "customer";
+	static final String MECHANIC = "mechanic";
+	static final String CAR = "car";
+	static final String REQUEST = "request";
+	static final String CLOSE = "close";
+
+	static final String OK = "ok";
+	static final String ERROR = "error";
+	static final String SKIPPED = "skipped";
+
+	/**
+	 * One line of the batch file.
+	 */
+	static class Op {
+		final int line;
+		final String kind;
+		final String[] fields;
+		// ids or earlier lines referenced by the operation
+		int customerId;
+		Op customerRef;
+		int requestId;
+		Op requestRef;
+		int mechanicId;
+		Op mechanicRef;
+		int number;
+		// ids reserved for the operation; kept when a chunk is replayed
+		int id;
+		int ownershipId;
+		String status;
+		String detail;
+
+		Op(int line, String kind, String[] fields) {
+			this.line = line;
+			this.kind = kind;
+			this.fields = fields;
+		}
+
+		void fail(String message) {
+			this.status = ERROR;
+			this.detail = message;
+		}
+	}//end Op
+
+	interface Params {
+		Object[] of(Op op);
+	}
+
+	private final MechanicShop _esql;
+	private final int _chunkSize;
+	private final Writer _log;
+	private final Map<String, Op> _labels = new HashMap<String, Op>();
+	private final Date _today = Date.valueOf(LocalDate.now());
+	private long _ok = 0;
+	private long _skipped = 0;
+	private long _failed = 0;
+
+	public BatchRunner(MechanicShop esql, int chunkSize, Writer log) {
+		this._esql = esql;
+		this._chunkSize = chunkSize;
+		this._log = log;
+	}
+
+	/**
+	 * Method to run the command line form of the batch mode.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: file [--chunk n] [--log file]
+	 * @return true when no operation failed
+	 * @throws java.lang.Exception when the file cannot be read or the log written
+	 */
+	public static boolean run(MechanicShop esql, String[] args) throws Exception {
+		String file = null;
+		String log = null;
+		int chunk = Integer.getInteger("shop.batch.chunkSize", DEFAULT_CHUNK_SIZE);
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("--chunk") && i + 1 < args.length) {
+				chunk = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--log") && i + 1 < args.length) {
+				log = args[++i];
+			} else {
+				file = args[i];
+			}
+		}
+		if (file == null) {
+			throw new IllegalArgumentException("Usage: batch <file> [--chunk n] [--log file]");
+		}
+		if (log == null) {
+			log = file + ".results.jsonl";
+		}
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(log), StandardCharsets.UTF_8))) {
+			BatchRunner runner = new BatchRunner(esql, Math.max(1, chunk), out);
+			boolean passed = runner.run(in);
+			System.out.println("Results written to " + log);
+			return passed;
+		}
+	}
+
+	/**
+	 * Method to run every operation of a batch file.
+	 *
+	 * @param in the batch file
+	 * @return true when no operation failed
+	 * @throws java.lang.Exception when the file cannot be read, the log written
+	 *         or the database reached
+	 */
+	public boolean run(BufferedReader in) throws Exception {
+		long start = System.currentTimeMillis();
+		List<Op> chunk = new ArrayList<Op>(this._chunkSize);
+		String text;
+		int line = 0;
+		while ((text = in.readLine()) != null) {
+			++line;
+			if (text.trim().isEmpty() || text.startsWith("#")) {
+				continue;
+			}
+			chunk.add(parse(line, text));
+			if (chunk.size() == this._chunkSize) {
+				finish(chunk);
+			}
+		}
+		finish(chunk);
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		long total = this._ok + this._skipped + this._failed;
+		System.out.println("Ran " + total + " operations in " + millis + " ms (" + (total * 1000 / millis) + " per second): " +
+			this._ok + " ok, " + this._skipped + " skipped, " + this._failed + " failed");
+		return this._failed == 0;
+	}
+
+	private void finish(List<Op> chunk) throws Exception {
+		this._esql.metrics().time("batch chunk", () -> runChunk(chunk));
+		for (Op op : chunk) {
+			if (OK.equals(op.status)) {
+				++this._ok;
+			} else if (SKIPPED.equals(op.status)) {
+				++this._skipped;
+			} else {
+				++this._failed;
+			}
+			log(op);
+		}
+		this._log.flush();
+		chunk.clear();
+	}
+
+	/**
+	 * Method to read one line into an operation, checking its values with
+	 * the rules of the menu operations.  A line that fails the checks is
+	 * returned already failed.
+	 */
+	Op parse(int line, String text) {
+		String[] all = text.split("\t", -1);
+		String[] f = new String[all.length - 1];
+		for (int i = 1; i < all.length; ++i) {
+			f[i - 1] = all[i].trim();
+		}
+		return parse(line, all[0].trim(), f);
+	}
+
+	Op parse(int line, String name, String[] f) {
+		String kind = name.toLowerCase();
+		Op op = new Op(line, kind, f);
+		try {
+			String label = null;
+			switch (kind) {
+				case CUSTOMER:
+					fields(f, 4, 5);
+					name(f[0], "Customer's first name");
+					name(f[1], "Customer's last name");
+					if (!f[2].matches("\\(\\d{3}\\)\\d{3}\\-\\d{4}")) {
+						throw new IllegalArgumentException("Customer's phone number must be of the format (###)###-####");
+					}
+					length(f[3], 256, "Customer's address");
+					label = f.length > 4 ? f[4] : null;
+					break;
+				case MECHANIC:
+					fields(f, 3, 4);
+					name(f[0], "Mechanic's first name");
+					name(f[1], "Mechanic's last name");
+					op.number = number(f[2], 1, 99, "Years of experience");
+					label = f.length > 3 ? f[3] : null;
+					break;
+				case CAR:
+					fields(f, 5, 5);
+					if (f[0].length() != 16) {
+						throw new IllegalArgumentException("Car VIN must be be 16 characters");
+					}
+					length(f[1], 32, "Car make");
+					length(f[2], 32, "Car model");
+					op.number = number(f[3], 1970, Integer.MAX_VALUE, "Car year");
+					op.customerRef = reference(f[4], CUSTOMER);
+					op.customerId = op.customerRef == null ? number(f[4], 1, Integer.MAX_VALUE, "Owner id") : 0;
+					break;
+				case REQUEST:
+					fields(f, 4, 5);
+					op.customerRef = reference(f[0], CUSTOMER);
+					op.customerId = op.customerRef == null ? number(f[0], 1, Integer.MAX_VALUE, "Customer id") : 0;
+					if (f[1].length() != 16) {
+						throw new IllegalArgumentException("Car VIN must be be 16 characters");
+					}
+					op.number = number(f[2], 1, Integer.MAX_VALUE, "Odometer");
+					if (f[3].isEmpty()) {
+						throw new IllegalArgumentException("Customer must have a complaint listed for car to be serviced");
+					}
+					label = f.length > 4 ? f[4] : null;
+					break;
+				case CLOSE:
+					fields(f, 3, 4);
+					op.requestRef = reference(f[0], REQUEST);
+					op.requestId = op.requestRef == null ? number(f[0], 1, Integer.MAX_VALUE, "Service request number") : 0;
+					op.mechanicRef = reference(f[1], MECHANIC);
+					op.mechanicId = op.mechanicRef == null ? number(f[1], 1, Integer.MAX_VALUE, "Mechanic id") : 0;
+					op.number = number(f[2], 1, Integer.MAX_VALUE, "Bill");
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown operation '" + name + "'");
+			}
+			if (label != null && !label.isEmpty()) {
+				if (this._labels.containsKey(label)) {
+					throw new IllegalArgumentException("Label " + label + " is already used on line " + this._labels.get(label).line);
+				}
+				this._labels.put(label, op);
+			}
+		} catch (IllegalArgumentException e) {
+			op.fail(e.getMessage());
+		}
+		return op;
+	}
+
+	/**
+	 * Method to run a single operation in its own transaction, checked and
+	 * applied exactly like a batch line.  Used by the HTTP server, which
+	 * makes one runner per request.
+	 *
+	 * @param kind the operation name, as in the batch file
+	 * @param fields the operation's values, in batch file order
+	 * @return the operation, with its status, ids and message filled in
+	 * @throws java.sql.SQLException when the database cannot be reached
+	 */
+	public Op runOne(String kind, String[] fields) throws SQLException {
+		Op op = parse(0, kind, fields);
+		runChunk(Collections.singletonList(op));
+		return op;
+	}
+
+	/**
+	 * Method to run one chunk of operations in one transaction, replaying it
+	 * one operation at a time when it fails.
+	 */
+	void runChunk(List<Op> chunk) throws SQLException {
+		List<Op> ready = new ArrayList<Op>(chunk.size());
+		for (Op op : chunk) {
+			if (op.status == null) {
+				ready.add(op);
+			}
+		}
+		if (ready.isEmpty()) {
+			return;
+		}
+		reserveIds(ready);
+		ready = resolve(ready);
+		ready = checkVins(ready);
+		if (ready.isEmpty()) {
+			return;
+		}
+		this._esql.beginTransaction();
+		try {
+			ConnectionPool.PooledConnection conn = this._esql.acquire();
+			try {
+				execute(conn, ready);
+			} finally {
+				this._esql.release();
+			}
+			for (Op op : ready) {
+				if (op.status == null) {
+					op.status = OK;
+				}
+				afterCommit(op);
+			}
+			this._esql.commitTransaction();
+		} catch (SQLException e) {
+			this._esql.rollbackTransaction();
+			for (Op op : ready) {
+				op.status = null;
+				op.detail = null;
+			}
+			if (ready.size() == 1) {
+				ready.get(0).fail(message(e));
+			} else {
+				for (Op op : ready) {
+					runChunk(Collections.singletonList(op));
+				}
+			}
+		}
+	}
+
+	// reserves the ids of every operation not given them before, one round trip per sequence
+	private void reserveIds(List<Op> ops) throws SQLException {
+		reserve(ops, CUSTOMER, IdAllocator.CUSTOMER);
+		reserve(ops, MECHANIC, IdAllocator.MECHANIC);
+		reserve(ops, REQUEST, IdAllocator.SERVICE_REQUEST);
+		reserve(ops, CLOSE, IdAllocator.CLOSED_REQUEST);
+		List<Op> cars = new ArrayList<Op>();
+		for (Op op : ops) {
+			if (op.kind.equals(CAR) && op.ownershipId == 0) {
+				cars.add(op);
+			}
+		}
+		int[] ids = this._esql.ids().next(IdAllocator.OWNS, cars.size());
+		for (int i = 0; i < ids.length; ++i) {
+			cars.get(i).ownershipId = ids[i];
+		}
+	}
+
+	private void reserve(List<Op> ops, String kind, String sequence) throws SQLException {
+		List<Op> need = new ArrayList<Op>();
+		for (Op op : ops) {
+			if (op.kind.equals(kind) && op.id == 0) {
+				need.add(op);
+			}
+		}
+		int[] ids = this._esql.ids().next(sequence, need.size());
+		for (int i = 0; i < ids.length; ++i) {
+			need.get(i).id = ids[i];
+		}
+	}
+
+	// fills in the ids of referenced lines, failing operations whose line failed
+	private List<Op> resolve(List<Op> ops) {
+		List<Op> ready = new ArrayList<Op>(ops.size());
+		for (Op op : ops) {
+			Op failed = failedReference(op.customerRef, op.requestRef, op.mechanicRef);
+			if (failed != null) {
+				op.fail("Line " + failed.line + " failed");
+				continue;
+			}
+			if (op.customerRef != null) {
+				op.customerId = op.customerRef.id;
+			}
+			if (op.requestRef != null) {
+				op.requestId = op.requestRef.id;
+			}
+			if (op.mechanicRef != null) {
+				op.mechanicId = op.mechanicRef.id;
+			}
+			ready.add(op);
+		}
+		return ready;
+	}
+
+	private static Op failedReference(Op... refs) {
+		for (Op ref : refs) {
+			if (ref != null && (ERROR.equals(ref.status) || ref.id == 0)) {
+				return ref;
+			}
+		}
+		return null;
+	}
+
+	// fails the cars whose VIN is already taken, asking the database only about VINs the filter might hold
+	private List<Op> checkVins(List<Op> ops) throws SQLException {
+		VinFilter vins = this._esql.vins();
+		vins.ensureLoaded(this._esql);
+		List<String> suspects = new ArrayList<String>();
+		Set<String> inChunk = new HashSet<String>();
+		for (Op op : ops) {
+			if (op.kind.equals(CAR)) {
+				if (!inChunk.add(op.fields[0])) {
+					op.fail("VIN " + op.fields[0] + " appears twice");
+				} else if (vins.mightContain(op.fields[0])) {
+					suspects.add(op.fields[0]);
+				}
+			}
+		}
+		Set<String> existing = new HashSet<String>();
+		if (!suspects.isEmpty()) {
+			for (List<String> row : this._esql.executeQueryAndReturnResult(BulkLoader.EXISTING_VINS_SQL, (Object) suspects.toArray(new String[suspects.size()]))) {
+				existing.add(row.get(0));
+			}
+		}
+		List<Op> ready = new ArrayList<Op>(ops.size());
+		for (Op op : ops) {
+			if (op.kind.equals(CAR) && existing.contains(op.fields[0])) {
+				op.fail("This VIN already exists in database");
+			}
+			if (op.status == null) {
+				ready.add(op);
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Method to send the chunk as one JDBC batch per statement shape, in
+	 * foreign-key order.
+	 */
+	private void execute(ConnectionPool.PooledConnection conn, List<Op> ops) throws SQLException {
+		batch(conn, MechanicShop.INSERT_CUSTOMER_SQL, of(ops, CUSTOMER),
+			op -> new Object[] { op.id, op.fields[0], op.fields[1], op.fields[2], op.fields[3] });
+		batch(conn, MechanicShop.INSERT_MECHANIC_SQL, of(ops, MECHANIC),
+			op -> new Object[] { op.id, op.fields[0], op.fields[1], op.number });
+		List<Op> cars = of(ops, CAR);
+		batch(conn, MechanicShop.INSERT_CAR_SQL, cars,
+			op -> new Object[] { op.fields[0], op.fields[1], op.fields[2], op.number });
+		batch(conn, MechanicShop.INSERT_OWNS_SQL, cars,
+			op -> new Object[] { op.ownershipId, op.customerId, op.fields[0] });
+		batch(conn, MechanicShop.INSERT_SERVICE_REQUEST_SQL, of(ops, REQUEST),
+			op -> new Object[] { op.id, op.customerId, op.fields[1], this._today, op.number, op.fields[3] });
+		List<Op> closes = of(ops, CLOSE);
+		int[] counts = batch(conn, MechanicShop.INSERT_CLOSED_REQUEST_SQL, closes,
+			op -> new Object[] { op.id, op.requestId, op.mechanicId, this._today, op.fields.length > 3 ? op.fields[3] : "", op.number });
+		List<Op> closed = new ArrayList<Op>(closes.size());
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] == 0) {
+				closes.get(i).status = SKIPPED;
+				closes.get(i).detail = "Service request " + closes.get(i).requestId + " does not exist or was already closed";
+			} else {
+				closed.add(closes.get(i));
+			}
+		}
+		batch(conn, MechanicShop.ADD_BILL_TOTAL_SQL, closed, op -> new Object[] { op.number, op.requestId });
+	}
+
+	private int[] batch(ConnectionPool.PooledConnection conn, String sql, List<Op> ops, Params params) throws SQLException {
+		if (ops.isEmpty()) {
+			return new int[0];
+		}
+		PreparedStatement stmt = conn.statements().prepare(sql);
+		for (Op op : ops) {
+			StatementCache.bind(stmt, params.of(op));
+			stmt.addBatch();
+		}
+		Metrics.Call call = this._esql.metrics().call(sql);
+		int[] counts = stmt.executeBatch();
+		long rows = 0;
+		for (int count : counts) {
+			rows += Math.max(0, count);
+		}
+		call.done(rows, 0);
+		return counts;
+	}
+
+	private static List<Op> of(List<Op> ops, String kind) {
+		List<Op> matching = new ArrayList<Op>();
+		for (Op op : ops) {
+			if (op.kind.equals(kind)) {
+				matching.add(op);
+			}
+		}
+		return matching;
+	}
+
+	// brings the in-memory structures up to date once the chunk commits
+	private void afterCommit(Op op) {
+		final MechanicShop esql = this._esql;
+		switch (op.kind) {
+			case CUSTOMER:
+				CustomerDirectory.Customer customer = new CustomerDirectory.Customer(op.id, op.fields[0], op.fields[1], op.fields[2], op.fields[3]);
+				esql.afterCommit(() -> esql.customers().add(customer));
+				esql.tablesChanged("customer");
+				break;
+			case MECHANIC:
+				esql.tablesChanged("mechanic");
+				break;
+			case CAR:
+				esql.afterCommit(() -> esql.vins().add(op.fields[0]));
+				esql.tablesChanged("car", "owns");
+				break;
+			case REQUEST:
+				esql.afterCommit(() -> esql.openServiceCounts().increment(op.fields[1]));
+				esql.tablesChanged("service_request");
+				break;
+			case CLOSE:
+				if (OK.equals(op.status)) {
+					// the car of the request is not known here, so the counts are read again
+					esql.afterCommit(() -> esql.openServiceCounts().invalidate());
+					esql.tablesChanged("closed_request", "customer_bill_total");
+				}
+				break;
+		}
+	}
+
+	private void log(Op op) throws IOException {
+		StringBuilder out = new StringBuilder(128);
+		out.append("{\"line\":").append(op.line).append(',');
+		describe(out, op);
+		out.append("}\n");
+		this._log.write(out.toString());
+	}
+
+	/**
+	 * Method to write an operation's result as the members of a JSON object:
+	 * op, status, the ids given on success and the message otherwise.
+	 */
+	static void describe(StringBuilder out, Op op) {
+		out.append("\"op\":");
+		Json.quote(out, op.kind);
+		out.append(",\"status\":");
+		Json.quote(out, op.status);
+		if (OK.equals(op.status)) {
+			if (op.kind.equals(CAR)) {
+				out.append(",\"vin\":");
+				Json.quote(out, op.fields[0]);
+				out.append(",\"ownership_id\":").append(op.ownershipId);
+			} else {
+				out.append(",\"id\":").append(op.id);
+			}
+		}
+		if (op.detail != null) {
+			out.append(",\"message\":");
+			Json.quote(out, op.detail);
+		}
+	}
+
+	private static String message(SQLException e) {
+		SQLException next = e instanceof BatchUpdateException ? e.getNextException() : null;
+		return (next != null ? next : e).getMessage();
+	}
+
+	private Op reference(String field, String kind) {
+		if (!field.startsWith("@")) {
+			return null;
+		}
+		Op ref = this._labels.get(field.substring(1));
+		if (ref == null || !ref.kind.equals(kind)) {
+			throw new IllegalArgumentException("No earlier " + kind + " line is labelled " + field.substring(1));
+		}
+		return ref;
+	}
+
+	private static void fields(String[] f, int min, int max) {
+		if (f.length < min || f.length > max) {
+			throw new IllegalArgumentException("Expected " + (min == max ? "" + min : min + " to " + max) + " fields, found " + f.length);
+		}
+	}
+
+	private static void name(String s, String what) {
+		length(s, 32, what);
+		if (!s.matches("[a-zA-Z]+")) {
+			throw new IllegalArgumentException(what + " must only contain letters");
+		}
+	}
+
+	private static void length(String s, int max, String what) {
+		if (s.isEmpty() || s.length() > max) {
+			throw new IllegalArgumentException(what + " must be between 1 and " + max + " characters (inclusive)");
+		}
+	}
+
+	private static int number(String s, int min, int max, String what) {
+		try {
+			int n = Integer.parseInt(s);
+			if (n >= min && n <= max) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException(what + " must be an integer" + (max == Integer.MAX_VALUE ? " of at least " + min : " between " + min + " and " + max));
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * Bulk loader for the Mechanic Shop seed data
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class defines a client-side loader for the six seed CSV files. Each
+ * file is streamed through COPY FROM STDIN on its own pooled connection, so
+ * the files only have to exist on the client. Tables without foreign keys
+ * between them load in parallel and the stages follow the
+ * Customer/Mechanic/Car, Owns/Service_Request, Closed_Request order. When the
+ * constraints are deferred the keys and supporting indexes are dropped first,
+ * every table loads at once, and they are rebuilt afterwards from their
+ * definitions. The schema is brought to the latest migration before the
+ * load, as a start does, and only steps safe to repeat follow it: rows of
+ * years without a partition are moved out of the default partitions, the
+ * request statuses and summary tables are recomputed once the load
+ * completes, instead of row by row by the closed request trigger, and the
+ * id sequences are moved past the loaded ids. With dedup, cars already
+ * in the table or repeated in car.csv are skipped, using the VIN filter so
+ * only the few possible duplicates are looked up.
+ *
+ */
+public class BulkLoader {
+
+	/**
+	 * One table of the seed set and the CSV file that feeds it.
+	 */
+	static class TableLoad {
+		final String table;
+		final String columns;
+		final String file;
+
+		TableLoad(String table, String columns, String file) {
+			this.table = table;
+			this.columns = columns;
+			this.file = file;
+		}
+	}//end TableLoad
+
+	static final TableLoad CUSTOMER = new TableLoad("customer", "id, fname, lname, phone, address", "customer.csv");
+	static final TableLoad MECHANIC = new TableLoad("mechanic", "id, fname, lname, experience", "mechanic.csv");
+	static final TableLoad CAR = new TableLoad("car", "vin, make, model, year", "car.csv");
+	static final TableLoad OWNS = new TableLoad("owns", "ownership_id, customer_id, car_vin", "owns.csv");
+	static final TableLoad SERVICE_REQUEST = new TableLoad("service_request", "rid, customer_id, car_vin, date, odometer, complain", "service_request.csv");
+	static final TableLoad CLOSED_REQUEST = new TableLoad("closed_request", "wid, rid, mid, date, comment, bill", "closed_request.csv");
+
+	// foreign-key order: every table only references tables of earlier stages
+	static final TableLoad[][] STAGES = {
+		{ CUSTOMER, MECHANIC, CAR },
+		{ OWNS, SERVICE_REQUEST },
+		{ CLOSED_REQUEST },
+	};
+
+	static final TableLoad[] ALL_TABLES = { CUSTOMER, MECHANIC, CAR, OWNS, SERVICE_REQUEST, CLOSED_REQUEST };
+
+	// constraints rebuilt after a deferred load, keys before the references to them
+	static final String[] PRIMARY_KEYS = {
+		"ALTER TABLE customer ADD CONSTRAINT customer_pkey PRIMARY KEY (id)",
+		"ALTER TABLE mechanic ADD CONSTRAINT mechanic_pkey PRIMARY KEY (id)",
+		"ALTER TABLE car ADD CONSTRAINT car_pkey PRIMARY KEY (vin)",
+		"ALTER TABLE owns ADD CONSTRAINT owns_pkey PRIMARY KEY (ownership_id)",
+		// the partitioned request tables need their partition key in the primary key
+		"ALTER TABLE service_request ADD CONSTRAINT service_request_pkey PRIMARY KEY (rid, date)",
+		"ALTER TABLE closed_request ADD CONSTRAINT closed_request_pkey PRIMARY KEY (wid, date)",
+	};
+	static final String[] FOREIGN_KEYS = {
+		"ALTER TABLE owns ADD CONSTRAINT owns_customer_id_fkey FOREIGN KEY (customer_id) REFERENCES customer(id)",
+		"ALTER TABLE owns ADD CONSTRAINT owns_car_vin_fkey FOREIGN KEY (car_vin) REFERENCES car(vin)",
+		"ALTER TABLE service_request ADD CONSTRAINT service_request_customer_id_fkey FOREIGN KEY (customer_id) REFERENCES customer(id)",
+		"ALTER TABLE service_request ADD CONSTRAINT service_request_car_vin_fkey FOREIGN KEY (car_vin) REFERENCES car(vin)",
+		"ALTER TABLE closed_request ADD CONSTRAINT closed_request_mid_fkey FOREIGN KEY (mid) REFERENCES mechanic(id)",
+		"ALTER TABLE closed_request ADD CONSTRAINT closed_request_rid_fkey FOREIGN KEY (rid) REFERENCES service_request_key(rid)",
+	};
+	static final String[] DROP_CONSTRAINTS = {
+		"ALTER TABLE closed_request DROP CONSTRAINT IF EXISTS closed_request_rid_fkey, DROP CONSTRAINT IF EXISTS closed_request_mid_fkey, DROP CONSTRAINT IF EXISTS closed_request_pkey",
+		"ALTER TABLE service_request DROP CONSTRAINT IF EXISTS service_request_customer_id_fkey, DROP CONSTRAINT IF EXISTS service_request_car_vin_fkey",
+		"ALTER TABLE owns DROP CONSTRAINT IF EXISTS owns_customer_id_fkey, DROP CONSTRAINT IF EXISTS owns_car_vin_fkey, DROP CONSTRAINT IF EXISTS owns_pkey",
+		"ALTER TABLE service_request DROP CONSTRAINT IF EXISTS service_request_pkey",
+		"ALTER TABLE customer DROP CONSTRAINT IF EXISTS customer_pkey",
+		"ALTER TABLE mechanic DROP CONSTRAINT IF EXISTS mechanic_pkey",
+		"ALTER TABLE car DROP CONSTRAINT IF EXISTS car_pkey",
+	};
+
+	static final int COPY_BUFFER_SIZE = 1 << 16;
+	// possible duplicate VINs looked up per query
+	static final int DEDUP_BATCH_SIZE = 10000;
+	static final String EXISTING_VINS_SQL = "SELECT vin FROM car WHERE vin = ANY(?)";
+	// the loaded requests start waiting; only those closed by now are written
+	// the numbers of a copied file, registered in one statement; a number
+	// registered before with another date is used twice and fails the copy
+	static final String REGISTER_REQUEST_KEYS_SQL =
+		"INSERT INTO service_request_key (rid, date) SELECT S.rid, S.date FROM service_request S " +
+		"WHERE NOT EXISTS (SELECT 1 FROM service_request_key K WHERE K.rid = S.rid AND K.date = S.date)";
+	static final String REGISTER_CLOSED_KEYS_SQL =
+		"INSERT INTO closed_request_key (wid, date) SELECT C.wid, C.date FROM closed_request C " +
+		"WHERE NOT EXISTS (SELECT 1 FROM closed_request_key K WHERE K.wid = C.wid AND K.date = C.date)";
+	static final String CLOSE_LOADED_REQUESTS_SQL =
+		"UPDATE service_request S SET status = 'C' " +
+		"WHERE S.status = 'W' AND EXISTS (SELECT 1 FROM closed_request C WHERE C.rid = S.rid)";
+
+	private final MechanicShop _esql;
+	private final File _dataDir;
+	private final boolean _deferConstraints;
+	private final boolean _truncate;
+	private final boolean _dedup;
+
+	public BulkLoader(MechanicShop esql, File dataDir, boolean deferConstraints, boolean truncate, boolean dedup) {
+		this._esql = esql;
+		this._dataDir = dataDir;
+		this._deferConstraints = deferConstraints;
+		this._truncate = truncate;
+		this._dedup = dedup;
+	}
+
+	/**
+	 * Method to run the command line form of the loader.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: [dataDir] [--defer-constraints] [--truncate] [--dedup]
+	 * @throws java.lang.Exception when the load fails
+	 */
+	public static void run(MechanicShop esql, String[] args) throws Exception {
+		String dir = "../data";
+		boolean defer = false;
+		boolean truncate = false;
+		boolean dedup = false;
+		for (String arg : args) {
+			if (arg.equals("--defer-constraints")) {
+				defer = true;
+			} else if (arg.equals("--truncate")) {
+				truncate = true;
+			} else if (arg.equals("--dedup")) {
+				dedup = true;
+			} else {
+				dir = arg;
+			}
+		}
+		new BulkLoader(esql, new File(dir), defer, truncate, dedup).load();
+	}
+
+	/**
+	 * Method to load every seed file.
+	 *
+	 * @throws java.lang.Exception when a file is missing or a COPY fails
+	 */
+	public void load() throws Exception {
+		for (TableLoad t : ALL_TABLES) {
+			File f = new File(this._dataDir, t.file);
+			if (!f.isFile()) {
+				throw new IOException("Missing seed file " + f.getPath());
+			}
+		}
+		long start = System.currentTimeMillis();
+		// bring a schema created by create.sql to the latest migration first, as a start does
+		new SchemaMigrator(this._esql).migrate();
+		if (this._truncate) {
+			execute("TRUNCATE customer, mechanic, car, owns, service_request, closed_request, customer_bill_total, service_request_key, closed_request_key");
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(ALL_TABLES.length);
+		try {
+			if (this._deferConstraints) {
+				Map<String, String> indexes = secondaryIndexes();
+				for (String sql : DROP_CONSTRAINTS) {
+					execute(sql);
+				}
+				for (String index : indexes.keySet()) {
+					execute("DROP INDEX IF EXISTS " + index);
+				}
+				runAll(workers, copyTasks(ALL_TABLES));
+				runAll(workers, ddlTasks(PRIMARY_KEYS));
+				runAll(workers, ddlTasks(FOREIGN_KEYS));
+				// rebuild the dropped indexes as the migrations defined them
+				runAll(workers, ddlTasks(indexes.values().toArray(new String[indexes.size()])));
+			} else {
+				for (TableLoad[] stage : STAGES) {
+					runAll(workers, copyTasks(stage));
+				}
+			}
+			// give the loaded years their own partitions before they are analyzed
+			this._esql.ensurePartitions();
+			execute(CLOSE_LOADED_REQUESTS_SQL);
+			List<Task> analyze = new ArrayList<Task>();
+			for (TableLoad t : ALL_TABLES) {
+				analyze.add(ddlTask("ANALYZE " + t.table));
+			}
+			runAll(workers, analyze);
+		} finally {
+			workers.shutdown();
+		}
+		// move the id sequences past the loaded rows
+		this._esql.ids().restart();
+		// recompute the bill totals from the loaded closed requests
+		this._esql.rebuildSummaries();
+		this._esql.openServiceCounts().invalidate();
+		this._esql.customers().invalidate();
+		this._esql.vins().invalidate();
+		this._esql.reports().clear();
+		System.out.println("Loaded seed data from " + this._dataDir.getPath() + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.
+	 *
+	 * @param t the table and file to load
+	 * @return the number of rows copied
+	 * @throws java.lang.Exception when the COPY fails
+	 */
+	long copy(TableLoad t) throws Exception {
+		if (t == CAR && this._dedup) {
+			return copyNewCars();
+		}
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		File file = new File(this._dataDir, t.file);
+		try (InputStream data = new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE)) {
+			Connection c = conn.connection();
+			String keys = t == SERVICE_REQUEST ? REGISTER_REQUEST_KEYS_SQL : t == CLOSED_REQUEST ? REGISTER_CLOSED_KEYS_SQL : null;
+			if (keys != null) {
+				// the request numbers are registered for the whole file, in its transaction
+				c.setAutoCommit(false);
+				try (Statement stmt = c.createStatement()) {
+					stmt.execute("SET LOCAL shop.bulk_keys = on");
+					if (t == CLOSED_REQUEST) {
+						// the request statuses are set for the whole load once it completes
+						stmt.execute("SET LOCAL shop.bulk_load = on");
+					}
+				}
+			}
+			CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+			long start = System.currentTimeMillis();
+			String sql = "COPY " + t.table + " (" + t.columns + ") FROM STDIN WITH DELIMITER ','";
+			Metrics.Call call = this._esql.metrics().call(sql);
+			long rows;
+			try {
+				rows = copy.copyIn(sql, data, COPY_BUFFER_SIZE);
+				if (keys != null) {
+					try (Statement stmt = c.createStatement()) {
+						stmt.execute(keys);
+					}
+					c.commit();
+				}
+			} finally {
+				if (!c.getAutoCommit()) {
+					c.rollback();
+					c.setAutoCommit(true);
+				}
+			}
+			call.done(rows, file.length());
+			System.out.println("\t" + t.table + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms");
+			return rows;
+		} finally {
+			this._esql.release();
+		}
+	}
+
+	/**
+	 * Method to stream car.csv into the Car table, skipping the VINs already
+	 * in the table and the repeats within the file.  A first pass collects
+	 * the VINs the shop's VIN filter or a filter of the file itself might
+	 * have seen; only those are looked up, in batches, and remembered
+	 * exactly.  The second pass copies every other line unchecked.
+	 *
+	 * @return the number of rows copied
+	 * @throws java.lang.Exception when the file cannot be read or the COPY fails
+	 */
+	long copyNewCars() throws Exception {
+		File f = new File(this._dataDir, CAR.file);
+		VinFilter known = this._esql.vins();
+		known.ensureLoaded(this._esql);
+		// a line holds at least a VIN and three separators
+		int capacity = (int) Math.max(VinFilter.MIN_CAPACITY, Math.min(Integer.MAX_VALUE / 2, f.length() / 20));
+		VinFilter.Bloom inFile = new VinFilter.Bloom(capacity, VinFilter.fpp());
+		Set<String> suspects = new HashSet<String>();
+		try (BufferedReader reader = reader(f)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String vin = vinOf(line);
+				if (known.mightContain(vin) || inFile.mightContain(vin)) {
+					suspects.add(vin);
+				}
+				inFile.add(vin);
+			}
+		}
+		Set<String> existing = existingVins(suspects);
+
+		long start = System.currentTimeMillis();
+		long skipped = 0;
+		Set<String> copied = new HashSet<String>();
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		try (BufferedReader reader = reader(f)) {
+			String sql = "COPY " + CAR.table + " (" + CAR.columns + ") FROM STDIN WITH DELIMITER ','";
+			Metrics.Call call = this._esql.metrics().call(sql);
+			CopyIn copy = conn.connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+			try {
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int used = 0;
+				long bytes = 0;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String vin = vinOf(line);
+					if (suspects.contains(vin) && (existing.contains(vin) || !copied.add(vin))) {
+						++skipped;
+						continue;
+					}
+					byte[] row = (line + "\n").getBytes(StandardCharsets.UTF_8);
+					bytes += row.length;
+					if (used + row.length > buffer.length) {
+						copy.writeToCopy(buffer, 0, used);
+						used = 0;
+					}
+					if (row.length > buffer.length) {
+						copy.writeToCopy(row, 0, row.length);
+					} else {
+						System.arraycopy(row, 0, buffer, used, row.length);
+						used += row.length;
+					}
+				}
+				copy.writeToCopy(buffer, 0, used);
+				long rows = copy.endCopy();
+				call.done(rows, bytes);
+				System.out.println("\t" + CAR.table + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms, " +
+					skipped + " duplicates skipped, " + suspects.size() + " VINs looked up");
+				return rows;
+			} finally {
+				if (copy.isActive()) {
+					copy.cancelCopy();
+				}
+			}
+		} finally {
+			this._esql.release();
+		}
+	}
+
+	// the suspects that are already in the Car table
+	private Set<String> existingVins(Set<String> suspects) throws SQLException {
+		Set<String> existing = new HashSet<String>();
+		List<String> batch = new ArrayList<String>(Math.min(DEDUP_BATCH_SIZE, suspects.size()));
+		for (String vin : suspects) {
+			batch.add(vin);
+			if (batch.size() == DEDUP_BATCH_SIZE) {
+				lookUp(batch, existing);
+			}
+		}
+		lookUp(batch, existing);
+		return existing;
+	}
+
+	private void lookUp(List<String> batch, Set<String> existing) throws SQLException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		for (List<String> row : this._esql.executeQueryAndReturnResult(EXISTING_VINS_SQL, (Object) batch.toArray(new String[batch.size()]))) {
+			existing.add(row.get(0));
+		}
+		batch.clear();
+	}
+
+	private static BufferedReader reader(File f) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+	}
+
+	private static String vinOf(String line) {
+		int comma = line.indexOf(',');
+		return comma < 0 ? line : line.substring(0, comma);
+	}
+
+	interface Task {
+		void run() throws Exception;
+	}
+
+	private List<Task> copyTasks(TableLoad[] tables) {
+		List<Task> tasks = new ArrayList<Task>();
+		for (final TableLoad t : tables) {
+			tasks.add(() -> copy(t));
+		}
+		return tasks;
+	}
+
+	private List<Task> ddlTasks(String[] statements) {
+		List<Task> tasks = new ArrayList<Task>();
+		for (String sql : statements) {
+			tasks.add(ddlTask(sql));
+		}
+		return tasks;
+	}
+
+	private Task ddlTask(final String sql) {
+		return () -> execute(sql);
+	}
+
+	// runs every task on the worker pool and waits, rethrowing the first failure
+	private static void runAll(ExecutorService workers, List<Task> tasks) throws Exception {
+		List<Future<Object>> pending = new ArrayList<Future<Object>>();
+		for (final Task task : tasks) {
+			pending.add(workers.submit(() -> {
+				task.run();
+				return null;
+			}));
+		}
+		Exception failure = null;
+		for (Future<Object> f : pending) {
+			try {
+				f.get();
+			} catch (java.util.concurrent.ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// indexes on the seed tables that do not back a constraint, by name, with
+	// their definitions; an index of a partitioned table is recreated on every partition
+	private Map<String, String> secondaryIndexes() throws SQLException {
+		Map<String, String> indexes = new LinkedHashMap<String, String>();
+		for (List<String> row : this._esql.executeQueryAndReturnResult(
+				"SELECT i.indexrelid::regclass::text, replace(pg_get_indexdef(i.indexrelid), ' ON ONLY ', ' ON ') FROM pg_index i " +
+				"WHERE i.indrelid IN ('customer'::regclass, 'mechanic'::regclass, 'car'::regclass, 'owns'::regclass, 'service_request'::regclass, 'closed_request'::regclass) " +
+				"AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)")) {
+			indexes.put(row.get(0), row.get(1));
+		}
+		return indexes;
+	}
+
+	private void execute(String sql) throws SQLException {
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		try (Statement stmt = conn.connection().createStatement()) {
+			stmt.execute(sql);
+		} finally {
+			this._esql.release();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Columnar query result for the Mechanic Shop JDBC layer
+ * ======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * This class defines a query result stored column by column. Integer columns
+ * are kept in int[] or long[] arrays and every other column is dictionary
+ * encoded, so repeated values such as complaints or VINs share one String.
+ * A result of n rows costs a handful of arrays instead of n row lists.
+ *
+ */
+public class ColumnarResult {
+
+	private abstract static class Column {
+		final BitSet nulls = new BitSet();
+
+		abstract void read(ResultSet rs, int col, int row) throws SQLException;
+		abstract void trim(int rows);
+		abstract String asString(int row);
+	}//end Column
+
+	private static class IntColumn extends Column {
+		int[] values = new int[64];
+
+		void read(ResultSet rs, int col, int row) throws SQLException {
+			if (row == this.values.length) {
+				this.values = Arrays.copyOf(this.values, row * 2);
+			}
+			this.values[row] = rs.getInt(col);
+			if (rs.wasNull()) {
+				this.nulls.set(row);
+			}
+		}
+
+		void trim(int rows) {
+			this.values = Arrays.copyOf(this.values, rows);
+		}
+
+		String asString(int row) {
+			return this.nulls.get(row) ? null : Integer.toString(this.values[row]);
+		}
+	}//end IntColumn
+
+	private static class LongColumn extends Column {
+		long[] values = new long[64];
+
+		void read(ResultSet rs, int col, int row) throws SQLException {
+			if (row == this.values.length) {
+				this.values = Arrays.copyOf(this.values, row * 2);
+			}
+			this.values[row] = rs.getLong(col);
+			if (rs.wasNull()) {
+				this.nulls.set(row);
+			}
+		}
+
+		void trim(int rows) {
+			this.values = Arrays.copyOf(this.values, rows);
+		}
+
+		String asString(int row) {
+			return this.nulls.get(row) ? null : Long.toString(this.values[row]);
+		}
+	}//end LongColumn
+
+	private static class DictionaryColumn extends Column {
+		int[] codes = new int[64];
+		String[] dictionary = new String[16];
+		int dictionarySize = 0;
+		HashMap<String, Integer> lookup = new HashMap<String, Integer>();
+
+		void read(ResultSet rs, int col, int row) throws SQLException {
+			if (row == this.codes.length) {
+				this.codes = Arrays.copyOf(this.codes, row * 2);
+			}
+			String value = rs.getString(col);
+			if (value == null) {
+				this.nulls.set(row);
+				return;
+			}
+			Integer code = this.lookup.get(value);
+			if (code == null) {
+				if (this.dictionarySize == this.dictionary.length) {
+					this.dictionary = Arrays.copyOf(this.dictionary, this.dictionarySize * 2);
+				}
+				code = this.dictionarySize;
+				this.dictionary[this.dictionarySize++] = value;
+				this.lookup.put(value, code);
+			}
+			this.codes[row] = code;
+		}
+
+		void trim(int rows) {
+			this.codes = Arrays.copyOf(this.codes, rows);
+			this.dictionary = Arrays.copyOf(this.dictionary, this.dictionarySize);
+			// the build-time lookup table is not needed once the result is read
+			this.lookup = null;
+		}
+
+		String asString(int row) {
+			return this.nulls.get(row) ? null : this.dictionary[this.codes[row]];
+		}
+	}//end DictionaryColumn
+
+	private final String[] _names;
+	private final Column[] _columns;
+	private int _rowCount = 0;
+
+	private ColumnarResult(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		this._names = new String[numCol];
+		this._columns = new Column[numCol];
+		for (int i = 0; i < numCol; ++i) {
+			this._names[i] = rsmd.getColumnName(i + 1);
+			switch (rsmd.getColumnType(i + 1)) {
+				case Types.INTEGER:
+				case Types.SMALLINT:
+					this._columns[i] = new IntColumn();
+					break;
+				case Types.BIGINT:
+					this._columns[i] = new LongColumn();
+					break;
+				default:
+					this._columns[i] = new DictionaryColumn();
+			}
+		}
+	}
+
+	/**
+	 * Method to read every remaining row of a result set into columns.
+	 *
+	 * @param rs the open result set, positioned before its next row
+	 * @return the columnar copy of the remaining rows
+	 * @throws java.sql.SQLException when a fetch fails
+	 */
+	public static ColumnarResult read(ResultSet rs) throws SQLException {
+		ColumnarResult result = new ColumnarResult(rs.getMetaData());
+		int row = 0;
+		while (rs.next()) {
+			for (int i = 0; i < result._columns.length; ++i) {
+				result._columns[i].read(rs, i + 1, row);
+			}
+			++row;
+		}
+		for (Column column : result._columns) {
+			column.trim(row);
+		}
+		result._rowCount = row;
+		return result;
+	}
+
+	public int rowCount() {
+		return this._rowCount;
+	}
+
+	public int columnCount() {
+		return this._columns.length;
+	}
+
+	/**
+	 * @param col the 1-based column index
+	 * @return the column name reported by the driver
+	 */
+	public String columnName(int col) {
+		return this._names[col - 1];
+	}
+
+	/**
+	 * Method to access an integer column without boxing.
+	 *
+	 * @param col the 1-based column index
+	 * @return the column values; null rows hold 0
+	 * @throws java.lang.IllegalArgumentException when the column is not an int column
+	 */
+	public int[] intColumn(int col) {
+		Column column = this._columns[col - 1];
+		if (!(column instanceof IntColumn)) {
+			throw new IllegalArgumentException("Column " + this._names[col - 1] + " is not an integer column");
+		}
+		return ((IntColumn) column).values;
+	}
+
+	/**
+	 * Method to access a bigint column without boxing.
+	 *
+	 * @param col the 1-based column index
+	 * @return the column values; null rows hold 0
+	 * @throws java.lang.IllegalArgumentException when the column is not a bigint column
+	 */
+	public long[] longColumn(int col) {
+		Column column = this._columns[col - 1];
+		if (!(column instanceof LongColumn)) {
+			throw new IllegalArgumentException("Column " + this._names[col - 1] + " is not a bigint column");
+		}
+		return ((LongColumn) column).values;
+	}
+
+	public int getInt(int row, int col) {
+		return intColumn(col)[row];
+	}
+
+	/**
+	 * @param row the 0-based row index
+	 * @param col the 1-based column index
+	 * @return the value as text, or null for SQL NULL
+	 */
+	public String getString(int row, int col) {
+		return this._columns[col - 1].asString(row);
+	}
+
+	public boolean isNull(int row, int col) {
+		return this._columns[col - 1].nulls.get(row);
+	}
+}
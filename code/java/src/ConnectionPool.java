@@ -0,0 +1,350 @@
+/*
+ * Connection pool for the Mechanic Shop JDBC layer
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections. Each
+ * pooled connection carries its own statement cache. Connections that sat
+ * idle are validated before they are handed out, surplus idle connections are
+ * evicted down to the minimum size, and connections held past the leak
+ * threshold are reported together with the code that borrowed them.
+ *
+ */
+public class ConnectionPool {
+
+	/**
+	 * A physical connection owned by the pool together with its prepared
+	 * statement cache and bookkeeping timestamps.
+	 */
+	public static class PooledConnection {
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private volatile long _lastUsed;
+		private volatile long _borrowedAt;
+		private volatile Throwable _borrowSite;
+		private volatile boolean _leakReported;
+
+		private PooledConnection(Connection connection, int cacheSize) {
+			this._connection = connection;
+			this._statements = new StatementCache(connection, cacheSize);
+			this._lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection connection() {
+			return this._connection;
+		}
+
+		public StatementCache statements() {
+			return this._statements;
+		}
+
+		private void closeQuietly() {
+			this._statements.clear();
+			try {
+				this._connection.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}//end PooledConnection
+
+	static final int DEFAULT_MAX_SIZE = 8;
+
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _maxWaitMillis;
+	private final long _idleTimeoutMillis;
+	private final long _validateIdleMillis;
+	private final long _leakThresholdMillis;
+	private final int _statementCacheSize;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = this._lock.newCondition();
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> _borrowed = ConcurrentHashMap.newKeySet();
+	private int _total = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _maintenance;
+
+	/**
+	 * Creates the pool and opens the minimum number of connections so that
+	 * connection problems surface immediately.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd) throws SQLException {
+		this._url = url;
+		this._props = new Properties();
+		this._props.setProperty("user", user);
+		this._props.setProperty("password", passwd);
+		this._maxSize = Math.max(1, Integer.getInteger("shop.pool.max", DEFAULT_MAX_SIZE));
+		this._minSize = Math.min(this._maxSize, Math.max(0, Integer.getInteger("shop.pool.min", 1)));
+		this._maxWaitMillis = Long.getLong("shop.pool.maxWaitMs", 10000L);
+		this._idleTimeoutMillis = Long.getLong("shop.pool.idleTimeoutMs", 300000L);
+		this._validateIdleMillis = Long.getLong("shop.pool.validateIdleMs", 5000L);
+		this._leakThresholdMillis = Long.getLong("shop.pool.leakThresholdMs", 600000L);
+		this._statementCacheSize = Integer.getInteger("shop.statementCacheSize", StatementCache.DEFAULT_CAPACITY);
+
+		for (int i = 0; i < this._minSize; ++i) {
+			this._idle.push(open());
+			++this._total;
+		}
+
+		this._maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-maintenance");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000L, Long.getLong("shop.pool.maintenanceMs", 30000L));
+		this._maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to borrow a connection, waiting up to the configured time when
+	 * every connection is in use.
+	 *
+	 * @return a validated pooled connection
+	 * @throws java.sql.SQLException when no connection becomes available in time,
+	 *         as a java.sql.SQLTransientConnectionException
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._maxWaitMillis);
+		while (true) {
+			PooledConnection pc = null;
+			boolean create = false;
+			this._lock.lock();
+			try {
+				while (pc == null && !create) {
+					if (this._closed) {
+						throw new SQLException("Connection pool is closed");
+					}
+					if (!this._idle.isEmpty()) {
+						pc = this._idle.pop();
+					} else if (this._total < this._maxSize) {
+						++this._total;
+						create = true;
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							throw new SQLTransientConnectionException("Timed out waiting for a database connection (pool size " + this._maxSize + ")");
+						}
+						this._available.awaitNanos(remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a database connection");
+			} finally {
+				this._lock.unlock();
+			}
+
+			if (create) {
+				try {
+					pc = open();
+				} catch (SQLException e) {
+					discard(null);
+					throw e;
+				}
+			} else if (!validate(pc)) {
+				discard(pc);
+				continue;
+			}
+			pc._borrowedAt = System.currentTimeMillis();
+			pc._borrowSite = new Throwable("Connection borrowed here");
+			pc._leakReported = false;
+			this._borrowed.add(pc);
+			return pc;
+		}
+	}
+
+	/**
+	 * Method to return a borrowed connection. Any open transaction is rolled
+	 * back so the next borrower starts from a clean autocommit session.
+	 *
+	 * @param pc the connection obtained from borrow
+	 */
+	public void giveBack(PooledConnection pc) {
+		if (pc == null || !this._borrowed.remove(pc)) {
+			return;
+		}
+		pc._borrowSite = null;
+		try {
+			if (pc._connection.isClosed()) {
+				discard(pc);
+				return;
+			}
+			if (!pc._connection.getAutoCommit()) {
+				pc._connection.rollback();
+				pc._connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			discard(pc);
+			return;
+		}
+		pc._lastUsed = System.currentTimeMillis();
+		this._lock.lock();
+		try {
+			if (this._closed) {
+				--this._total;
+				pc.closeQuietly();
+			} else {
+				this._idle.push(pc);
+				this._available.signal();
+			}
+		} finally {
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to close every idle connection and stop the maintenance task.
+	 * Connections still borrowed are closed when they are given back.
+	 */
+	public void close() {
+		this._maintenance.shutdownNow();
+		List<PooledConnection> toClose;
+		this._lock.lock();
+		try {
+			this._closed = true;
+			toClose = new ArrayList<PooledConnection>(this._idle);
+			this._total -= this._idle.size();
+			this._idle.clear();
+			this._available.signalAll();
+		} finally {
+			this._lock.unlock();
+		}
+		for (PooledConnection pc : toClose) {
+			pc.closeQuietly();
+		}
+	}
+
+	public int size() {
+		this._lock.lock();
+		try {
+			return this._total;
+		} finally {
+			this._lock.unlock();
+		}
+	}
+
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	private PooledConnection open() throws SQLException {
+		return new PooledConnection(DriverManager.getConnection(this._url, this._props), this._statementCacheSize);
+	}
+
+	// connections used recently are trusted, the others get a round trip
+	private boolean validate(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc._lastUsed < this._validateIdleMillis) {
+			return true;
+		}
+		try {
+			return pc._connection.isValid(2);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		if (pc != null) {
+			pc.closeQuietly();
+		}
+		this._lock.lock();
+		try {
+			--this._total;
+			this._available.signal();
+		} finally {
+			this._lock.unlock();
+		}
+	}
+
+	// evicts idle connections, tops the pool up to its minimum, reports leaks
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		int missing;
+		this._lock.lock();
+		try {
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext() && this._total > this._minSize) {
+				PooledConnection pc = it.next();
+				if (now - pc._lastUsed >= this._idleTimeoutMillis) {
+					it.remove();
+					--this._total;
+					evicted.add(pc);
+				}
+			}
+			missing = this._closed ? 0 : this._minSize - this._total;
+			if (missing > 0) {
+				this._total += missing;
+			}
+		} finally {
+			this._lock.unlock();
+		}
+		for (PooledConnection pc : evicted) {
+			pc.closeQuietly();
+		}
+		for (int i = 0; i < missing; ++i) {
+			try {
+				PooledConnection pc = open();
+				pc._lastUsed = now;
+				boolean closed;
+				this._lock.lock();
+				try {
+					// close() may have drained the pool while this one was opening
+					closed = this._closed;
+					if (closed) {
+						--this._total;
+					} else {
+						this._idle.addLast(pc);
+						this._available.signal();
+					}
+				} finally {
+					this._lock.unlock();
+				}
+				if (closed) {
+					pc.closeQuietly();
+				}
+			} catch (SQLException e) {
+				discard(null);
+			}
+		}
+
+		for (PooledConnection pc : this._borrowed) {
+			Throwable site = pc._borrowSite;
+			if (!pc._leakReported && site != null && now - pc._borrowedAt >= this._leakThresholdMillis) {
+				pc._leakReported = true;
+				System.err.println("Warning: database connection held for " + (now - pc._borrowedAt) + " ms, possible leak");
+				site.printStackTrace();
+			}
+		}
+	}
+}
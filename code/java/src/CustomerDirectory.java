@@ -0,0 +1,197 @@
+/*
+ * Customer directory for the Mechanic Shop
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * This class defines an in-memory directory of customers for name lookups.
+ * Customers are kept in two sorted maps, keyed by "last first" and by
+ * "first last" with the names trimmed and lowercased, so a lookup is a
+ * case-insensitive prefix scan costing O(log n) plus the matches returned.
+ * Matches are ranked exact last name first, then last name prefix, then
+ * first name prefix. The directory is read from the database once, on first
+ * use, and kept current by AddCustomer. Customers added by another process
+ * are not in it, so every lookup also searches the last names in the
+ * database through the name prefix index of migration 6, one index range
+ * of at most limit rows, and merges the customers it finds, so a clerk is
+ * not led to add a customer twice because another with the same name
+ * prefix was already known here.
+ *
+ */
+public class CustomerDirectory {
+
+	/**
+	 * One customer, with the padding of the CHAR columns trimmed.
+	 */
+	public static class Customer {
+		public final int id;
+		public final String fname;
+		public final String lname;
+		public final String phone;
+		public final String address;
+
+		public Customer(int id, String fname, String lname, String phone, String address) {
+			this.id = id;
+			this.fname = fname.trim();
+			this.lname = lname.trim();
+			this.phone = phone.trim();
+			this.address = address.trim();
+		}
+
+		@Override
+		public String toString() {
+			return this.fname + ", " + this.lname + ", " + this.phone + ", " + this.address;
+		}
+	}//end Customer
+
+	static final String CUSTOMERS_SQL = "SELECT id, fname, lname, phone, address FROM Customer";
+	// the key of the last name index: "last first", trimmed and lowercased
+	static final String SEARCH_SQL =
+		"SELECT id, fname, lname, phone, address FROM Customer " +
+		"WHERE lower(trim(lname)) || ' ' || lower(trim(fname)) LIKE ? " +
+		"ORDER BY lower(trim(lname)) || ' ' || lower(trim(fname)), id LIMIT ?";
+
+	private final ConcurrentSkipListMap<String, Customer> _byLast = new ConcurrentSkipListMap<String, Customer>();
+	private final ConcurrentSkipListMap<String, Customer> _byFirst = new ConcurrentSkipListMap<String, Customer>();
+	private final ConcurrentHashMap<Integer, Customer> _byId = new ConcurrentHashMap<Integer, Customer>();
+	private volatile boolean _loaded = false;
+
+	/**
+	 * Method to read the customers from the database unless they are already
+	 * loaded.  Lookups do not lock; they see the directory fill up while a
+	 * load is in progress.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the customers cannot be read
+	 */
+	public void ensureLoaded(MechanicShop esql) throws SQLException {
+		if (this._loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (this._loaded) {
+				return;
+			}
+			clear();
+			try (RowCursor rs = esql.openCursor(CUSTOMERS_SQL)) {
+				while (rs.next()) {
+					put(new Customer(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+				}
+			}
+			this._loaded = true;
+		}
+	}
+
+	/**
+	 * Method to forget the loaded customers so the next use reads them again.
+	 */
+	public synchronized void invalidate() {
+		this._loaded = false;
+		clear();
+	}
+
+	/**
+	 * Method to record a newly inserted customer.
+	 *
+	 * @param customer the customer
+	 */
+	public synchronized void add(Customer customer) {
+		if (this._loaded) {
+			put(customer);
+		}
+	}
+
+	/**
+	 * Method to find the customers whose name starts with the given text.
+	 * The text is a last name, optionally followed by a first name, or a
+	 * first name followed by a last name.  The last names are also searched
+	 * in the database, and the customers found there join the directory.
+	 *
+	 * @param esql the connected shop, searched for customers added elsewhere
+	 * @param name the name or name prefix, in any case
+	 * @param limit the most matches wanted
+	 * @return at most limit customers, best matches first
+	 * @throws java.sql.SQLException when the database cannot be searched
+	 */
+	public List<Customer> search(MechanicShop esql, String name, int limit) throws SQLException {
+		String prefix = normalize(name);
+		List<Customer> matches = new ArrayList<Customer>(Math.min(limit, 64));
+		if (prefix.isEmpty()) {
+			return matches;
+		}
+		List<Customer> found = new ArrayList<Customer>();
+		try (RowCursor rs = esql.openCursor(SEARCH_SQL, escapeLike(prefix) + "%", limit)) {
+			while (rs.next()) {
+				Customer customer = new Customer(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
+				found.add(customer);
+				add(customer);
+			}
+		}
+		Set<Integer> seen = new HashSet<Integer>();
+		// the space after a whole last name sorts before any letter, so exact
+		// last names come first
+		collect(this._byLast, prefix, limit, matches, seen);
+		collect(this._byFirst, prefix, limit, matches, seen);
+		// only needed before the directory is loaded, when add kept nothing
+		for (Customer customer : found) {
+			if (matches.size() < limit && seen.add(customer.id)) {
+				matches.add(customer);
+			}
+		}
+		return matches;
+	}
+
+	public Customer get(int id) {
+		return this._byId.get(id);
+	}
+
+	public int size() {
+		return this._byId.size();
+	}
+
+	private void put(Customer customer) {
+		String last = normalize(customer.lname);
+		String first = normalize(customer.fname);
+		this._byLast.put(last + " " + first + '\0' + customer.id, customer);
+		this._byFirst.put(first + " " + last + '\0' + customer.id, customer);
+		this._byId.put(customer.id, customer);
+	}
+
+	private void clear() {
+		this._byLast.clear();
+		this._byFirst.clear();
+		this._byId.clear();
+	}
+
+	private static void collect(ConcurrentSkipListMap<String, Customer> index, String prefix, int limit, List<Customer> matches, Set<Integer> seen) {
+		for (Map.Entry<String, Customer> e : index.tailMap(prefix).entrySet()) {
+			if (matches.size() >= limit || !e.getKey().startsWith(prefix)) {
+				return;
+			}
+			if (seen.add(e.getValue().id)) {
+				matches.add(e.getValue());
+			}
+		}
+	}
+
+	static String escapeLike(String text) {
+		return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	static String normalize(String name) {
+		return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+}
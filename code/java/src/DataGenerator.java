@@ -0,0 +1,400 @@
+/*
+ * Synthetic data generator for the Mechanic Shop
+ * ===============================================
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class defines a generator of data sets in the format of the seed
+ * files in code/data, at any scale. Scale 1 has the size of the seed data:
+ * 500 customers, 250 mechanics, 5000 cars and 30000 service requests, of
+ * which a fraction is closed. Names, addresses, makes, models, complaints
+ * and comments are drawn from the seed files.
+ *
+ * The data is skewed like a real shop's: cars are assigned to owners and
+ * service requests to cars with a power law, so a few customers own many
+ * cars and a few VINs are serviced very often. Newer cars are more common,
+ * odometers grow with age and bills are log-normal. Closed requests are
+ * closed a few days after they were opened.
+ *
+ * Every row is generated from its own random source, seeded with the data
+ * set seed and the row number. Rows are rendered in blocks on parallel
+ * threads and written in order, so a seed gives the same files whatever
+ * the number of threads, and a row that refers to another (an ownership to
+ * its car and owner, a request to its car, a closed request to its request)
+ * recomputes it instead of keeping it in memory.
+ *
+ */
+public class DataGenerator {
+	static final int CUSTOMERS = 500;
+	static final int MECHANICS = 250;
+	static final int CARS = 5000;
+	static final int REQUESTS = 30000;
+	static final int BLOCK_ROWS = 1 << 14;
+	static final String NEWLINE = "\r\n";
+	static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	// coprime with 10^10, so the VIN digits of different cars never repeat
+	static final long VIN_MULTIPLIER = 6180339887L;
+	static final long VIN_DIGITS = 10000000000L;
+
+	// random streams, one per kind of row
+	static final long CUSTOMER = 1;
+	static final long MECHANIC = 2;
+	static final long CAR = 3;
+	static final long OWNER = 4;
+	static final long REQUEST = 5;
+	static final long CLOSE = 6;
+	static final long YEAR = 7;
+	static final long VIN = 8;
+
+	/**
+	 * Renders one row into the block being built.
+	 */
+	interface Row {
+		void write(StringBuilder out, long i);
+	}
+
+	/**
+	 * One service request, recomputed wherever it is needed.
+	 */
+	private static class Request {
+		long car;
+		LocalDate date;
+		int odometer;
+		String complaint;
+		boolean closed;
+	}//end Request
+
+	private final long _seed;
+	private final long _customers;
+	private final long _mechanics;
+	private final long _cars;
+	private final long _requests;
+	private final double _closed;
+	private final double _skew;
+	private final LocalDate _from;
+	private final int _days;
+	private final int _threads;
+
+	private final String[] _fnames;
+	private final String[] _lnames;
+	private final String[] _streets;
+	private final String[][] _models;
+	private final String[] _complaints;
+	private final String[] _comments;
+
+	public DataGenerator(File seedDir, double scale, long seed, double closed, double skew, LocalDate from, LocalDate to, int threads) throws IOException {
+		this._seed = seed;
+		this._customers = Math.max(1, Math.round(CUSTOMERS * scale));
+		this._mechanics = Math.max(1, Math.round(MECHANICS * scale));
+		this._cars = Math.max(1, Math.round(CARS * scale));
+		this._requests = Math.round(REQUESTS * scale);
+		this._closed = closed;
+		this._skew = skew;
+		this._from = from;
+		this._days = (int) Math.max(1, to.toEpochDay() - from.toEpochDay() + 1);
+		this._threads = threads;
+
+		List<String[]> customers = read(new File(seedDir, "customer.csv"), 5);
+		this._fnames = column(customers, 1);
+		this._lnames = column(customers, 2);
+		List<String> streets = new ArrayList<String>();
+		for (String[] c : customers) {
+			// the address without its house number
+			streets.add(c[4].replaceFirst("^\\d+\\s*", ""));
+		}
+		this._streets = distinct(streets);
+		List<String[]> cars = read(new File(seedDir, "car.csv"), 4);
+		Set<String> models = new LinkedHashSet<String>();
+		for (String[] c : cars) {
+			models.add(c[1] + "," + c[2]);
+		}
+		this._models = new String[models.size()][];
+		int m = 0;
+		for (String model : models) {
+			this._models[m++] = model.split(",", 2);
+		}
+		this._complaints = column(read(new File(seedDir, "service_request.csv"), 6), 5);
+		this._comments = column(read(new File(seedDir, "closed_request.csv"), 6), 4);
+	}
+
+	/**
+	 * Method to run the generator from the command line.
+	 *
+	 * @param args outDir [--scale s] [--seed n] [--closed fraction] [--skew x]
+	 *             [--from yyyy-mm-dd] [--to yyyy-mm-dd] [--threads n] [--seed-data dir]
+	 */
+	public static void main(String[] args) {
+		String out = null;
+		String seedDir = "../data";
+		double scale = 1;
+		long seed = 1;
+		double closed = 0.95;
+		double skew = 2.0;
+		LocalDate from = LocalDate.of(2012, 1, 1);
+		LocalDate to = LocalDate.of(2016, 12, 31);
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				boolean hasValue = i + 1 < args.length;
+				if (args[i].equals("--scale") && hasValue) {
+					scale = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--seed") && hasValue) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--closed") && hasValue) {
+					closed = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--skew") && hasValue) {
+					skew = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--from") && hasValue) {
+					from = LocalDate.parse(args[++i]);
+				} else if (args[i].equals("--to") && hasValue) {
+					to = LocalDate.parse(args[++i]);
+				} else if (args[i].equals("--threads") && hasValue) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--seed-data") && hasValue) {
+					seedDir = args[++i];
+				} else {
+					out = args[i];
+				}
+			}
+			if (out == null || scale <= 0 || closed < 0 || closed > 1 || skew < 1 || to.isBefore(from)) {
+				System.err.println("Usage: java -cp bin/ DataGenerator <outDir> [--scale s] [--seed n] [--closed fraction] [--skew x>=1]\n" +
+					"                     [--from yyyy-mm-dd] [--to yyyy-mm-dd] [--threads n] [--seed-data dir]");
+				System.exit(1);
+			}
+			new DataGenerator(new File(seedDir), scale, seed, closed, skew, from, to, Math.max(1, threads)).generate(new File(out));
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Method to write the six data files into a directory.
+	 *
+	 * @param dir the directory, created when missing
+	 * @throws java.lang.Exception when a file cannot be written
+	 */
+	public void generate(File dir) throws Exception {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir.getPath());
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		try {
+			write(workers, new File(dir, "customer.csv"), this._customers, this::customer);
+			write(workers, new File(dir, "mechanic.csv"), this._mechanics, this::mechanic);
+			write(workers, new File(dir, "car.csv"), this._cars, this::car);
+			write(workers, new File(dir, "owns.csv"), this._cars, this::owns);
+			write(workers, new File(dir, "service_request.csv"), this._requests, this::serviceRequest);
+			write(workers, new File(dir, "closed_request.csv"), this._requests, this::closedRequest);
+		} finally {
+			workers.shutdown();
+		}
+		System.out.println("Generated " + this._customers + " customers, " + this._mechanics + " mechanics, " + this._cars + " cars and " +
+			this._requests + " service requests in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Method to write one file, rendering blocks of rows on the worker
+	 * threads and writing them in order.  At most two blocks per thread
+	 * are held in memory.
+	 */
+	private void write(ExecutorService workers, File file, long rows, Row row) throws IOException, InterruptedException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			for (long first = 0; first < rows; first += BLOCK_ROWS) {
+				final long from = first;
+				final long to = Math.min(rows, first + BLOCK_ROWS);
+				pending.add(workers.submit(() -> {
+					StringBuilder block = new StringBuilder((int) (to - from) * 64);
+					for (long i = from; i < to; ++i) {
+						row.write(block, i);
+					}
+					return block.toString().getBytes(StandardCharsets.UTF_8);
+				}));
+				if (pending.size() >= 2 * this._threads) {
+					writeNext(out, pending, file);
+				}
+			}
+			while (!pending.isEmpty()) {
+				writeNext(out, pending, file);
+			}
+		}
+	}
+
+	private static void writeNext(OutputStream out, ArrayDeque<Future<byte[]>> pending, File file) throws IOException, InterruptedException {
+		try {
+			out.write(pending.poll().get());
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot generate " + file.getName() + ": " + e.getCause(), e.getCause());
+		}
+	}
+
+	private void customer(StringBuilder out, long i) {
+		SplittableRandom r = random(CUSTOMER, i);
+		out.append(i).append(',').append(pick(r, this._fnames)).append(',').append(pick(r, this._lnames)).append(",(")
+			.append(100 + r.nextInt(900)).append(')').append(100 + r.nextInt(900)).append('-');
+		digits(out, r.nextInt(10000), 4);
+		out.append(',').append(1 + r.nextInt(9999)).append(' ').append(pick(r, this._streets)).append(NEWLINE);
+	}
+
+	private void mechanic(StringBuilder out, long i) {
+		SplittableRandom r = random(MECHANIC, i);
+		out.append(i).append(',').append(pick(r, this._fnames)).append(',').append(pick(r, this._lnames)).append(',')
+			.append(1 + r.nextInt(40)).append(NEWLINE);
+	}
+
+	private void car(StringBuilder out, long i) {
+		SplittableRandom r = random(CAR, i);
+		String[] model = pick(r, this._models);
+		vin(out, i);
+		out.append(',').append(model[0]).append(',').append(model[1]).append(',').append(year(i)).append(NEWLINE);
+	}
+
+	private void owns(StringBuilder out, long i) {
+		out.append(i).append(',').append(owner(i)).append(',');
+		vin(out, i);
+		out.append(NEWLINE);
+	}
+
+	private void serviceRequest(StringBuilder out, long i) {
+		Request q = request(i);
+		out.append(i).append(',').append(owner(q.car)).append(',');
+		vin(out, q.car);
+		out.append(',');
+		date(out, q.date);
+		out.append(',').append(q.odometer).append(',').append(q.complaint).append(NEWLINE);
+	}
+
+	private void closedRequest(StringBuilder out, long i) {
+		Request q = request(i);
+		if (!q.closed) {
+			return;
+		}
+		SplittableRandom r = random(CLOSE, i);
+		// most requests are closed within a week
+		long days = (long) (-Math.log(1 - r.nextDouble()) * 3);
+		int bill = (int) Math.max(1, Math.min(100000, Math.round(Math.exp(Math.log(250) + 0.9 * gaussian(r)))));
+		out.append(i).append(',').append(i).append(',').append(r.nextLong(this._mechanics)).append(',');
+		date(out, q.date.plusDays(days));
+		out.append(',').append(pick(r, this._comments)).append(',').append(bill).append(NEWLINE);
+	}
+
+	// a few customers own many cars
+	private long owner(long car) {
+		return skewed(random(OWNER, car).nextDouble(), this._customers);
+	}
+
+	// newer cars are more common: half are at most 12 years older than the newest
+	private int year(long car) {
+		return 2017 - (int) (47 * Math.pow(random(YEAR, car).nextDouble(), 2));
+	}
+
+	private Request request(long i) {
+		SplittableRandom r = random(REQUEST, i);
+		Request q = new Request();
+		// a few VINs are serviced very often
+		q.car = skewed(r.nextDouble(), this._cars);
+		q.date = this._from.plusDays(r.nextInt(this._days));
+		int age = Math.max(0, q.date.getYear() - year(q.car)) + 1;
+		q.odometer = 1 + r.nextInt(Math.min(300000, age * 15000));
+		q.complaint = pick(r, this._complaints);
+		q.closed = r.nextDouble() < this._closed;
+		return q;
+	}
+
+	// an index below n, with low indexes drawn far more often as the skew grows
+	private long skewed(double u, long n) {
+		return Math.min(n - 1, (long) (n * Math.pow(u, this._skew)));
+	}
+
+	private SplittableRandom random(long stream, long row) {
+		return new SplittableRandom(this._seed * 0x9e3779b97f4a7c15L + (stream << 48) + row);
+	}
+
+	// six letters and ten digits, as in the seed data; the digits are unique per car
+	private void vin(StringBuilder out, long car) {
+		SplittableRandom r = random(VIN, car);
+		for (int k = 0; k < 6; ++k) {
+			out.append(LETTERS.charAt(r.nextInt(LETTERS.length())));
+		}
+		digits(out, Math.floorMod(car * VIN_MULTIPLIER + this._seed, VIN_DIGITS), 10);
+	}
+
+	private static void date(StringBuilder out, LocalDate d) {
+		out.append(d.getMonthValue()).append('/').append(d.getDayOfMonth()).append('/').append(d.getYear()).append(" 00:00");
+	}
+
+	private static void digits(StringBuilder out, long value, int width) {
+		String s = Long.toString(value);
+		for (int k = s.length(); k < width; ++k) {
+			out.append('0');
+		}
+		out.append(s);
+	}
+
+	private static double gaussian(SplittableRandom r) {
+		return Math.sqrt(-2 * Math.log(1 - r.nextDouble())) * Math.cos(2 * Math.PI * r.nextDouble());
+	}
+
+	private static <T> T pick(SplittableRandom r, T[] values) {
+		return values[r.nextInt(values.length)];
+	}
+
+	private static List<String[]> read(File file, int columns) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",", columns);
+				if (fields.length == columns) {
+					rows.add(fields);
+				}
+			}
+		}
+		if (rows.isEmpty()) {
+			throw new IOException("No rows in seed file " + file.getPath());
+		}
+		return rows;
+	}
+
+	private static String[] column(List<String[]> rows, int col) {
+		List<String> values = new ArrayList<String>(rows.size());
+		for (String[] row : rows) {
+			values.add(row[col]);
+		}
+		return distinct(values);
+	}
+
+	private static String[] distinct(List<String> values) {
+		Set<String> set = new LinkedHashSet<String>();
+		for (String v : values) {
+			if (!v.trim().isEmpty()) {
+				set.add(v);
+			}
+		}
+		return set.toArray(new String[set.size()]);
+	}
+}
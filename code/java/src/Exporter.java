@@ -0,0 +1,259 @@
+/*
+ * CSV export for the Mechanic Shop
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class defines the export of tables and reports to CSV files. Each
+ * export is a COPY ... TO STDOUT whose bytes the driver hands straight to a
+ * buffered, optionally gzip-compressed, file stream, so no row is ever
+ * turned into Java objects. Exports run in parallel on their own pooled
+ * connections, all reading one snapshot exported by a coordinating
+ * transaction, so the files are consistent with each other as if taken
+ * at a single instant.
+ *
+ */
+public class Exporter {
+	static final int EXPORT_BUFFER_SIZE = 1 << 16;
+
+	// report 9 over every car with open requests, as the in-memory counts answer it
+	static final String REPORT_MOST_SERVICED_CARS_SQL =
+		"SELECT car.make, car.model, open.amt_service " +
+		"FROM Car car, (SELECT S.car_vin, COUNT(*) AS amt_service " +
+			"FROM Service_Request S " +
+			"WHERE S.status = 'W' " +
+			"GROUP BY S.car_vin) open " +
+		"WHERE car.vin = open.car_vin " +
+		"ORDER BY open.amt_service DESC, car.vin";
+
+	// what can be exported, by name; the largest tables first so they start early
+	static final Map<String, String> TABLES = new LinkedHashMap<String, String>();
+	static final Map<String, String> REPORTS = new LinkedHashMap<String, String>();
+	static {
+		for (BulkLoader.TableLoad t : new BulkLoader.TableLoad[] {
+				BulkLoader.CLOSED_REQUEST, BulkLoader.SERVICE_REQUEST, BulkLoader.OWNS,
+				BulkLoader.CAR, BulkLoader.CUSTOMER, BulkLoader.MECHANIC }) {
+			TABLES.put(t.table, t.table + " (" + t.columns + ")");
+		}
+		REPORTS.put("bills-under-100", "(" + MechanicShop.REPORT_BILL_LESS_THAN_100_SQL + ")");
+		REPORTS.put("customers-over-20-cars", "(" + MechanicShop.REPORT_MORE_THAN_20_CARS_SQL + ")");
+		REPORTS.put("cars-before-1995", "(" + MechanicShop.REPORT_CARS_BEFORE_1995_SQL + ")");
+		REPORTS.put("most-serviced-cars", "(" + REPORT_MOST_SERVICED_CARS_SQL + ")");
+		REPORTS.put("total-bills", "(" + MechanicShop.REPORT_TOTAL_BILL_SQL + ")");
+	}
+
+	/**
+	 * Counts the bytes handed to the file, before compression.
+	 */
+	static class CountingStream extends FilterOutputStream {
+		long bytes = 0;
+
+		CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			++this.bytes;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.bytes += len;
+		}
+	}//end CountingStream
+
+	private final MechanicShop _esql;
+	private final File _outDir;
+	private final boolean _gzip;
+	private final int _threads;
+
+	public Exporter(MechanicShop esql, File outDir, boolean gzip, int threads) {
+		this._esql = esql;
+		this._outDir = outDir;
+		this._gzip = gzip;
+		this._threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Method to run the command line form of the export.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: outDir [name ...] [--gzip] [--threads n]
+	 * @throws java.lang.Exception when an export fails
+	 */
+	public static void run(MechanicShop esql, String[] args) throws Exception {
+		File outDir = null;
+		boolean gzip = false;
+		// the coordinating transaction holds one connection
+		int threads = Math.max(1, Integer.getInteger("shop.pool.max", ConnectionPool.DEFAULT_MAX_SIZE) - 1);
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("--gzip")) {
+				gzip = true;
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (outDir == null) {
+				outDir = new File(args[i]);
+			} else {
+				names.add(args[i]);
+			}
+		}
+		if (outDir == null) {
+			throw new IllegalArgumentException("Usage: export <outDir> [table|report|tables|reports|all ...] [--gzip] [--threads n]");
+		}
+		new Exporter(esql, outDir, gzip, threads).export(expand(names.isEmpty() ? Arrays.asList("all") : names));
+	}
+
+	// resolves the names and the tables, reports and all groups to COPY sources
+	static Map<String, String> expand(List<String> names) {
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		for (String name : names) {
+			if (name.equals("tables") || name.equals("all")) {
+				sources.putAll(TABLES);
+			}
+			if (name.equals("reports") || name.equals("all")) {
+				sources.putAll(REPORTS);
+			}
+			if (TABLES.containsKey(name)) {
+				sources.put(name, TABLES.get(name));
+			} else if (REPORTS.containsKey(name)) {
+				sources.put(name, REPORTS.get(name));
+			} else if (!name.equals("tables") && !name.equals("reports") && !name.equals("all")) {
+				throw new IllegalArgumentException("Nothing to export named " + name + "; expected one of " + TABLES.keySet() + " or " + REPORTS.keySet());
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Method to export every source to &lt;outDir&gt;/&lt;name&gt;.csv, or .csv.gz,
+	 * from one snapshot.
+	 *
+	 * @param sources the COPY source of each file, by name
+	 * @throws java.lang.Exception when an export fails; no partial file is left
+	 */
+	public void export(Map<String, String> sources) throws Exception {
+		Files.createDirectories(this._outDir.toPath());
+		long start = System.currentTimeMillis();
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		Connection c = conn.connection();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(this._threads, Math.max(1, sources.size())));
+		try {
+			// the snapshot lives as long as this transaction
+			c.setAutoCommit(false);
+			String snapshot;
+			try (Statement stmt = c.createStatement()) {
+				stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+				try (ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()")) {
+					rs.next();
+					snapshot = rs.getString(1);
+				}
+			}
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (Map.Entry<String, String> source : sources.entrySet()) {
+				results.add(workers.submit(() -> exportOne(source.getKey(), source.getValue(), snapshot)));
+			}
+			// a failure skips the exports not started yet and waits for the others
+			Exception failure = null;
+			for (Future<Long> result : results) {
+				try {
+					result.get();
+				} catch (CancellationException e) {
+					// skipped after a failure
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+						for (Future<Long> other : results) {
+							other.cancel(false);
+						}
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			workers.shutdown();
+			MechanicShop.endReadTransaction(c);
+			this._esql.release();
+		}
+		System.out.println("Exported " + sources.size() + " files to " + this._outDir.getPath() + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Method to stream one table or report into its file.
+	 *
+	 * @param name the file name, without extension
+	 * @param source the table and columns, or the parenthesized query
+	 * @param snapshot the snapshot to read, or null for the current data
+	 * @return the number of rows exported
+	 * @throws java.lang.Exception when the COPY or the file fails
+	 */
+	long exportOne(String name, String source, String snapshot) throws Exception {
+		File file = new File(this._outDir, name + (this._gzip ? ".csv.gz" : ".csv"));
+		File tmp = new File(this._outDir, file.getName() + ".tmp");
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		Connection c = conn.connection();
+		try {
+			c.setAutoCommit(false);
+			if (snapshot != null) {
+				try (Statement stmt = c.createStatement()) {
+					stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+					stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+				}
+			}
+			long start = System.currentTimeMillis();
+			String sql = "COPY " + source + " TO STDOUT WITH (FORMAT csv, HEADER)";
+			Metrics.Call call = this._esql.metrics().call(sql);
+			long rows;
+			CountingStream out = new CountingStream(this._gzip
+				? new GZIPOutputStream(Files.newOutputStream(tmp.toPath()), EXPORT_BUFFER_SIZE)
+				: new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), EXPORT_BUFFER_SIZE));
+			try {
+				rows = c.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+			} finally {
+				out.close();
+			}
+			call.done(rows, out.bytes);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("\t" + name + ": " + rows + " rows, " + file.length() + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+			return rows;
+		} catch (Exception e) {
+			Files.deleteIfExists(tmp.toPath());
+			throw e;
+		} finally {
+			MechanicShop.endReadTransaction(c);
+			this._esql.release();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Hi/lo id allocator for the Mechanic Shop tables
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class defines a client-side allocator for the generated ids. Every
+ * nextval on one of the id sequences reserves BLOCK_SIZE consecutive ids,
+ * which are then handed out from memory with a single atomic increment.
+ * The database is only contacted when a block runs out, and batch callers
+ * can reserve many blocks in one round trip.
+ *
+ */
+public class IdAllocator {
+	// must match the INCREMENT BY of the sequences in migrations/V1__sequences.sql
+	public static final int BLOCK_SIZE = 50;
+
+	public static final String CUSTOMER = "cust_id_seq";
+	public static final String MECHANIC = "mech_id_seq";
+	public static final String OWNS = "owns_id_seq";
+	public static final String SERVICE_REQUEST = "serv_rid_seq";
+	public static final String CLOSED_REQUEST = "clos_wid_seq";
+
+	static final String RESERVE_SQL = "SELECT nextval(?::regclass) FROM generate_series(1, ?)";
+	// sequence, table and id column; the same setval as migrations/V1__sequences.sql
+	static final String[][] ID_COLUMNS = {
+		{ CUSTOMER, "customer", "id" },
+		{ MECHANIC, "mechanic", "id" },
+		{ OWNS, "owns", "ownership_id" },
+		{ SERVICE_REQUEST, "service_request", "rid" },
+		{ CLOSED_REQUEST, "closed_request", "wid" },
+	};
+	static final String RESTART_SQL =
+		"SELECT setval('%1$s', GREATEST(" +
+			"(SELECT COALESCE(MAX(%3$s), 0) + 1 FROM %2$s), " +
+			"(SELECT last_value + CASE WHEN is_called THEN " + BLOCK_SIZE + " ELSE 0 END FROM %1$s)), false)";
+
+	/**
+	 * A reserved range of ids [next, end).
+	 */
+	private static class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long start) {
+			this.next = new AtomicLong(start);
+			this.end = start + BLOCK_SIZE;
+		}
+	}//end Block
+
+	private final MechanicShop _esql;
+	private final ConcurrentHashMap<String, AtomicReference<Block>> _blocks = new ConcurrentHashMap<String, AtomicReference<Block>>();
+
+	public IdAllocator(MechanicShop esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to hand out the next id of a sequence. Only the thread that
+	 * finds the current block exhausted goes to the database.
+	 *
+	 * @param sequence the id sequence, e.g. IdAllocator.CUSTOMER
+	 * @return an id no other caller will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int next(String sequence) throws SQLException {
+		AtomicReference<Block> current = this._blocks.computeIfAbsent(sequence, s -> new AtomicReference<Block>());
+		while (true) {
+			Block block = current.get();
+			if (block != null) {
+				long id = block.next.getAndIncrement();
+				if (id < block.end) {
+					return (int) id;
+				}
+			}
+			synchronized (current) {
+				if (current.get() == block) {
+					current.set(new Block(reserve(sequence, 1)[0]));
+				}
+			}
+		}
+	}//end next
+
+	/**
+	 * Method to hand out many ids of a sequence at once, reserving every
+	 * block they need in a single round trip.
+	 *
+	 * @param sequence the id sequence, e.g. IdAllocator.SERVICE_REQUEST
+	 * @param count the number of ids wanted
+	 * @return count ids no other caller will receive
+	 * @throws java.sql.SQLException when the blocks cannot be reserved
+	 */
+	public int[] next(String sequence, int count) throws SQLException {
+		int[] ids = new int[count];
+		if (count == 0) {
+			return ids;
+		}
+		long[] starts = reserve(sequence, (count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		int n = 0;
+		for (long start : starts) {
+			for (int i = 0; i < BLOCK_SIZE && n < count; ++i) {
+				ids[n++] = (int) (start + i);
+			}
+		}
+		return ids;
+	}//end next
+
+	/**
+	 * Method to move every sequence past the ids in its table, never
+	 * backwards, after rows were loaded with their own ids. The blocks held
+	 * in memory are dropped, since loaded rows may use their ids.
+	 *
+	 * @throws java.sql.SQLException when a sequence cannot be moved
+	 */
+	public void restart() throws SQLException {
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		try (Statement stmt = conn.connection().createStatement()) {
+			for (String[] ids : ID_COLUMNS) {
+				stmt.execute(String.format(RESTART_SQL, (Object[]) ids));
+			}
+		} finally {
+			this._esql.release();
+		}
+		this._blocks.clear();
+	}
+
+	private long[] reserve(String sequence, int blocks) throws SQLException {
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		try {
+			PreparedStatement stmt = conn.statements().prepare(RESERVE_SQL);
+			StatementCache.bind(stmt, sequence, blocks);
+			long[] starts = new long[blocks];
+			Metrics.Call call = this._esql.metrics().call(RESERVE_SQL);
+			try (ResultSet rs = stmt.executeQuery()) {
+				for (int i = 0; i < blocks && rs.next(); ++i) {
+					starts[i] = rs.getLong(1);
+				}
+			}
+			call.done(blocks, 8L * blocks);
+			return starts;
+		} finally {
+			this._esql.release();
+		}
+	}
+}
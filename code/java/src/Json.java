@@ -0,0 +1,223 @@
+/*
+ * Minimal JSON support for the Mechanic Shop
+ * ==========================================
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class defines a small JSON reader and string quoting helper, enough
+ * for EXPLAIN plans and flat request bodies without an external library.
+ * Objects are read as LinkedHashMap, arrays as ArrayList, numbers as Double
+ * or Long, and true/false/null as Boolean or null.
+ *
+ */
+public class Json {
+	private final String _text;
+	private int _pos = 0;
+
+	private Json(String text) {
+		this._text = text;
+	}
+
+	/**
+	 * Method to parse a JSON document.
+	 *
+	 * @param text the JSON text
+	 * @return the parsed value
+	 * @throws java.lang.IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		Json reader = new Json(text);
+		Object value = reader.value();
+		reader.skipSpace();
+		if (reader._pos != text.length()) {
+			throw reader.error("Unexpected trailing characters");
+		}
+		return value;
+	}
+
+	/**
+	 * Method to quote a string as a JSON string literal.
+	 *
+	 * @param s the string, may be null
+	 * @return the quoted literal, or null
+	 */
+	public static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder out = new StringBuilder(s.length() + 2);
+		quote(out, s);
+		return out.toString();
+	}
+
+	public static void quote(StringBuilder out, String s) {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
+	private Object value() {
+		skipSpace();
+		if (this._pos >= this._text.length()) {
+			throw error("Unexpected end of input");
+		}
+		char c = this._text.charAt(this._pos);
+		switch (c) {
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': literal("true"); return Boolean.TRUE;
+			case 'f': literal("false"); return Boolean.FALSE;
+			case 'n': literal("null"); return null;
+			default: return number();
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		++this._pos;
+		skipSpace();
+		if (peek() == '}') {
+			++this._pos;
+			return map;
+		}
+		while (true) {
+			skipSpace();
+			String key = string();
+			skipSpace();
+			expect(':');
+			map.put(key, value());
+			skipSpace();
+			if (peek() == ',') {
+				++this._pos;
+			} else {
+				expect('}');
+				return map;
+			}
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> list = new ArrayList<Object>();
+		++this._pos;
+		skipSpace();
+		if (peek() == ']') {
+			++this._pos;
+			return list;
+		}
+		while (true) {
+			list.add(value());
+			skipSpace();
+			if (peek() == ',') {
+				++this._pos;
+			} else {
+				expect(']');
+				return list;
+			}
+		}
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder out = new StringBuilder();
+		while (true) {
+			if (this._pos >= this._text.length()) {
+				throw error("Unterminated string");
+			}
+			char c = this._text.charAt(this._pos++);
+			if (c == '"') {
+				return out.toString();
+			}
+			if (c != '\\') {
+				out.append(c);
+				continue;
+			}
+			char e = this._text.charAt(this._pos++);
+			switch (e) {
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'u':
+					out.append((char) Integer.parseInt(this._text.substring(this._pos, this._pos + 4), 16));
+					this._pos += 4;
+					break;
+				default: out.append(e);
+			}
+		}
+	}
+
+	private Object number() {
+		int start = this._pos;
+		boolean fraction = false;
+		while (this._pos < this._text.length()) {
+			char c = this._text.charAt(this._pos);
+			if (c == '.' || c == 'e' || c == 'E') {
+				fraction = true;
+			} else if (!(c == '-' || c == '+' || Character.isDigit(c))) {
+				break;
+			}
+			++this._pos;
+		}
+		String token = this._text.substring(start, this._pos);
+		try {
+			return fraction ? (Object) Double.valueOf(token) : (Object) Long.valueOf(token);
+		} catch (NumberFormatException e) {
+			throw error("Invalid value '" + token + "'");
+		}
+	}
+
+	private void literal(String word) {
+		if (!this._text.startsWith(word, this._pos)) {
+			throw error("Invalid literal");
+		}
+		this._pos += word.length();
+	}
+
+	private char peek() {
+		return this._pos < this._text.length() ? this._text.charAt(this._pos) : '\0';
+	}
+
+	private void expect(char c) {
+		if (peek() != c) {
+			throw error("Expected '" + c + "'");
+		}
+		++this._pos;
+	}
+
+	private void skipSpace() {
+		while (this._pos < this._text.length() && Character.isWhitespace(this._text.charAt(this._pos))) {
+			++this._pos;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + this._pos);
+	}
+}
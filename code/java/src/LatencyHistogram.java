@@ -0,0 +1,107 @@
+/*
+ * Latency histogram for the Mechanic Shop metrics
+ * ===============================================
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class defines a fixed-size, log-linear histogram of durations in the
+ * manner of HdrHistogram. Each power of two is split into 64 linear
+ * sub-buckets, so any recorded value is known to within about 1.6%, from a
+ * nanosecond up to centuries, in a fixed 30 KB. Recording is a few atomic
+ * increments and never locks, so many threads can record at once.
+ *
+ */
+public class LatencyHistogram {
+	static final int SUB_BITS = 6;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to record one duration.
+	 *
+	 * @param nanos the duration in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, nanos);
+		this._counts.incrementAndGet(index(v));
+		this._count.incrementAndGet();
+		this._sum.addAndGet(v);
+		this._max.accumulateAndGet(v, Math::max);
+	}
+
+	public long count() {
+		return this._count.get();
+	}
+
+	public long max() {
+		return this._max.get();
+	}
+
+	public double mean() {
+		long n = this._count.get();
+		return n == 0 ? 0 : (double) this._sum.get() / n;
+	}
+
+	/**
+	 * Method to read a percentile.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the largest value of the bucket holding the percentile, never
+	 *         above the largest value recorded, or 0 when nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += this._counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += this._counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), this._max.get());
+			}
+		}
+		return this._max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i) {
+			this._counts.set(i, 0);
+		}
+		this._count.set(0);
+		this._sum.set(0);
+		this._max.set(0);
+	}
+
+	// values below 64 are exact; above, the top seven bits of the value select the bucket
+	static int index(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int) v;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		int shift = exponent - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) - SUB_BUCKETS);
+	}
+
+	static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -15,21 +15,24 @@ import javax.swing.JOptionPane;
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
-import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.stream.IntStream;
-import java.time.format.DateTimeFormatter;  
-import java.time.LocalDateTime;   
+import java.sql.Date;
+import java.time.LocalDate;
 import java.util.Collections;
 
 /**
@@ -39,9 +42,127 @@ import java.util.Collections;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by every session
+	private ConnectionPool _pool = null;
+	//connection leased by the current thread, shared by nested operations
+	private final ThreadLocal<Lease> _lease = new ThreadLocal<Lease>();
+	//client-side allocator for the generated ids
+	private final IdAllocator _ids = new IdAllocator(this);
+	//VINs of the Car table, to skip the duplicate check for new VINs
+	private final VinFilter _vins = new VinFilter();
+	//customers by name, for the name lookups
+	private final CustomerDirectory _customers = new CustomerDirectory();
+	//rendered reports, dropped when the tables they read change
+	private final ReportCache _reports = new ReportCache();
+	//open service requests per car, fed by the open request queue
+	private final OpenServiceCounts _openServiceCounts = new OpenServiceCounts();
+	//open service requests, indexed by rid, vin and customer
+	private final OpenRequestQueue _openRequests = new OpenRequestQueue();
+	//latency histograms per operation and SQL shape
+	private final Metrics _metrics = new Metrics();
+	//calls slower than shop.slowlog.thresholdMs, with their plans
+	private SlowQueryLog _slowLog = null;
+	//reports run by the console, in the foreground or the background
+	private final ReportJobs _reportJobs = new ReportJobs(this);
+	//read replicas the reports run on, when shop.replica.urls is set
+	private ReplicaRouter _replicas = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	/*
+	 * SQL shapes issued by the menu operations. Values are bound to the ?
+	 * placeholders so each shape is parsed and planned once per connection.
+	 */
+	// rows fetched per round trip when streaming a result to the console
+	static final int DEFAULT_FETCH_SIZE = 1000;
+	// rows of reports 9 and 10 shown by the dashboard
+	static final int DEFAULT_DASHBOARD_LIMIT = 10;
+	static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+	// open requests listed per page when browsing for a request to close
+	static final int OPEN_REQUEST_PAGE_SIZE = 10;
+	// customers listed for a name lookup
+	static final int DEFAULT_MAX_MATCHES = 20;
+	// SQLState of a duplicate key
+	static final String UNIQUE_VIOLATION = "23505";
+
+	static final String INSERT_CUSTOMER_SQL = "INSERT INTO customer (id, fname, lname, phone, address) VALUES (?, ?, ?, ?, ?)";
+	static final String INSERT_MECHANIC_SQL = "INSERT INTO mechanic (id, fname, lname, experience) VALUES (?, ?, ?, ?)";
+	static final String INSERT_CAR_SQL = "INSERT INTO Car VALUES (?, ?, ?, ?)";
+	static final String INSERT_OWNS_SQL = "INSERT INTO owns (ownership_id, customer_id, car_vin) VALUES (?, ?, ?)";
+	static final String INSERT_SERVICE_REQUEST_SQL = "INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES (?, ?, ?, ?, ?, ?)";
+	// the partitioned tables cannot hold a foreign key to Service_Request(rid), so the
+	// request must exist, be opened by the closing date and still wait; the insert
+	// trigger of migrations/V5 then marks it closed
+	static final String INSERT_CLOSED_REQUEST_SQL =
+		"INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) " +
+		"SELECT v.* FROM (VALUES (?::integer, ?::integer, ?::integer, ?::date, ?::text, ?::integer)) v (wid, rid, mid, date, comment, bill) " +
+		"WHERE EXISTS (SELECT 1 FROM Service_Request S WHERE S.rid = v.rid AND S.date <= v.date AND S.status = 'W')";
+	static final String CAR_BY_VIN_SQL = "SELECT * FROM car WHERE vin = ?";
+	static final String CARS_OWNED_SQL = "SELECT C.vin, C.make, C.model, C.year FROM Car C, Owns O WHERE O.customer_id = ? AND O.car_vin = C.vin";
+	static final String OPEN_REQUESTS_SQL =
+		"SELECT S.rid, S.customer_id, S.car_vin, S.date, S.odometer, S.complain FROM Service_Request S WHERE S.status = 'W'";
+	static final String MECHANIC_BY_ID_SQL = "SELECT M.id FROM Mechanic M WHERE M.id = ?";
+
+	// tables read by each cached report
+	static final String[] REPORT_BILL_LESS_THAN_100_TABLES = { "closed_request" };
+	static final String[] REPORT_MORE_THAN_20_CARS_TABLES = { "customer", "owns" };
+	static final String[] REPORT_CARS_BEFORE_1995_TABLES = { "car", "service_request" };
+	static final String[] REPORT_TOTAL_BILL_TABLES = { "customer_bill_total", "customer" };
+	static final String[] REPORT_TOTAL_BILL_WINDOW_TABLES = { "closed_request", "service_request", "customer" };
+
+	static final String REPORT_BILL_LESS_THAN_100_SQL =
+		"SELECT cr.date, cr.comment, cr.bill " +
+		"FROM Closed_Request cr " +
+		"WHERE cr.bill < 100";
+	static final String REPORT_MORE_THAN_20_CARS_SQL =
+		"SELECT c.fname, c.lname " +
+		"FROM Customer c, Owns O " +
+		"WHERE c.id = o.customer_id " +
+		"GROUP BY c.id " +
+		"HAVING COUNT(*) > 20";
+	static final String REPORT_CARS_BEFORE_1995_SQL =
+		"SELECT DISTINCT Car.make, Car.model, Car.year " +
+		"FROM Car " +
+		"WHERE Car.vin = Any( " +
+			"SELECT S.car_vin " +
+			"FROM Service_Request S " +
+			"WHERE S.odometer < 50000 " +
+			"INTERSECT " +
+			"SELECT C.vin " +
+			"FROM Car C " +
+			"WHERE C.year < 1995)";
+	// running totals kept by CloseServiceRequest, read in order from customer_bill_total_total_idx
+	static final String REPORT_TOTAL_BILL_SQL =
+		"SELECT c.fname , c.lname, bill_total.total " +
+		"FROM customer_bill_total bill_total, Customer c " +
+		"WHERE c.id=bill_total.customer_id " +
+		"ORDER BY bill_total.total DESC, bill_total.customer_id";
+	static final String REPORT_TOP_N_TOTAL_BILL_SQL = REPORT_TOTAL_BILL_SQL + " LIMIT ?";
+	// the date-range forms of reports 6 and 10 only read the partitions of the range,
+	// from the first date to before the second; a request is opened before it is closed
+	static final String REPORT_BILL_LESS_THAN_100_WINDOW_SQL = REPORT_BILL_LESS_THAN_100_SQL + " AND cr.date >= ? AND cr.date < ?";
+	static final String REPORT_TOTAL_BILL_WINDOW_SQL =
+		"SELECT c.fname, c.lname, SUM(cr.bill) AS total " +
+		"FROM Closed_Request cr, Service_Request sr, Customer c " +
+		"WHERE cr.rid = sr.rid AND sr.customer_id = c.id " +
+		"AND cr.date >= ? AND cr.date < ? AND sr.date < ? " +
+		"GROUP BY c.id " +
+		"ORDER BY total DESC, c.id";
+	static final String REPORT_TOP_N_TOTAL_BILL_WINDOW_SQL = REPORT_TOTAL_BILL_WINDOW_SQL + " LIMIT ?";
+	// creates this year's and next year's request partitions when missing
+	static final String ENSURE_PARTITIONS_SQL =
+		"SELECT shop_ensure_partitions('service_request', y, y + 1), shop_ensure_partitions('closed_request', y, y + 1) " +
+		"FROM (SELECT extract(year FROM current_date)::integer AS y) this_year";
+	static final String ADD_BILL_TOTAL_SQL =
+		"INSERT INTO customer_bill_total (customer_id, total) " +
+		"SELECT S.customer_id, ? FROM Service_Request S WHERE S.rid = ? " +
+		"ON CONFLICT (customer_id) DO UPDATE SET total = customer_bill_total.total + EXCLUDED.total";
+	static final String REBUILD_BILL_TOTALS_SQL =
+		"TRUNCATE customer_bill_total; " +
+		"INSERT INTO customer_bill_total (customer_id, total) " +
+		"SELECT sr.customer_id, SUM(cr.bill) " +
+		"FROM Closed_Request cr, Service_Request sr " +
+		"WHERE cr.rid = sr.rid " +
+		"GROUP BY sr.customer_id";
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -51,7 +172,11 @@ public class MechanicShop{
 			System.out.println ("Connection URL: " + url + "\n");
 			
 			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._pool = new ConnectionPool(url, user, passwd);
+	        this._replicas = ReplicaRouter.fromProperties(this, dbname, user, passwd);
+	        this._metrics.start();
+	        this._slowLog = SlowQueryLog.fromProperties(this);
+	        this._metrics.slowLog(this._slowLog);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -60,65 +185,429 @@ public class MechanicShop{
 		}
 	}
 	
+	/**
+	 * A pooled connection leased by one thread. Nested operations on the
+	 * same thread share it so they run in a single database session.
+	 */
+	private static class Lease {
+		// the primary's pool, or a replica's for a report
+		final ConnectionPool pool;
+		final ConnectionPool.PooledConnection conn;
+		int depth = 1;
+		// open beginTransaction calls; nested transactions join the outermost
+		int transactions = 0;
+		boolean rollbackOnly = false;
+		final List<Runnable> afterCommit = new ArrayList<Runnable>();
+
+		Lease(ConnectionPool pool, ConnectionPool.PooledConnection conn) {
+			this.pool = pool;
+			this.conn = conn;
+		}
+	}//end Lease
+
+	/**
+	 * Method to lease a pooled connection for the current thread.  Nested
+	 * calls return the connection already leased, so an operation and every
+	 * operation it calls share one session.  Each acquire must be paired
+	 * with a release.
+	 *
+	 * @return the connection leased by the current thread
+	 * @throws java.sql.SQLException when no connection becomes available
+	 */
+	public ConnectionPool.PooledConnection acquire() throws SQLException {
+		Lease lease = this._lease.get();
+		if (lease != null) {
+			++lease.depth;
+			return lease.conn;
+		}
+		lease = new Lease(this._pool, this._pool.borrow());
+		this._lease.set(lease);
+		return lease.conn;
+	}//end acquire
+
+	/**
+	 * Method to release the connection leased by the current thread.  The
+	 * connection goes back to the pool when the outermost lease ends.
+	 */
+	public void release() {
+		Lease lease = this._lease.get();
+		if (lease == null) {
+			return;
+		}
+		if (--lease.depth == 0) {
+			this._lease.remove();
+			lease.pool.giveBack(lease.conn);
+		}
+	}//end release
+
+	/**
+	 * Method to start a transaction on the connection leased by the current
+	 * thread, leasing one if needed.  A transaction started while another is
+	 * open joins it, and only the outermost commit reaches the database.
+	 * Each begin must be paired with a commitTransaction or
+	 * rollbackTransaction.
+	 *
+	 * @throws java.sql.SQLException when the transaction cannot be started
+	 */
+	public void beginTransaction() throws SQLException {
+		ConnectionPool.PooledConnection conn = acquire ();
+		Lease lease = this._lease.get();
+		if (lease.transactions == 0) {
+			try {
+				conn.connection ().setAutoCommit (false);
+			} catch (SQLException e) {
+				release ();
+				throw e;
+			}
+			lease.rollbackOnly = false;
+		}
+		++lease.transactions;
+	}//end beginTransaction
+
+	/**
+	 * Method to commit the current transaction.  When it is the outermost
+	 * transaction its work is committed, or rolled back if a nested
+	 * transaction was rolled back, and the afterCommit actions run.
+	 *
+	 * @throws java.sql.SQLException when the commit fails; the work is rolled back
+	 */
+	public void commitTransaction() throws SQLException {
+		Lease lease = this._lease.get();
+		try {
+			if (--lease.transactions > 0) {
+				return;
+			}
+			Connection connection = lease.conn.connection ();
+			if (lease.rollbackOnly) {
+				lease.afterCommit.clear();
+				endReadTransaction (connection);
+				throw new SQLException("Transaction rolled back by a nested transaction");
+			}
+			try {
+				connection.commit ();
+				connection.setAutoCommit (true);
+			} catch (SQLException e) {
+				lease.afterCommit.clear();
+				endReadTransaction (connection);
+				throw e;
+			}
+			List<Runnable> actions = new ArrayList<Runnable>(lease.afterCommit);
+			lease.afterCommit.clear();
+			for (Runnable action : actions) {
+				action.run();
+			}
+		} finally {
+			release ();
+		}
+	}//end commitTransaction
+
+	/**
+	 * Method to roll back the current transaction.  A nested rollback marks
+	 * the outermost transaction so its commit rolls back as well.
+	 */
+	public void rollbackTransaction() {
+		Lease lease = this._lease.get();
+		if (lease == null || lease.transactions == 0) {
+			return;
+		}
+		if (--lease.transactions > 0) {
+			lease.rollbackOnly = true;
+		} else {
+			lease.afterCommit.clear();
+			endReadTransaction (lease.conn.connection ());
+		}
+		release ();
+	}//end rollbackTransaction
+
+	/**
+	 * Method to defer an update of in-memory state until the current
+	 * transaction commits, so a rolled back write leaves it untouched.
+	 * Outside a transaction the action runs at once.
+	 *
+	 * @param action the update to run after commit
+	 */
+	public void afterCommit(Runnable action) {
+		Lease lease = this._lease.get();
+		if (lease == null || lease.transactions == 0) {
+			action.run();
+		} else {
+			lease.afterCommit.add(action);
+		}
+	}//end afterCommit
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  The statement is
+	 * prepared once per connection and the parameters are bound to it.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection conn = acquire ();
+		try {
+			// fetches the cached statement object
+			PreparedStatement stmt = conn.statements ().prepare (sql);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			StatementCache.bind (stmt, params);
+			Metrics.Call call = this._metrics.call (sql, params);
+			int rows = stmt.executeUpdate ();
+			call.done (rows, 0);
+			return rows;
+		} finally {
+			release ();
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out.  Rows are streamed through a server-side cursor, so only
+	 * shop.print.fetchSize rows are held in memory at a time, and they are
+	 * written through a buffered writer that is flushed once per fetch.
+	 * A fetch size of 0 loads the whole result at once.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryAndWriteResult (consoleWriter (), query, params);
+	}
 
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * write the results to the given writer in the format of
+	 * executeQueryAndPrintResult.
+	 * 
+	 * @param out the destination of the rows
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndWriteResult (PrintWriter out, String query, Object... params) throws SQLException {
 		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
+		return writeResult (out, openCursor (query, params));
+	}
+
+	// writes the rows of the cursor as tab-separated lines and closes it
+	private static int writeResult (PrintWriter out, RowCursor rs) throws SQLException {
+		try {
+			int numCol = rs.columnCount ();
+			int rowCount = 0;
+			int flushEvery = Math.max (1, Integer.getInteger ("shop.print.fetchSize", DEFAULT_FETCH_SIZE));
+			StringBuilder line = new StringBuilder (256);
 		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+			//iterates through the result set and output them to standard out.
+			boolean outputHeader = true;
+			while (rs.next()){
+				// a cancelled report stops between rows
+				if (Thread.interrupted ()) {
+					throw new SQLException ("Canceled", "57014");
+				}
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						line.append (rs.columnName(i)).append ('\t');
+				    }
+				    out.println (line);
+				    line.setLength (0);
+				    outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i)
+					line.append (rs.getString (i)).append ('\t');
+				out.println (line);
+				line.setLength (0);
+				if (++rowCount % flushEvery == 0) {
+					out.flush ();
+				}
+			}//end while
+			out.flush ();
+			return rowCount;
+		} finally {
+			rs.close ();
+		}
+	}
+
+	/**
+	 * Method to print a report through the report cache.  A report already
+	 * in the cache is printed from memory; otherwise the query runs as in
+	 * executeQueryAndPrintResult and its output is kept, unless too large,
+	 * until a write to one of the report's tables commits.
+	 * 
+	 * @param tables the tables the query reads
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void executeReportAndPrintResult (String[] tables, String query, Object... params) throws SQLException {
+		executeReportAndWriteResult (consoleWriter (), tables, query, params);
+	}
+
+	/**
+	 * Method to write a report through the report cache to the given
+	 * writer, as executeReportAndPrintResult prints it.
+	 * 
+	 * @param out the destination of the rows
+	 * @param tables the tables the query reads
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void executeReportAndWriteResult (PrintWriter out, String[] tables, String query, Object... params) throws SQLException {
+		String key = ReportCache.key (query, params);
+		String text = this._reports.get (key);
+		if (text != null) {
+			out.print (text);
+			out.flush ();
+			return;
+		}
+		long stamp = this._reports.stamp ();
+		ReportCache.Capture capture = new ReportCache.Capture (out, this._reports.maxChars () / 4);
+		writeResult (new PrintWriter (capture), openReportCursor (query, params));
+		this._reports.put (key, capture.text (), stamp, tables);
+	}
+
+	/**
+	 * Method to drop the cached reports that read the given tables once the
+	 * current transaction commits, or at once outside a transaction.
+	 *
+	 * @param tables the tables written
+	 */
+	public void tablesChanged (String... tables) {
+		afterCommit (() -> {
+			this._reports.invalidate (tables);
+			// later reports wait for a replica that replayed the write
+			if (this._replicas != null) {
+				this._replicas.wrote ();
+			}
+		});
+	}
+
+	private static PrintWriter consoleWriter () {
+		return new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), OUTPUT_BUFFER_SIZE));
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * return a lazy cursor over its rows.  Rows are fetched from a
+	 * server-side cursor shop.print.fetchSize at a time as the caller
+	 * advances.  The cursor keeps the connection leased until it is closed,
+	 * which must happen on the calling thread.  Inside a console report the
+	 * statement gets the report's query timeout and can be cancelled.
+	 * 
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openCursor (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection conn = acquire ();
+		int fetchSize = Math.max (0, Integer.getInteger ("shop.print.fetchSize", DEFAULT_FETCH_SIZE));
+		// the driver only uses a cursor inside a transaction
+		boolean cursor = false;
+		try {
+			cursor = fetchSize > 0 && conn.connection ().getAutoCommit ();
+			if (cursor) {
+				conn.connection ().setAutoCommit (false);
+			}
+			//fetches the cached statement object
+			PreparedStatement stmt = conn.statements ().prepare (query);
+			stmt.setFetchSize (fetchSize);
+
+			//issues the query instruction
+			StatementCache.bind (stmt, params);
+			ReportJobs.Job job = ReportJobs.current ();
+			stmt.setQueryTimeout (job == null ? 0 : job.timeoutSeconds);
+			if (job != null) {
+				job.running (stmt);
+			}
+			Metrics.Call call = this._metrics.call (query, params);
+			return new RowCursor (this, conn.connection (), stmt.executeQuery (), cursor, call);
+		} catch (SQLException e) {
+			ReportJobs.Job job = ReportJobs.current ();
+			if (job != null) {
+				job.running (null);
+			}
+			if (cursor) {
+				endReadTransaction (conn.connection ());
+			}
+			release ();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to open a cursor over a report, as openCursor does, on a read
+	 * replica when one is configured and fresh enough.  A thread that holds
+	 * a connection, inside a transaction say, reads on it instead, and a
+	 * replica that cannot be reached leaves the report to the primary.
+	 * 
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openReportCursor (String query, Object... params) throws SQLException {
+		ConnectionPool replica = this._replicas == null || this._lease.get () != null ? null : this._replicas.choose ();
+		if (replica == null) {
+			return openCursor (query, params);
+		}
+		try {
+			this._lease.set (new Lease (replica, replica.borrow ()));
+		} catch (SQLException e) {
+			this._replicas.failed (replica, e);
+			return openCursor (query, params);
+		}
+		RowCursor rs;
+		try {
+			rs = openCursor (query, params);
+		} catch (SQLException e) {
+			release ();
+			// connection errors, class 08, send the report to the primary
+			if (e.getSQLState () == null || !e.getSQLState ().startsWith ("08")) {
+				throw e;
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			this._replicas.failed (replica, e);
+			return openCursor (query, params);
+		}
+		// the cursor holds the replica's lease from here
+		release ();
+		return rs;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results column by
+	 * column, with integer columns unboxed and text columns dictionary
+	 * encoded.
+	 * 
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result as typed columns
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		try (RowCursor rs = openCursor (query, params)) {
+			return rs.toColumns ();
+		}
+	}
+
+	/*
+	 * Ends the read-only transaction opened for a cursor and puts the
+	 * connection back into autocommit mode.
+	 */
+	static void endReadTransaction (Connection connection) {
+		try {
+			connection.rollback ();
+			connection.setAutoCommit (true);
+		} catch (SQLException e) {
+			// the pool discards connections it cannot reset
+		}
 	}
 	
 	/**
@@ -126,131 +615,298 @@ public class MechanicShop{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection conn = acquire ();
+		try {
+			//fetches the cached statement object 
+			PreparedStatement stmt = conn.statements ().prepare (query); 
 		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+			//issues the query instruction 
+			StatementCache.bind (stmt, params);
+			Metrics.Call call = this._metrics.call (query, params);
+			ResultSet rs = stmt.executeQuery (); 
 	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
 	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			long bytes = 0;
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) {
+					String value = rs.getString (i);
+					bytes += value == null ? 0 : value.length ();
+					record.add(value); 
+				}
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			call.done (result.size (), bytes);
+			return result; 
+		} finally {
+			release ();
+		}
 	}//end executeQueryAndReturnResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, using ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection conn = acquire ();
+		try {
+			//fetches the cached statement object
+			PreparedStatement stmt = conn.statements ().prepare (query);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			StatementCache.bind (stmt, params);
+			Metrics.Call call = this._metrics.call (query, params);
+			ResultSet rs = stmt.executeQuery ();
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			call.done (rowCount, 0);
+			return rowCount;
+		} finally {
+			release ();
+		}
 	}
 	
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to access the allocator that hands out customer, mechanic,
+	 * ownership, service request and closed request ids.
+	 *
+	 * @return the shared id allocator
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public IdAllocator ids() {
+		return this._ids;
+	}
+
+	/**
+	 * Method to access the queue of open service requests, read from the
+	 * database on every lookup.
+	 *
+	 * @return the shared open request queue
+	 */
+	public OpenRequestQueue openRequests() {
+		return this._openRequests;
+	}
+
+	/**
+	 * Method to access the filter of known VINs.  Until it is loaded every
+	 * VIN is a possible hit.
+	 *
+	 * @return the shared VIN filter
+	 */
+	public VinFilter vins() {
+		return this._vins;
+	}
+
+	/**
+	 * Method to access the latency metrics.
+	 *
+	 * @return the shared metrics
+	 */
+	public Metrics metrics() {
+		return this._metrics;
+	}
+
+	/**
+	 * Method to access the routing of reports to read replicas.
+	 *
+	 * @return the replica router, or null when no replica is configured
+	 */
+	public ReplicaRouter replicas() {
+		return this._replicas;
+	}
+
+	/**
+	 * Method to access the cache of rendered reports.
+	 *
+	 * @return the shared report cache
+	 */
+	public ReportCache reports() {
+		return this._reports;
+	}
+
+	/**
+	 * Method to access the customer directory used for name lookups.
+	 * Readers call ensureLoaded first.
+	 *
+	 * @return the shared customer directory
+	 */
+	public CustomerDirectory customers() {
+		return this._customers;
+	}
+
+	/**
+	 * Method to access the open service counts per car.  Readers call
+	 * ensureLoaded first; writers may update them before they are loaded.
+	 *
+	 * @return the shared open service counts
+	 */
+	public OpenServiceCounts openServiceCounts() {
+		return this._openServiceCounts;
+	}
+
+	/**
+	 * Method to access the reports run by the console.
+	 *
+	 * @return the shared report runner
+	 */
+	public ReportJobs reportJobs() {
+		return this._reportJobs;
 	}
 
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
+		this._reportJobs.close();
+		this._metrics.stop();
+		if (this._slowLog != null) {
+			this._metrics.slowLog(null);
+			this._slowLog.close();
+		}
+		if (this._replicas != null) {
+			this._replicas.close();
+		}
 		try{
-			if (this._connection != null){
-				this._connection.close ();
+			if (this._pool != null){
+				this._pool.close ();
 			}//end if
-		}catch (SQLException e){
+		}catch (Exception e){
 	         // ignored.
 		}//end try
 	}//end cleanup
 
 	/**
- 	 * Method that create triggers on customer, mechanic, and service request
- 	 * Code to convert file into string grabbed from 
- 	 * https://howtodoinjava.com/java/io/java-read-file-to-string-examples/
+ 	 * Method that prepares the database objects and in-memory structures the
+ 	 * shop operations rely on, before the menu or the HTTP server starts
+ 	 */
+	public void startup() throws SQLException, IOException {
+		// Apply the pending schema migrations: id sequences, indexes, summary tables, partitions, request status
+		new SchemaMigrator(this).migrate();
+		ensurePartitions();
+		// Seed the open service counts, the customer directory and the VIN filter
+		openServiceCounts().ensureLoaded(this);
+		customers().ensureLoaded(this);
+		vins().ensureLoaded(this);
+	}
+
+	/**
+ 	 * Method that creates the request partitions of this year and the next,
+ 	 * and those of the years found in the default partitions
  	 */
-	public void createTriggers() throws SQLException {
-		StringBuilder query = new StringBuilder();
-		try (BufferedReader reader = new BufferedReader(new FileReader("../sql/triggers.sql"));) {
-			String currentLine;
-			while((currentLine = reader.readLine()) != null)
-			{
-				query.append(currentLine).append("\n");
+	public void ensurePartitions() throws SQLException {
+		executeQueryAndReturnResult(ENSURE_PARTITIONS_SQL);
+	}
+
+	/**
+ 	 * Method that recomputes the summary tables from the closed requests,
+ 	 * for use after the tables were changed outside the application
+ 	 */
+	public void rebuildSummaries() throws SQLException {
+		beginTransaction();
+		try {
+			ConnectionPool.PooledConnection conn = acquire ();
+			try (Statement stmt = conn.connection ().createStatement ()) {
+				stmt.execute (REBUILD_BILL_TOTALS_SQL);
+			} finally {
+				release ();
 			}
+			tablesChanged ("customer_bill_total");
+			commitTransaction();
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
 		}
-		catch(IOException e) {
-			e.printStackTrace();
+	}
+
+	/**
+	 * Method to close a service request and add its bill to the customer's
+	 * running total in one transaction.
+	 *
+	 * @param rid the service request number
+	 * @param vin the car of the request, or null when not known, in which
+	 *            case the open service counts are read again
+	 * @param mid the closing mechanic's id
+	 * @param date the closing date
+	 * @param comment the mechanic's comment
+	 * @param bill the bill amount
+	 * @return false when the request was already closed, does not exist or
+	 *         was opened after the closing date
+	 * @throws java.sql.SQLException when the request cannot be closed
+	 */
+	public boolean closeRequest(int rid, String vin, int mid, Date date, String comment, int bill) throws SQLException {
+		int wid = ids().next(IdAllocator.CLOSED_REQUEST);
+		beginTransaction();
+		try {
+			int closed = executeUpdate(INSERT_CLOSED_REQUEST_SQL, wid, rid, mid, date, comment, bill);
+			if (closed > 0) {
+				executeUpdate(ADD_BILL_TOTAL_SQL, bill, rid);
+				if (vin != null) {
+					afterCommit(() -> this._openServiceCounts.decrement(vin));
+				} else {
+					afterCommit(() -> this._openServiceCounts.invalidate());
+				}
+			}
+			tablesChanged("closed_request", "customer_bill_total");
+			commitTransaction();
+			return closed > 0;
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
 		}
+	}//end closeRequest
 
-		Statement stmt = this._connection.createStatement ();
-		stmt.execute (query.toString());
-		stmt.close();
-	}
-	
 	/**
 	 * The main execution method
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 *             optionally followed by a command to run instead of the menu
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]\n" +
+				"Commands:\n" +
+				"  load [dataDir] [--defer-constraints] [--truncate] [--dedup]    bulk load the seed CSV files\n" +
+				"  batch <file> [--chunk n] [--log file]                          run the operations of a batch file\n" +
+				"  serve [port]                                                   serve the shop operations over HTTP\n" +
+				"  migrate                                                        apply the pending schema migrations\n" +
+				"  plancheck [maxMillis] [seqScanRows]                            check the plans of the menu queries\n" +
+				"  bench [pattern] [--threads n] [--out file] [--baseline file]   time the menu statements and reports\n" +
+				"  export <outDir> [name ...] [--gzip] [--threads n]              write tables and reports to CSV files\n" +
+				"  archive <before> <outDir>                                      archive the requests of the years before a date\n" +
+				"  verifycounts                                                   compare the open service counts with the database\n" +
+				"  replicas                                                       check the read replicas and show where reports run");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		int status = 0;
 		
 		try{
 			System.out.println("(1)");
@@ -271,8 +927,15 @@ public class MechanicShop{
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
 
-			// Create triggers
-			esql.createTriggers();
+			// Run a single command instead of the interactive menu
+			if (args.length > 3) {
+				status = runCommand(esql, args[3], Arrays.copyOfRange(args, 4, args.length)) ? 0 : 1;
+				return;
+			}
+
+			esql.startup();
+			// operations 1 to 5 are timed here, reports on their own threads; the lambdas need a final reference
+			final MechanicShop shop = esql;
 	
 			boolean keepon = true;
 			while(keepon){
@@ -288,27 +951,32 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. BackgroundReports");
+				System.out.println("12. Dashboard");
+				System.out.println("13. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
 				switch (readChoice()){
-					case 1: AddCustomer(esql, true); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql, -1); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+					case 1: shop.metrics().time("AddCustomer", () -> AddCustomer(shop, true)); break;
+					case 2: shop.metrics().time("AddMechanic", () -> AddMechanic(shop)); break;
+					case 3: shop.metrics().time("AddCar", () -> AddCar(shop, -1)); break;
+					case 4: shop.metrics().time("InsertServiceRequest", () -> InsertServiceRequest(shop)); break;
+					case 5: shop.metrics().time("CloseServiceRequest", () -> CloseServiceRequest(shop)); break;
+					case 6: ListCustomersWithBillLessThan100(shop); break;
+					case 7: ListCustomersWithMoreThan20Cars(shop); break;
+					case 8: ListCarsBefore1995With50000Milles(shop); break;
+					case 9: ListKCarsWithTheMostServices(shop); break;
+					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(shop); break;
+					case 11: shop.reportJobs().manage(); break;
+					case 12: Dashboard(shop); break;
+					case 13: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
+			status = 1;
 		}finally{
 			try{
 				if(esql != null) {
@@ -319,6 +987,34 @@ public class MechanicShop{
 			}catch(Exception e){
 				// ignored.
 			}
+			if (status != 0) {
+				System.exit(status);
+			}
+		}
+	}
+
+	/**
+	 * Method to run one of the non-interactive commands given on the command line.
+	 *
+	 * @param esql the connected shop
+	 * @param command the command name
+	 * @param args the arguments following the command name
+	 * @return false when the command reports a failed check
+	 * @throws java.lang.Exception when the command fails
+	 */
+	public static boolean runCommand(MechanicShop esql, String command, String[] args) throws Exception {
+		switch (command) {
+			case "load": BulkLoader.run(esql, args); return true;
+			case "plancheck": return PlanCheck.run(esql, args);
+			case "verifycounts": return verifyOpenServiceCounts(esql);
+			case "batch": return BatchRunner.run(esql, args);
+			case "serve": return ShopHttpServer.run(esql, args);
+			case "bench": return ShopBenchmark.run(esql, args);
+			case "export": Exporter.run(esql, args); return true;
+			case "migrate": SchemaMigrator.run(esql); return true;
+			case "archive": Archiver.run(esql, args); return true;
+			case "replicas": return ReplicaRouter.run(esql);
+			default: throw new IllegalArgumentException("Unknown command: " + command);
 		}
 	}
 
@@ -338,9 +1034,11 @@ public class MechanicShop{
 		return input;
 	}//end readChoice
 	
-	public static void AddCustomer(MechanicShop esql, Boolean addNewCar){//1
+	// returns the new customer's id, or -1 if the customer was not added
+	public static int AddCustomer(MechanicShop esql, Boolean addNewCar){//1
+		int customerID = -1;
 		try {
-			String insertCust = "INSERT INTO customer (fname, lname, phone, address) VALUES ";
+			esql.acquire();
 			String fname = "";
 			String lname = "";
 			String phone = "";
@@ -422,24 +1120,21 @@ public class MechanicShop{
 				}
 			} while (!valid);
 
-			insertCust += "(\'" /*+ id + "\', \'"*/ + fname + "\', \'" + lname + "\', \'" + phone + "\', \'" + address + "\');";
-			// System.out.println(insertCust);
-			esql.executeUpdate(insertCust);
+			int id = esql.ids().next(IdAllocator.CUSTOMER);
+			esql.executeUpdate(INSERT_CUSTOMER_SQL, id, fname, lname, phone, address);
+			esql.tablesChanged("customer");
+			CustomerDirectory.Customer customer = new CustomerDirectory.Customer(id, fname, lname, phone, address);
+			esql.afterCommit(() -> esql.customers().add(customer));
+			customerID = id;
 	
 			// Add a car and link to newly made customer
 			if(addNewCar) {
 				System.out.println("Please insert customer's car information as well: ");
 				Boolean carInserted = false;
-				int customerID = esql.getCurrSeqVal("cust_id_seq");
 				// Will continously ask for a car until successful insertion of a car
 				// Catches errors like duplicate vins, invalid vins, etc.
 				do {
-					try {
-						AddCar(esql, customerID);
-						carInserted = true;
-					} catch(Exception e) {
-						carInserted = false;
-					}
+					carInserted = AddCar(esql, customerID) != null;
 				} while(!carInserted);
 			}
 
@@ -447,11 +1142,15 @@ public class MechanicShop{
 		catch(Exception e){
 			System.err.println (e.getMessage());
 		}	
+		finally {
+			esql.release();
+		}
+		return customerID;
 	}
 	
 	public static void AddMechanic(MechanicShop esql){//2
 		try {
-			String insertMech = "INSERT INTO mechanic (fname, lname, experience) VALUES ";
+			esql.acquire();
 			String fname = "";
 			String lname = "";
 			int years = 0;
@@ -518,48 +1217,35 @@ public class MechanicShop{
 
 			// System.out.println(id + " " + fname + " " + lname + " " + years); 
 
-			insertMech += "(\'" /*+ id + "\', \'"*/ + fname + "\', \'" + lname + "\', \'" + years + "\');";
-			esql.executeUpdate(insertMech);
+			esql.executeUpdate(INSERT_MECHANIC_SQL, esql.ids().next(IdAllocator.MECHANIC), fname, lname, years);
+			esql.tablesChanged("mechanic");
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
 		} 
+		finally {
+			esql.release();
+		}
 	}
 	
 	// if customerID is negative, then create new customer
 	// if customerID is postive and exists in the database, then link car to customer
-	public static void AddCar(MechanicShop esql, int customerID){//3
+	// returns the vin of the new car, or null if the car was not added
+	public static String AddCar(MechanicShop esql, int customerID){//3
+		String added = null;
 		try{
+			esql.acquire();
 			String vin = "";
 			String make = "";
 			String model = "";
 			String year = "";
+			int year_int = 0;
 			Boolean valid = false;
+			VinFilter vins = esql.vins();
+			vins.ensureLoaded(esql);
 
 			// Get car vin loop
-			do {
-				int carExists = 0;
-				System.out.print("\tEnter car vin: $ ");
-				try {
-					vin = in.readLine();
-					if (vin.length() != 16){
-						throw new IllegalArgumentException("Error: Car VIN must be be 16 characters");
-					}
-					// Check if vin is unique
-					String checkCarVins = "SELECT * FROM car WHERE vin=\'";
-					       checkCarVins += vin +"\';";
-					
-					carExists = esql.executeQuery(checkCarVins);
-					if (carExists != 0) {
-						throw new IllegalArgumentException("Error: This VIN already exists in database, please input a unique VIN");
-					}
-
-					valid = true;
-				} catch (IllegalArgumentException e) {
-					System.out.println(e.getMessage());
-					valid = false;
-				}
-			} while(!valid);
+			vin = readNewVin(esql, vins);
 
 			// Get car make loop
 			do {
@@ -597,7 +1283,7 @@ public class MechanicShop{
 					System.out.print("\tEnter car year: $ ");
 					year = in.readLine();
 					// Throws an exception if year is not an integer amount
-					int year_int = Integer.parseInt(year);
+					year_int = Integer.parseInt(year);
  
 					if(year_int < 1970) {
 						throw new IllegalArgumentException("Error: Car year must be 1970 or newer");
@@ -613,173 +1299,162 @@ public class MechanicShop{
 				}
 			} while(!valid);
 
-			String query = "INSERT INTO Car VALUES (\'" + vin + "\', \'" + make + "\', \'" + model + "\', \'" + year + "\')";
-
-			esql.executeUpdate(query);
+			// The filter does not see cars added by other processes, so the
+			// insert is the check that decides
+			boolean inserted = false;
+			while (!inserted) {
+				try {
+					esql.executeUpdate(INSERT_CAR_SQL, vin, make, model, year_int);
+					inserted = true;
+				} catch (SQLException e) {
+					if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+						throw e;
+					}
+					vins.add(vin);
+					System.out.println("Error: This VIN already exists in database, please input a unique VIN");
+					vin = readNewVin(esql, vins);
+				}
+			}
+			esql.tablesChanged("car");
+			final String newVin = vin;
+			esql.afterCommit(() -> vins.add(newVin));
 
 			// Link car to customer id
 			if(customerID >= 0) {
-				String insertOwns = "INSERT INTO owns (customer_id, car_vin) VALUES (";
-				       insertOwns += "\'" + customerID + "\', ";
-				       insertOwns += "\'" + vin + "\');";
-				esql.executeUpdate(insertOwns);
+				esql.executeUpdate(INSERT_OWNS_SQL, esql.ids().next(IdAllocator.OWNS), customerID, vin);
+				esql.tablesChanged("owns");
 			// Ask user if they want to link this car to an existing customer or create a new customer
 			} else {
 				System.out.print("\tDoes this car belong to an existing customer? [Y/N]: $ ");
 
 				String go = in.readLine();
 
-				// Link car to existing customer
+				int ownerID = -1;
+				// Link car to existing customer, until the clerk gives up searching
 				if (go.equals("Y")) {
-					// Continuely ask for lname that exists in the database
-					List<List<String>> lnameResults;
-					do {
-						System.out.print("\tEnter customer's last name: $ ");
-						String lname = in.readLine();
-						String lnameQuery = "SELECT * FROM Customer WHERE lname = \'" + lname + "\';";
-						lnameResults = esql.executeQueryAndReturnResult(lnameQuery);
-						if (lnameResults.size() == 0) {
-							System.out.println("Last name does not exist in database please try again.");
-						}
-					} while (lnameResults.size() == 0);
-
-					// Display results
-					for(int i = 0; i < lnameResults.size(); ++i) {
-						System.out.print("\t");
-						System.out.print(i);
-						System.out.print(": ");
-						for(int j = 1; j < lnameResults.get(i).size(); ++j) {
-							String var1 = lnameResults.get(i).get(j);
-							String var2 = var1.split("\\s+")[0];
-							if(j != 4) {
-								System.out.print(var2);
-								System.out.print(", ");
-							} 
-							else {
-								System.out.println(var1);
-							}
+					ownerID = SelectCustomer(esql);
+					while (ownerID < 0) {
+						System.out.print("\tName does not exist in database. Search again? [Y/N, N adds a new customer]: $ ");
+						if (!in.readLine().trim().equalsIgnoreCase("Y")) {
+							break;
 						}
+						ownerID = SelectCustomer(esql);
 					}
-					// Select customer from results via id
-					int cust_choice = -1;
-					do {
-						System.out.print("\tEnter desired customer's option id: $ ");
-						try {
-							cust_choice = Integer.parseInt(in.readLine());
-						} catch (NumberFormatException e) {
-							cust_choice = -1;
-						}
-
-						if(cust_choice < 0 || cust_choice >= lnameResults.size()) {
-							System.out.println("Error: Invalid customer option id. Try again.");
-						}
-					} while(cust_choice < 0 || cust_choice >= lnameResults.size());
-
-					int cid = cust_choice;
-					String insertOwns = "INSERT INTO owns (customer_id, car_vin) VALUES (";
-					       insertOwns += "\' " + lnameResults.get(cid).get(0) + "\', ";
-					       insertOwns += "\'" + vin + "\');";
-					//System.out.println("Query: " + insertOwns);
-					esql.executeUpdate(insertOwns);
-				
-				} else { // Else create new customer for car
+				}
+				// Else create new customer for car
+				if (ownerID < 0) {
 					System.out.println("Please insert customer information as well");
-					AddCustomer(esql, false);
-					int newCustID = esql.getCurrSeqVal("cust_id_seq");
-					String insertOwns = "INSERT INTO owns (customer_id, car_vin) VALUES (";
-					       insertOwns += "\'" + newCustID + "\', ";
-					       insertOwns += "\'" + vin + "\');";
-					esql.executeUpdate(insertOwns);
+					ownerID = AddCustomer(esql, false);
+					if (ownerID < 0) {
+						throw new IllegalStateException("Error: Car was added without an owner");
+					}
 				}
+				esql.executeUpdate(INSERT_OWNS_SQL, esql.ids().next(IdAllocator.OWNS), ownerID, vin);
+				esql.tablesChanged("owns");
 			}
+			added = vin;
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
 		}
+		finally {
+			esql.release();
+		}
+		return added;
+
+	}
 
+	// Reads VINs until one is 16 characters long and not a known car
+	private static String readNewVin(MechanicShop esql, VinFilter vins) throws IOException, SQLException {
+		while (true) {
+			System.out.print("\tEnter car vin: $ ");
+			String vin = in.readLine();
+			if (vin.length() != 16){
+				System.out.println("Error: Car VIN must be be 16 characters");
+			}
+			// Check if vin is unique, asking the database only when the filter has seen it
+			else if (vins.mightContain(vin) && esql.executeQuery(CAR_BY_VIN_SQL, vin) != 0) {
+				System.out.println("Error: This VIN already exists in database, please input a unique VIN");
+			}
+			else {
+				return vin;
+			}
+		}
 	}
 	
 
-	public static void InsertServiceRequest(MechanicShop esql){//4
-		try{
-			boolean valid = false;
-			int cid = -1;
-			String lname = "";
-			// Step 1: Search for customer's last name
-			do{
-				try{
-					System.out.print("\tEnter customer's last name: $ ");
-					lname = in.readLine();
-					if (lname.length() == 0){
-						throw new IllegalArgumentException("Error: Please input a last name");
-					}
-					valid = true;
+	/**
+	 * Method to look up a customer by name in the customer directory.  The
+	 * clerk enters a last name, optionally followed by a first name, or the
+	 * start of either, and picks from the ranked matches.  Entering more of
+	 * the name instead of an option id searches again.
+	 *
+	 * @param esql the connected shop
+	 * @return the chosen customer's id, or -1 when no customer matches
+	 * @throws java.lang.Exception when the directory cannot be read
+	 */
+	public static int SelectCustomer(MechanicShop esql) throws Exception {
+		CustomerDirectory customers = esql.customers();
+		customers.ensureLoaded(esql);
+		int limit = Math.max(1, Integer.getInteger("shop.directory.maxMatches", DEFAULT_MAX_MATCHES));
+		String name = "";
+		while (true){
+			while (name.isEmpty()){
+				System.out.print("\tEnter customer's last name, optionally followed by the first name: $ ");
+				name = in.readLine().trim();
+				if (name.isEmpty()){
+					System.err.println("Error: Please input a last name");
 				}
-				catch(Exception e){
-					System.err.println(e.getMessage());
+			}
+			List<CustomerDirectory.Customer> matches = customers.search(esql, name, limit + 1);
+			if (matches.isEmpty()){
+				return -1;
+			}
+			int shown = Math.min(limit, matches.size());
+			for (int i = 0; i < shown; ++i){
+				System.out.println("\t" + i + ": " + matches.get(i));
+			}
+			if (matches.size() > limit){
+				System.out.println("\tMore customers match, showing the first " + limit);
+			}
+			System.out.print("\tEnter desired customer's option id, or more of the name to search again: $ ");
+			String input = in.readLine().trim();
+			try {
+				int choice = Integer.parseInt(input);
+				if (choice >= 0 && choice < shown){
+					return matches.get(choice).id;
 				}
-			}while(!valid);
-
-			String lnameQuery = "SELECT * FROM Customer WHERE Customer.lname = \'" + lname + "\'";
-			List<List<String>> lnameResults = esql.executeQueryAndReturnResult(lnameQuery);
-			
-			if (lnameResults.size() > 0){
-				int cust_choice = -1;
-				do {
-					// Display all matching results
-					valid = false;
-					try {
-						for (int i = 0; i < lnameResults.size(); ++i){
-							System.out.print("\t");
-							System.out.print(i);
-							System.out.print(": ");
-							for (int j = 1; j < lnameResults.get(i).size(); ++j){
-								String var1 = lnameResults.get(i).get(j);
-								String var2 = var1.split("\\s+")[0];
-								if (j != 4){
-									System.out.print(var2);
-									System.out.print(", ");
-								}
-								else {
-									System.out.println(var1);
-								}
-							}
-						}
-						// Select customer from results
-						System.out.print("\tEnter desired customer's option id: $ ");
-						cust_choice = Integer.parseInt(in.readLine());
-						if (cust_choice < 0 || cust_choice >= lnameResults.size()){
-							throw new IllegalArgumentException("Error: Option id must be between 0 and " + (lnameResults.size() - 1) + " (inclusive)"); 
-						}
-						valid = true;
-					}
-					catch (NumberFormatException e){
-						System.err.println("Error: Invalid option id");
-					}
-					catch (Exception e) {
-						System.err.println(e.getMessage());
-					}
-				} while(!valid);
-				cid = cust_choice;
+				System.err.println("Error: Option id must be between 0 and " + (shown - 1) + " (inclusive)");
 			}
-			else {
+			catch (NumberFormatException e){
+				if (!input.isEmpty()){
+					name = input;
+				}
+			}
+		}
+	}
+
+	public static void InsertServiceRequest(MechanicShop esql){//4
+		try{
+			esql.acquire();
+			boolean valid = false;
+			// Step 1: Search for the customer by name
+			int customerID = SelectCustomer(esql);
+			if (customerID < 0){
 				// Customer did not exist so offer to create a new one
 				do {
 					try{
 						valid = false;
 
-						System.out.println("\tCould not find a customer with that last name");
+						System.out.println("\tCould not find a customer with that name");
 						System.out.print("\tWould you like to add a new customer? [Y/N]: $ ");
 						String go = in.readLine();
 						if (go.equals("Y")){
 							// Add customer
-							AddCustomer(esql, false);
-							// Grab customer based on last trigger sequence
-							int recentCustomerID = esql.getCurrSeqVal("cust_id_seq");
-							String cidQuery = "SELECT * FROM Customer WHERE Customer.id = " + recentCustomerID;
-							List<List<String>> temp = esql.executeQueryAndReturnResult(cidQuery);
-							lnameResults.add(temp.get(0));
-							cid = 0;
+							customerID = AddCustomer(esql, false);
+							if (customerID < 0) {
+								continue;
+							}
 							valid = true;
 						}
 						else if (go.equals("N")) {
@@ -799,9 +1474,10 @@ public class MechanicShop{
 			// Step 2: List all cars associated with client
 			boolean createCar = false;
 			String vin = "";
+			CustomerDirectory.Customer customer = esql.customers().get(customerID);
+			String customerName = customer != null ? customer.fname : "customer " + customerID;
 		
-			String carsOwnedQuery = "SELECT C.vin, C.make, C.model, C.year FROM Car C, Owns O WHERE O.customer_id = " + lnameResults.get(cid).get(0) + " AND O.car_vin = C.vin";
-			List<List<String>> carsOwnedResults = esql.executeQueryAndReturnResult(carsOwnedQuery);
+			List<List<String>> carsOwnedResults = esql.executeQueryAndReturnResult(CARS_OWNED_SQL, customerID);
 			if (carsOwnedResults.size() > 0){
 				do {
 					try {
@@ -858,13 +1534,17 @@ public class MechanicShop{
 			}
 			else{
 				// Customer has no car associated in DB so create one
-				System.out.println("\t" + lnameResults.get(cid).get(1).split("\\s+")[0] + " does not have a car registered in the database");
+				System.out.println("\t" + customerName + " does not have a car registered in the database");
 				createCar = true;
 			}
 			if (createCar == true){
 				// Create and link car to the customer
-				System.out.println("\tAdding a car for " + lnameResults.get(cid).get(1).split("\\s+")[0]);
-				AddCar(esql, Integer.parseInt(lnameResults.get(cid).get(0)));
+				System.out.println("\tAdding a car for " + customerName);
+				vin = AddCar(esql, customerID);
+				if (vin == null) {
+					System.out.println("\tCancelling service request");
+					return;
+				}
 			}	
 
 			// Step 3: Complete service request
@@ -907,17 +1587,12 @@ public class MechanicShop{
 			}while(!valid);
 			
 			// Date
-			DateTimeFormatter dtf = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm");  
-			LocalDateTime now = LocalDateTime.now();  
+			Date now = Date.valueOf(LocalDate.now());
 
-			// Grab the car vin from the last tuple inserted into the OWNS relation
-			int ownershipID = esql.getCurrSeqVal("owns_id_seq");
-			String ownsQuery = "SELECT O.car_vin FROM owns O WHERE O.ownership_id = " + ownershipID;
-			vin = esql.executeQueryAndReturnResult(ownsQuery).get(0).get(0);
-
-			String query = "INSERT INTO Service_Request(customer_id, car_vin, date, odometer, complain) VALUES (";
-			query += lnameResults.get(cid).get(0) + ", \'" + vin + "\', \'" + dtf.format(now) + "\', " + odometer + ", \'" + complaint + "\');";
-			esql.executeUpdate(query); 
+			int rid = esql.ids().next(IdAllocator.SERVICE_REQUEST);
+			esql.executeUpdate(INSERT_SERVICE_REQUEST_SQL, rid, customerID, vin, now, odometer, complaint); 
+			esql.tablesChanged("service_request");
+			esql.openServiceCounts().increment(vin);
 
 		}
 		catch (NumberFormatException e){
@@ -926,19 +1601,22 @@ public class MechanicShop{
 		catch(Exception e){
 			System.err.println (e.getMessage());
 		}
+		finally {
+			esql.release();
+		}
 	}
 	
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 		try {
+			esql.acquire();
 			boolean valid = false;
 			int mid = -1; // Mechanic id
 			int rid = -1; // Service request number
 			int bill_amount = -1; // Billing
 
-			String openRequestsQuery = "SELECT * FROM Service_Request S WHERE S.rid NOT IN (SELECT C.rid FROM Closed_Request C)";
-			List<List<String>> openRequestsResults = esql.executeQueryAndReturnResult(openRequestsQuery);
+			OpenRequestQueue openRequests = esql.openRequests();
 			// Step 1: Check if there are any open service requests
-			if (openRequestsResults.size() == 0){	
+			if (openRequests.size(esql) == 0){	
 				System.out.println("All service requests are closed");
 				return;
 			}	
@@ -953,9 +1631,9 @@ public class MechanicShop{
 						throw new IllegalArgumentException("");
 					}
 					// Validate mechanic id
-					String validateMechanicQuery = "SELECT M.id FROM Mechanic M WHERE M.id = " + mid;
-					List<List<String>> validateMechanicResults = esql.executeQueryAndReturnResult(validateMechanicQuery);
-					Integer.parseInt(validateMechanicResults.get(0).get(0)); // Throws exception if result is empty
+					if (esql.executeQuery(MECHANIC_BY_ID_SQL, mid) == 0){
+						throw new IllegalArgumentException("");
+					}
 					valid = true;
 				}
 				catch (Exception e){
@@ -963,46 +1641,17 @@ public class MechanicShop{
 				}
 			}while(!valid);
 
-			// Step 3: Display open service requests
-			int cust_choice = -1;
-			System.out.println("");
-			do {
-				// Display all matching results
-				valid = false;
-				try {
-					for (int i = 0; i < openRequestsResults.size(); ++i){
-						System.out.print("\t");
-						System.out.print(i);
-						System.out.print(": ");
-						for (int j = 1; j < openRequestsResults.get(i).size(); ++j){
-							System.out.print(openRequestsResults.get(i).get(j));
-							if (j != openRequestsResults.get(i).size() - 1){
-								System.out.print(", ");
-							}
-						}
-						System.out.println("");
-					}
-					// Select customer from results
-					System.out.print("\n\tEnter desired open service request's option id: $ ");
-					cust_choice = Integer.parseInt(in.readLine());
-					if (cust_choice < 0 || cust_choice >= openRequestsResults.size()){
-						throw new IllegalArgumentException("Error: Option id must be between 0 and " + (openRequestsResults.size() - 1) + " (inclusive)"); 
-					}
-					valid = true;
-				}
-				catch (NumberFormatException e){
-					System.err.println("Error: Invalid option id");
-				}
-				catch (Exception e) {
-					System.err.println(e.getMessage());
-				}
-			} while(!valid);
-			rid = cust_choice;
+			// Step 3: Find the open service request to close
+			OpenRequestQueue.OpenRequest request = selectOpenRequest(esql, openRequests);
+			if (request == null){
+				System.out.println("\tCancelling close of service request");
+				return;
+			}
+			rid = request.rid;
 
 
 			// Closing date
-			DateTimeFormatter dtf = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm");  
-			LocalDateTime now = LocalDateTime.now();  
+			Date now = Date.valueOf(LocalDate.now());
 
 			// Comment
 			System.out.print("\tEnter any outstanding comments: $ ");
@@ -1024,22 +1673,194 @@ public class MechanicShop{
 				}
 			}while(!valid);
 
-			// Complete service request
-			String query = "INSERT INTO Closed_Request(rid, mid, date, comment, bill) VALUES (";
-			query += rid + ", " + mid + ", \'" + dtf.format(now) + "\', \'" + comment + "\', " + bill_amount + ")";
-			esql.executeUpdate(query); 
+			// Complete service request, unless another session closed it first
+			if (!esql.closeRequest(rid, request.vin, mid, now, comment, bill_amount)){
+				System.out.println("\tService request " + rid + " was already closed");
+			}
 		}
 		catch (Exception e){
 			System.err.println (e.getMessage());
 		}
+		finally {
+			esql.release();
+		}
+	}
+	
+	// Asks how to find the open request to close and returns it, or null to cancel
+	private static OpenRequestQueue.OpenRequest selectOpenRequest(MechanicShop esql, OpenRequestQueue openRequests) throws IOException, SQLException {
+		while (true) {
+			System.out.println("\n\tThere are " + openRequests.size(esql) + " open service requests. Find the request to close by:");
+			System.out.println("\t1. Service request number");
+			System.out.println("\t2. Car VIN");
+			System.out.println("\t3. Customer id");
+			System.out.println("\t4. Browse open service requests");
+			System.out.println("\t5. < Cancel");
+			List<OpenRequestQueue.OpenRequest> matches;
+			try {
+				switch (readChoice()){
+					case 1:
+						System.out.print("\tEnter service request number: $ ");
+						OpenRequestQueue.OpenRequest request = openRequests.get(esql, Integer.parseInt(in.readLine().trim()));
+						if (request != null){
+							return request;
+						}
+						System.out.println("\tNo open service request has that number");
+						continue;
+					case 2:
+						System.out.print("\tEnter car vin: $ ");
+						matches = openRequests.byVin(esql, in.readLine().trim());
+						break;
+					case 3:
+						System.out.print("\tEnter customer id: $ ");
+						matches = openRequests.byCustomer(esql, Integer.parseInt(in.readLine().trim()));
+						break;
+					case 4:
+						request = browseOpenRequests(esql, openRequests);
+						if (request != null){
+							return request;
+						}
+						continue;
+					case 5:
+						return null;
+					default:
+						continue;
+				}
+			}
+			catch (NumberFormatException e){
+				System.err.println("Error: Input must be a valid integer amount");
+				continue;
+			}
+			if (matches.isEmpty()){
+				System.out.println("\tNo open service requests found");
+				continue;
+			}
+			for (int i = 0; i < matches.size(); ++i){
+				System.out.println("\t" + i + ": " + matches.get(i));
+			}
+			System.out.print("\n\tEnter desired open service request's option id, or nothing to go back: $ ");
+			String choice = in.readLine().trim();
+			try {
+				int option = Integer.parseInt(choice);
+				if (option >= 0 && option < matches.size()){
+					return matches.get(option);
+				}
+				System.err.println("Error: Option id must be between 0 and " + (matches.size() - 1) + " (inclusive)");
+			}
+			catch (NumberFormatException e){
+				if (!choice.isEmpty()){
+					System.err.println("Error: Invalid option id");
+				}
+			}
+		}
+	}
+
+	// Pages through the open requests in rid order and returns the chosen one, or null to go back
+	private static OpenRequestQueue.OpenRequest browseOpenRequests(MechanicShop esql, OpenRequestQueue openRequests) throws IOException, SQLException {
+		int afterRid = Integer.MIN_VALUE;
+		while (true) {
+			List<OpenRequestQueue.OpenRequest> page = openRequests.page(esql, afterRid, OPEN_REQUEST_PAGE_SIZE);
+			if (page.isEmpty()){
+				if (afterRid == Integer.MIN_VALUE){
+					return null;
+				}
+				// Wrap around to the first page
+				afterRid = Integer.MIN_VALUE;
+				continue;
+			}
+			for (int i = 0; i < page.size(); ++i){
+				System.out.println("\t" + i + ": " + page.get(i));
+			}
+			System.out.print("\n\tEnter desired open service request's option id, N for the next page, or nothing to go back: $ ");
+			String choice = in.readLine().trim();
+			if (choice.isEmpty()){
+				return null;
+			}
+			if (choice.equalsIgnoreCase("N")){
+				afterRid = page.get(page.size() - 1).rid;
+				continue;
+			}
+			try {
+				int option = Integer.parseInt(choice);
+				if (option >= 0 && option < page.size()){
+					return page.get(option);
+				}
+				System.err.println("Error: Option id must be between 0 and " + (page.size() - 1) + " (inclusive)");
+			}
+			catch (NumberFormatException e){
+				System.err.println("Error: Invalid option id");
+			}
+		}
 	}
 	
+	/*
+	 * The reports of the menu, by the name their timeouts are configured
+	 * under. Each writes its rows to the given writer on a report thread.
+	 */
+	static ReportJobs.Job startBillLessThan100(MechanicShop esql, boolean background) throws IOException {
+		return startBillLessThan100(esql, background, null);
+	}
+
+	// range is null for every date, or the first date and the date after the last
+	static ReportJobs.Job startBillLessThan100(MechanicShop esql, boolean background, Date[] range) throws IOException {
+		return esql.reportJobs().submit("ListCustomersWithBillLessThan100", "bills-under-100", background, out -> {
+			if (range == null){
+				esql.executeReportAndWriteResult(out, REPORT_BILL_LESS_THAN_100_TABLES, REPORT_BILL_LESS_THAN_100_SQL);
+			}
+			else {
+				esql.executeReportAndWriteResult(out, REPORT_BILL_LESS_THAN_100_TABLES, REPORT_BILL_LESS_THAN_100_WINDOW_SQL, range[0], range[1]);
+			}
+		});
+	}
+
+	static ReportJobs.Job startMoreThan20Cars(MechanicShop esql, boolean background) throws IOException {
+		return esql.reportJobs().submit("ListCustomersWithMoreThan20Cars", "customers-over-20-cars", background,
+			out -> esql.executeReportAndWriteResult(out, REPORT_MORE_THAN_20_CARS_TABLES, REPORT_MORE_THAN_20_CARS_SQL));
+	}
+
+	static ReportJobs.Job startCarsBefore1995(MechanicShop esql, boolean background) throws IOException {
+		return esql.reportJobs().submit("ListCarsBefore1995With50000Milles", "cars-before-1995", background,
+			out -> esql.executeReportAndWriteResult(out, REPORT_CARS_BEFORE_1995_TABLES, REPORT_CARS_BEFORE_1995_SQL));
+	}
+
+	static ReportJobs.Job startMostServicedCars(MechanicShop esql, boolean background, int k) throws IOException {
+		return esql.reportJobs().submit("ListKCarsWithTheMostServices", "most-serviced-cars", background, out -> {
+			// served from the counts kept in memory
+			esql.openServiceCounts().ensureLoaded(esql);
+			List<OpenServiceCounts.CarCount> cars = esql.openServiceCounts().top(esql, k);
+			if (!cars.isEmpty()){
+				out.print("make\tmodel\tamt_service\t\n");
+				for (OpenServiceCounts.CarCount car : cars){
+					out.print(car.make + '\t' + car.model + '\t' + car.count + "\t\n");
+				}
+			}
+		});
+	}
+
+	static ReportJobs.Job startTotalBill(MechanicShop esql, boolean background, int n) throws IOException {
+		return startTotalBill(esql, background, n, null);
+	}
+
+	// the running totals answer for every date, the closed requests of the range otherwise
+	static ReportJobs.Job startTotalBill(MechanicShop esql, boolean background, int n, Date[] range) throws IOException {
+		return esql.reportJobs().submit("ListCustomersInDescendingOrderOfTheirTotalBill", "total-bills", background, out -> {
+			if (range != null && n == 0){
+				esql.executeReportAndWriteResult(out, REPORT_TOTAL_BILL_WINDOW_TABLES, REPORT_TOTAL_BILL_WINDOW_SQL, range[0], range[1], range[1]);
+			}
+			else if (range != null){
+				esql.executeReportAndWriteResult(out, REPORT_TOTAL_BILL_WINDOW_TABLES, REPORT_TOP_N_TOTAL_BILL_WINDOW_SQL, range[0], range[1], range[1], n);
+			}
+			else if (n == 0){
+				esql.executeReportAndWriteResult(out, REPORT_TOTAL_BILL_TABLES, REPORT_TOTAL_BILL_SQL);
+			}
+			else {
+				esql.executeReportAndWriteResult(out, REPORT_TOTAL_BILL_TABLES, REPORT_TOP_N_TOTAL_BILL_SQL, n);
+			}
+		});
+	}
+
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try{
-			String query = "SELECT cr.date, cr.comment, cr.bill ";
-			       query += "FROM Closed_Request cr "; 
-			       query += "WHERE cr.bill < 100;";
-			esql.executeQueryAndPrintResult(query);
+			esql.reportJobs().follow(startBillLessThan100(esql, false, readDateRange()));
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -1049,12 +1870,7 @@ public class MechanicShop{
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		
 		try{
-			String query = "SELECT c.fname, c.lname ";
-			       query += "FROM Customer c, Owns O ";
-			       query += "WHERE c.id = o.customer_id ";
-			       query += "GROUP BY c.id ";
-			       query += "HAVING COUNT(*) > 20; ";
-			esql.executeQueryAndPrintResult(query);
+			esql.reportJobs().follow(startMoreThan20Cars(esql, false));
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -1063,19 +1879,7 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try{
-			String query = "SELECT DISTINCT Car.make, Car.model, Car.year ";
-			query += "FROM Car ";
-			query += "WHERE Car.vin = Any( ";
-				query += "SELECT S.car_vin ";
-				query += "FROM Service_Request S ";
-				query += "WHERE S.odometer < 50000 ";
-
-				query += "INTERSECT ";
-
-				query += "SELECT C.vin ";
-				query += "FROM Car C ";
-				query += "WHERE C.year < 1995); ";
-			esql.executeQueryAndPrintResult(query);
+			esql.reportJobs().follow(startCarsBefore1995(esql, false));
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
@@ -1083,14 +1887,26 @@ public class MechanicShop{
 	}
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		try{
+			OpenServiceCounts counts = esql.openServiceCounts();
+			counts.ensureLoaded(esql);
 			boolean valid = false;
-			String k = "";
+			int k = 0;
 			do {
 				try{
-					System.out.print("\tEnter the amount limit of results: $ ");
-					k = in.readLine();
-					int k_int = Integer.parseInt(k);
-					if (k_int <= 0){
+					System.out.print("\tEnter the amount limit of results, V to verify the counts or R to rebuild them: $ ");
+					String input = in.readLine().trim();
+					if (input.equalsIgnoreCase("V")){
+						verifyOpenServiceCounts(esql);
+						return;
+					}
+					if (input.equalsIgnoreCase("R")){
+						counts.invalidate();
+						counts.ensureLoaded(esql);
+						System.out.println("\tRebuilt the open service counts from the database");
+						return;
+					}
+					k = Integer.parseInt(input);
+					if (k <= 0){
 						throw new IllegalArgumentException("");
 					}
 					valid = true;
@@ -1099,21 +1915,7 @@ public class MechanicShop{
 					System.err.println ("Error: Amount limit must be a valid positive integer not equal to 0");
 				}
 			}while(!valid);	
-			String query = "SELECT C.make, C.model, mostServices.amt_service ";
-			query += "FROM Car C, (";
-				query += "SELECT S.car_vin, COUNT(S.car_vin) as amt_service ";
-				query += "FROM Service_Request S ";
-				query += "WHERE S.rid NOT IN ( ";
-					query += "SELECT C.rid ";
-					query += "FROM Closed_Request C ";
-				query += ") GROUP BY S.car_vin ";
-				query += "ORDER BY amt_service DESC ";
-				query += ") mostServices ";
-			query += "WHERE C.vin = mostServices.car_vin ";
-			query += "ORDER BY mostServices.amt_service DESC ";
-			query += "LIMIT " + k + ";";
-			esql.executeQueryAndPrintResult(query);
-
+			esql.reportJobs().follow(startMostServicedCars(esql, false, k));
 		}
 		catch(Exception e){
 			System.err.println (e.getMessage());
@@ -1121,22 +1923,114 @@ public class MechanicShop{
 		
 	}
 
+	/**
+	 * Method to compare the open service counts with the database and print
+	 * the cars whose counts differ.
+	 *
+	 * @param esql the connected shop
+	 * @return true when the counts agree with the database
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public static boolean verifyOpenServiceCounts(MechanicShop esql) throws SQLException {
+		esql.openServiceCounts().ensureLoaded(esql);
+		List<String> problems = esql.openServiceCounts().verify(esql);
+		for (String problem : problems){
+			System.out.println("\t" + problem);
+		}
+		System.out.println("\tThe open service counts " + (problems.isEmpty() ? "match" : "do not match") + " the database");
+		return problems.isEmpty();
+	}
+
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		try {
-			String query = "SELECT c.fname , c.lname, bill_total.total ";
-			       query += "FROM Customer c, ";
-			       query += "(SELECT SUM(CR.bill) AS total, sr.customer_id ";
-			       query += "FROM Closed_Request cr, Service_Request sr ";
-			       query += "WHERE cr.rid = sr.rid ";
-			       query += "GROUP BY sr.customer_id) AS bill_total ";
-			       query += "WHERE c.id=bill_total.customer_id ";
-			       query += "ORDER BY bill_total.total DESC;";
-			esql.executeQueryAndPrintResult(query);
-
+			int n = 0;
+			boolean valid = false;
+			do {
+				try{
+					System.out.print("\tEnter the number of customers to list, or nothing for all: $ ");
+					String input = in.readLine().trim();
+					n = input.isEmpty() ? 0 : Integer.parseInt(input);
+					if (n < 0){
+						throw new IllegalArgumentException("");
+					}
+					valid = true;
+				}
+				catch(Exception e){
+					System.err.println ("Error: The number of customers must be a positive integer");
+				}
+			}while(!valid);
+			esql.reportJobs().follow(startTotalBill(esql, false, n, readDateRange()));
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}	
 	}
+
+	/**
+	 * Method to read the date range of a report, first and last date
+	 * included.
+	 *
+	 * @return null for every date, or the first date and the date after the last
+	 * @throws java.io.IOException when the console cannot be read
+	 */
+	static Date[] readDateRange() throws IOException {
+		do {
+			System.out.print("\tEnter the first and last date as yyyy-mm-dd yyyy-mm-dd, or nothing for every date: $ ");
+			String input = in.readLine().trim();
+			if (input.isEmpty()){
+				return null;
+			}
+			try{
+				Date[] range = dateRange(input.split("\\s+"));
+				if (range != null){
+					return range;
+				}
+			}
+			catch(Exception e){
+				// reported below
+			}
+			System.err.println ("Error: Enter two dates, the first not after the last");
+		}while(true);
+	}//end readDateRange
+
+	/**
+	 * Method to parse a first and last date, as given to the reports.
+	 *
+	 * @param dates the first and last date as yyyy-mm-dd
+	 * @return the first date and the date after the last, or null when the
+	 *         first is after the last
+	 * @throws java.lang.IllegalArgumentException when there are not two valid dates
+	 */
+	static Date[] dateRange(String... dates) {
+		if (dates.length != 2){
+			throw new IllegalArgumentException("Expected a first and last date");
+		}
+		LocalDate first;
+		LocalDate last;
+		try {
+			first = LocalDate.parse(dates[0].trim());
+			last = LocalDate.parse(dates[1].trim());
+		}
+		catch(java.time.format.DateTimeParseException e){
+			throw new IllegalArgumentException("Dates must be given as yyyy-mm-dd");
+		}
+		return first.isAfter(last) ? null : new Date[] { Date.valueOf(first), Date.valueOf(last.plusDays(1)) };
+	}
+
+	public static void Dashboard(MechanicShop esql){//12
+		try {
+			int limit = Integer.getInteger("shop.dashboard.limit", DEFAULT_DASHBOARD_LIMIT);
+			List<ReportJobs.Job> jobs = new ArrayList<ReportJobs.Job>();
+			jobs.add(startBillLessThan100(esql, true));
+			jobs.add(startMoreThan20Cars(esql, true));
+			jobs.add(startCarsBefore1995(esql, true));
+			jobs.add(startMostServicedCars(esql, true, limit));
+			jobs.add(startTotalBill(esql, true, limit));
+			esql.reportJobs().followAll(jobs);
+		}
+		catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
 	
 }
@@ -0,0 +1,382 @@
+/*
+ * Latency metrics for the Mechanic Shop
+ * =====================================
+ *
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * This class defines the shop's latency metrics. Every database call is
+ * timed into a histogram per SQL shape, with the rows and bytes it returned
+ * or wrote, and every operation (a menu item, an HTTP request, a batch
+ * chunk) into a histogram per operation, next to the share of that time
+ * spent in the database. Both are also emitted as JFR events, so a flight
+ * recording shows each call with the operation it ran under.
+ *
+ * The metrics are exported as the MBean MechanicShop:type=Metrics and, when
+ * shop.metrics.file is set, written to that file as JSON every
+ * shop.metrics.intervalMs and on exit.
+ *
+ */
+public class Metrics implements MetricsMBean {
+	static final String OBJECT_NAME = "MechanicShop:type=Metrics";
+	static final long DEFAULT_INTERVAL_MS = 60000;
+	static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/**
+	 * JFR event for one database call.
+	 */
+	@Name("shop.DatabaseCall")
+	@Label("Database Call")
+	@Category("Mechanic Shop")
+	@Description("A statement sent by the shop, timed until its result was read")
+	static class DatabaseCallEvent extends jdk.jfr.Event {
+		@Label("SQL")
+		String sql;
+		@Label("Operation")
+		String operation;
+		@Label("Rows")
+		long rows;
+		@Label("Bytes")
+		long bytes;
+	}//end DatabaseCallEvent
+
+	/**
+	 * JFR event for one operation.
+	 */
+	@Name("shop.Operation")
+	@Label("Operation")
+	@Category("Mechanic Shop")
+	@Description("A menu operation, HTTP request or batch chunk")
+	static class OperationEvent extends jdk.jfr.Event {
+		@Label("Operation")
+		String operation;
+		@Label("Database Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long databaseTime;
+	}//end OperationEvent
+
+	/**
+	 * The numbers kept for one name.
+	 */
+	static class Stat {
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+
+		Stat(String name) {
+			this.name = name;
+		}
+	}//end Stat
+
+	/**
+	 * The operation running on a thread and the database time it used so far.
+	 */
+	private static class Operation {
+		final String name;
+		long databaseNanos = 0;
+
+		Operation(String name) {
+			this.name = name;
+		}
+	}//end Operation
+
+	/**
+	 * A database call in progress.
+	 */
+	public class Call {
+		private final Stat _stat;
+		private final String _sql;
+		private final Object[] _params;
+		private final long _start = System.nanoTime();
+		private final DatabaseCallEvent _event = new DatabaseCallEvent();
+
+		private Call(Stat stat, String sql, Object[] params) {
+			this._stat = stat;
+			this._sql = sql;
+			this._params = params;
+			this._event.begin();
+		}
+
+		/**
+		 * Method to end the call.
+		 *
+		 * @param rows the rows returned or changed
+		 * @param bytes the bytes of data returned or written
+		 */
+		public void done(long rows, long bytes) {
+			long elapsed = System.nanoTime() - this._start;
+			this._stat.latency.record(elapsed);
+			this._stat.rows.add(rows);
+			this._stat.bytes.add(bytes);
+			Operation op = Metrics.this._current.get();
+			if (op != null) {
+				op.databaseNanos += elapsed;
+			}
+			SlowQueryLog slow = Metrics.this._slowLog;
+			if (slow != null && elapsed >= slow.thresholdNanos()) {
+				slow.offer(this._sql, this._params, elapsed, op == null ? null : op.name);
+			}
+			this._event.end();
+			if (this._event.shouldCommit()) {
+				this._event.sql = this._stat.name;
+				this._event.operation = op == null ? null : op.name;
+				this._event.rows = rows;
+				this._event.bytes = bytes;
+				this._event.commit();
+			}
+		}
+	}//end Call
+
+	/**
+	 * An operation body; exceptions pass through untouched.
+	 */
+	public interface Action {
+		void run() throws Exception;
+	}
+
+	private final ConcurrentHashMap<String, Stat> _sql = new ConcurrentHashMap<String, Stat>();
+	private final ConcurrentHashMap<String, Stat> _operations = new ConcurrentHashMap<String, Stat>();
+	private final ThreadLocal<Operation> _current = new ThreadLocal<Operation>();
+	private final long _started = System.currentTimeMillis();
+	private ScheduledExecutorService _writer = null;
+	private ObjectName _registered = null;
+	private volatile SlowQueryLog _slowLog = null;
+
+	/**
+	 * Method to register the MBean and start writing the metrics file, if
+	 * one is configured.
+	 */
+	public synchronized void start() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+				this._registered = name;
+			}
+		} catch (JMException e) {
+			System.err.println("Metrics are not available over JMX: " + e.getMessage());
+		}
+		String file = System.getProperty("shop.metrics.file");
+		if (file != null && this._writer == null) {
+			long interval = Math.max(1000, Long.getLong("shop.metrics.intervalMs", DEFAULT_INTERVAL_MS));
+			this._writer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "shop-metrics");
+				t.setDaemon(true);
+				return t;
+			});
+			this._writer.scheduleWithFixedDelay(() -> write(Paths.get(file)), interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Method to write the metrics file a last time and unregister the MBean.
+	 */
+	public synchronized void stop() {
+		if (this._writer != null) {
+			this._writer.shutdownNow();
+			this._writer = null;
+			write(Paths.get(System.getProperty("shop.metrics.file")));
+		}
+		if (this._registered != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._registered);
+			} catch (JMException e) {
+				// already gone
+			}
+			this._registered = null;
+		}
+	}
+
+	/**
+	 * Method to send the calls slower than its threshold to a slow query log.
+	 *
+	 * @param log the log, or null to stop logging
+	 */
+	public void slowLog(SlowQueryLog log) {
+		this._slowLog = log;
+	}
+
+	/**
+	 * Method to start timing a database call that has no single set of
+	 * parameters, such as a batch or a COPY.
+	 *
+	 * @param sql the statement; its shape names the histogram
+	 * @return the call, to be ended with done
+	 */
+	public Call call(String sql) {
+		return call(sql, null);
+	}
+
+	/**
+	 * Method to start timing a database call.
+	 *
+	 * @param sql the statement, with ? placeholders; its shape names the histogram
+	 * @param params the values bound to the placeholders, kept for the slow query log
+	 * @return the call, to be ended with done
+	 */
+	public Call call(String sql, Object[] params) {
+		Stat stat = this._sql.get(sql);
+		if (stat == null) {
+			stat = this._sql.computeIfAbsent(sql, s -> new Stat("sql " + s.replaceAll("\\s+", " ").trim()));
+		}
+		return new Call(stat, sql, params);
+	}
+
+	/**
+	 * Method to run and time an operation.  Database calls made while it
+	 * runs are attributed to it, and their time is also recorded under
+	 * "&lt;name&gt; (database)".  An operation run inside another adds its
+	 * database time to the outer one.
+	 *
+	 * @param name the operation name
+	 * @param action the operation
+	 * @throws java.lang.Exception whatever the operation throws
+	 */
+	public void time(String name, Action action) throws Exception {
+		Operation outer = this._current.get();
+		Operation op = new Operation(name);
+		this._current.set(op);
+		OperationEvent event = new OperationEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			action.run();
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			if (outer == null) {
+				this._current.remove();
+			} else {
+				this._current.set(outer);
+				outer.databaseNanos += op.databaseNanos;
+			}
+			operation(name).latency.record(elapsed);
+			operation(name + " (database)").latency.record(op.databaseNanos);
+			event.end();
+			if (event.shouldCommit()) {
+				event.operation = name;
+				event.databaseTime = op.databaseNanos;
+				event.commit();
+			}
+		}
+	}
+
+	private Stat operation(String name) {
+		Stat stat = this._operations.get(name);
+		return stat != null ? stat : this._operations.computeIfAbsent(name, n -> new Stat("operation " + n));
+	}
+
+	private List<Stat> stats() {
+		List<Stat> all = new ArrayList<Stat>(this._operations.values());
+		all.addAll(this._sql.values());
+		Collections.sort(all, (a, b) -> a.name.compareTo(b.name));
+		return all;
+	}
+
+	private Stat find(String name) {
+		for (Stat s : stats()) {
+			if (s.name.equals(name)) {
+				return s;
+			}
+		}
+		throw new IllegalArgumentException("No metric named " + name);
+	}
+
+	@Override
+	public String[] getNames() {
+		List<Stat> all = stats();
+		String[] names = new String[all.size()];
+		for (int i = 0; i < names.length; ++i) {
+			names[i] = all.get(i).name;
+		}
+		return names;
+	}
+
+	@Override
+	public long count(String name) {
+		return find(name).latency.count();
+	}
+
+	@Override
+	public double percentileMillis(String name, double percentile) {
+		return find(name).latency.percentile(percentile) / 1e6;
+	}
+
+	@Override
+	public void reset() {
+		for (Stat s : stats()) {
+			s.latency.reset();
+			s.rows.reset();
+			s.bytes.reset();
+		}
+	}
+
+	/**
+	 * Method to describe every metric as JSON: per name, the count, the
+	 * mean, p50, p90, p99, p999 and max latency in microseconds, and the
+	 * rows and bytes.
+	 */
+	@Override
+	public String getSnapshot() {
+		StringBuilder out = new StringBuilder(4096);
+		out.append("{\"time\":");
+		Json.quote(out, Instant.now().toString());
+		out.append(",\"uptimeMs\":").append(System.currentTimeMillis() - this._started).append(",\"metrics\":[");
+		boolean first = true;
+		for (Stat s : stats()) {
+			out.append(first ? "\n{\"name\":" : ",\n{\"name\":");
+			first = false;
+			Json.quote(out, s.name);
+			LatencyHistogram h = s.latency;
+			out.append(",\"count\":").append(h.count());
+			out.append(",\"meanUs\":").append(Math.round(h.mean() / 1000));
+			for (double p : PERCENTILES) {
+				out.append(",\"p").append(p == Math.rint(p) ? Integer.toString((int) p) : Double.toString(p).replace(".", "")).append("Us\":")
+					.append(h.percentile(p) / 1000);
+			}
+			out.append(",\"maxUs\":").append(h.max() / 1000);
+			out.append(",\"rows\":").append(s.rows.sum());
+			out.append(",\"bytes\":").append(s.bytes.sum()).append('}');
+		}
+		return out.append("\n]}\n").toString();
+	}
+
+	// replaces the file in one step so readers never see half of it
+	private void write(Path file) {
+		try {
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.write(tmp, getSnapshot().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Cannot write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * JMX view of the Mechanic Shop metrics
+ * =====================================
+ *
+ */
+
+/**
+ * This interface defines what the metrics expose over JMX, under the name
+ * MechanicShop:type=Metrics.
+ *
+ */
+public interface MetricsMBean {
+
+	/**
+	 * @return the names of the operations and SQL shapes timed so far
+	 */
+	String[] getNames();
+
+	/**
+	 * @return every metric as the JSON written to the metrics file
+	 */
+	String getSnapshot();
+
+	long count(String name);
+
+	/**
+	 * @param name a name from getNames
+	 * @param percentile between 0 and 100
+	 * @return the latency at the percentile, in milliseconds
+	 */
+	double percentileMillis(String name, double percentile);
+
+	void reset();
+}
@@ -0,0 +1,115 @@
+/*
+ * Open service request queue for the Mechanic Shop
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class defines the work queue of open service requests. The database
+ * is the only copy of the queue, so requests opened by another console, by
+ * batch or by serve can be closed here at once. Lookups by rid, VIN and
+ * customer and every page read only the waiting requests, through the
+ * partial index service_request_open_idx and the keys of the request
+ * partitions, so finding and closing a request costs the same whatever
+ * the size of the closed history.
+ *
+ */
+public class OpenRequestQueue {
+
+	/**
+	 * One open service request.
+	 */
+	public static class OpenRequest {
+		public final int rid;
+		public final int customerId;
+		public final String vin;
+		public final Date date;
+		public final int odometer;
+		public final String complaint;
+
+		public OpenRequest(int rid, int customerId, String vin, Date date, int odometer, String complaint) {
+			this.rid = rid;
+			this.customerId = customerId;
+			this.vin = vin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complaint = complaint;
+		}
+
+		@Override
+		public String toString() {
+			return "rid " + this.rid + ", customer " + this.customerId + ", " + this.vin + ", " + this.date + ", " + this.odometer + ", " + this.complaint;
+		}
+	}//end OpenRequest
+
+	static final String BY_RID_SQL = MechanicShop.OPEN_REQUESTS_SQL + " AND S.rid = ?";
+	static final String BY_VIN_SQL = MechanicShop.OPEN_REQUESTS_SQL + " AND S.car_vin = ? ORDER BY S.rid";
+	static final String BY_CUSTOMER_SQL = MechanicShop.OPEN_REQUESTS_SQL + " AND S.customer_id = ? ORDER BY S.rid";
+	static final String PAGE_SQL = MechanicShop.OPEN_REQUESTS_SQL + " AND S.rid > ? ORDER BY S.rid LIMIT ?";
+	static final String SIZE_SQL = "SELECT COUNT(*) FROM Service_Request S WHERE S.status = 'W'";
+
+	/**
+	 * Method to look up an open request by its number.
+	 *
+	 * @param esql the connected shop
+	 * @param rid the service request number
+	 * @return the request, or null when it does not exist or is not open
+	 * @throws java.sql.SQLException when the request cannot be read
+	 */
+	public OpenRequest get(MechanicShop esql, int rid) throws SQLException {
+		List<OpenRequest> requests = read(esql, BY_RID_SQL, rid);
+		return requests.isEmpty() ? null : requests.get(0);
+	}
+
+	public List<OpenRequest> byVin(MechanicShop esql, String vin) throws SQLException {
+		return read(esql, BY_VIN_SQL, vin);
+	}
+
+	public List<OpenRequest> byCustomer(MechanicShop esql, int customerId) throws SQLException {
+		return read(esql, BY_CUSTOMER_SQL, customerId);
+	}
+
+	/**
+	 * Method to page through the open requests in rid order.
+	 *
+	 * @param esql the connected shop
+	 * @param afterRid only requests with a larger rid are returned; use
+	 *                 Integer.MIN_VALUE for the first page
+	 * @param limit the page size
+	 * @return at most limit requests
+	 * @throws java.sql.SQLException when the page cannot be read
+	 */
+	public List<OpenRequest> page(MechanicShop esql, int afterRid, int limit) throws SQLException {
+		return read(esql, PAGE_SQL, afterRid, limit);
+	}
+
+	/**
+	 * Method to count the open requests, from the partial index alone.
+	 *
+	 * @param esql the connected shop
+	 * @return the number of waiting requests
+	 * @throws java.sql.SQLException when the count cannot be read
+	 */
+	public int size(MechanicShop esql) throws SQLException {
+		try (RowCursor rs = esql.openCursor(SIZE_SQL)) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	private static List<OpenRequest> read(MechanicShop esql, String sql, Object... params) throws SQLException {
+		List<OpenRequest> requests = new ArrayList<OpenRequest>();
+		try (RowCursor rs = esql.openCursor(sql, params)) {
+			while (rs.next()) {
+				requests.add(new OpenRequest(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getDate(4), rs.getInt(5), rs.getString(6)));
+			}
+		}
+		return requests;
+	}
+}
@@ -0,0 +1,381 @@
+/*
+ * Open service counts per car for the Mechanic Shop
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class defines the number of open service requests per car, kept in a
+ * counter map over an indexed max-heap. The counts are read from the
+ * database on first use, and the insert and close operations of this
+ * process update them, so each change costs O(log n) in the number of
+ * cars with open requests, and the k cars with the most open
+ * requests are read from the top of the heap in O(k log k) without going
+ * to the database. Cars with equal counts are ordered by VIN.
+ *
+ * Requests opened and closed by other processes only reach the counts
+ * when they are read again, and a read is the whole grouping of VERIFY_SQL
+ * over the open requests, so it is kept rare: a report reads the counts
+ * again once they are older than shop.openCounts.refreshMs, a minute by
+ * default. Between reads the report may miss up to that much of the work
+ * of other processes; a shorter interval trades more of these reads for
+ * fresher counts, and 0 keeps them until invalidated.
+ *
+ */
+public class OpenServiceCounts {
+
+	/**
+	 * One row of the report: a car and its number of open requests.
+	 */
+	public static class CarCount {
+		public final String vin;
+		public final String make;
+		public final String model;
+		public final int count;
+
+		CarCount(String vin, String make, String model, int count) {
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.count = count;
+		}
+	}//end CarCount
+
+	// a heap slot; pos is kept current so an entry can be moved in place
+	private static class Entry {
+		final String vin;
+		String make;
+		String model;
+		int count;
+		int pos;
+
+		Entry(String vin) {
+			this.vin = vin;
+		}
+	}//end Entry
+
+	static final long DEFAULT_REFRESH_MS = 60000;
+	static final String CAR_NAMES_SQL = "SELECT vin, make, model FROM car WHERE vin = ANY(?)";
+	static final String VERIFY_SQL =
+		"SELECT S.car_vin, COUNT(*) " +
+		"FROM Service_Request S " +
+		"WHERE S.status = 'W' " +
+		"GROUP BY S.car_vin";
+
+	private final Map<String, Entry> _byVin = new HashMap<String, Entry>();
+	private final List<Entry> _heap = new ArrayList<Entry>();
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private final long _refreshMillis;
+	private volatile boolean _loaded = false;
+	private volatile long _loadedAt;
+
+	public OpenServiceCounts() {
+		this(Long.getLong("shop.openCounts.refreshMs", DEFAULT_REFRESH_MS));
+	}
+
+	/**
+	 * @param refreshMillis age after which the counts are read again, or 0
+	 *                      to keep them until invalidated
+	 */
+	public OpenServiceCounts(long refreshMillis) {
+		this._refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Method to read the counts from the database unless they are loaded
+	 * and younger than the refresh interval.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public void ensureLoaded(MechanicShop esql) throws SQLException {
+		if (current()) {
+			return;
+		}
+		this._lock.writeLock().lock();
+		try {
+			if (current()) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			load(esql);
+			this._loadedAt = start;
+			this._loaded = true;
+		} finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to forget the counts so the next use reads them again.
+	 */
+	public void invalidate() {
+		this._lock.writeLock().lock();
+		try {
+			this._loaded = false;
+			this._byVin.clear();
+			this._heap.clear();
+		} finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to count one more open request for a car.  Before the counts
+	 * are loaded there is nothing to update.
+	 *
+	 * @param vin the car's VIN
+	 */
+	public void increment(String vin) {
+		this._lock.writeLock().lock();
+		try {
+			if (!this._loaded) {
+				return;
+			}
+			Entry e = this._byVin.get(vin);
+			if (e == null) {
+				e = new Entry(vin);
+				e.pos = this._heap.size();
+				this._heap.add(e);
+				this._byVin.put(vin, e);
+			}
+			++e.count;
+			siftUp(e.pos);
+		} finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to count one less open request for a car.  A car without open
+	 * requests leaves the heap.
+	 *
+	 * @param vin the car's VIN
+	 */
+	public void decrement(String vin) {
+		this._lock.writeLock().lock();
+		try {
+			Entry e = this._byVin.get(vin);
+			if (e == null) {
+				return;
+			}
+			if (--e.count > 0) {
+				siftDown(e.pos);
+				return;
+			}
+			this._byVin.remove(vin);
+			Entry last = this._heap.remove(this._heap.size() - 1);
+			if (last != e) {
+				last.pos = e.pos;
+				this._heap.set(e.pos, last);
+				siftDown(last.pos);
+				siftUp(last.pos);
+			}
+		} finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public int count(String vin) {
+		this._lock.readLock().lock();
+		try {
+			Entry e = this._byVin.get(vin);
+			return e == null ? 0 : e.count;
+		} finally {
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to list the k cars with the most open requests.  The heap is
+	 * walked best-first from its root, so only about k entries are visited.
+	 * Make and model are read from the database the first time a car is
+	 * listed and remembered after that.
+	 *
+	 * @param esql the connected shop, used for cars not listed before
+	 * @param k the number of cars wanted
+	 * @return at most k cars, most open requests first
+	 * @throws java.sql.SQLException when make and model cannot be read
+	 */
+	public List<CarCount> top(MechanicShop esql, int k) throws SQLException {
+		List<Entry> entries = new ArrayList<Entry>(Math.min(k, 1024));
+		Map<String, Entry> unnamed = new HashMap<String, Entry>();
+		this._lock.readLock().lock();
+		try {
+			PriorityQueue<Integer> frontier = new PriorityQueue<Integer>((a, b) -> compare(this._heap.get(a), this._heap.get(b)));
+			if (!this._heap.isEmpty()) {
+				frontier.add(0);
+			}
+			while (entries.size() < k && !frontier.isEmpty()) {
+				int i = frontier.poll();
+				Entry e = this._heap.get(i);
+				entries.add(e);
+				if (e.make == null) {
+					unnamed.put(e.vin, e);
+				}
+				if (2 * i + 1 < this._heap.size()) {
+					frontier.add(2 * i + 1);
+				}
+				if (2 * i + 2 < this._heap.size()) {
+					frontier.add(2 * i + 2);
+				}
+			}
+		} finally {
+			this._lock.readLock().unlock();
+		}
+		describe(esql, unnamed);
+		List<CarCount> top = new ArrayList<CarCount>(entries.size());
+		this._lock.readLock().lock();
+		try {
+			for (Entry e : entries) {
+				top.add(new CarCount(e.vin, e.make, e.model, e.count));
+			}
+		} finally {
+			this._lock.readLock().unlock();
+		}
+		return top;
+	}//end top
+
+	/**
+	 * Method to compare the counts with the database.
+	 *
+	 * @param esql the connected shop
+	 * @return one line per car whose count differs, empty when they agree
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public List<String> verify(MechanicShop esql) throws SQLException {
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		try (RowCursor rs = esql.openCursor(VERIFY_SQL)) {
+			while (rs.next()) {
+				expected.put(rs.getString(1), rs.getInt(2));
+			}
+		}
+		List<String> problems = new ArrayList<String>();
+		this._lock.readLock().lock();
+		try {
+			for (Map.Entry<String, Integer> row : expected.entrySet()) {
+				Entry e = this._byVin.get(row.getKey());
+				int actual = e == null ? 0 : e.count;
+				if (actual != row.getValue()) {
+					problems.add(row.getKey().trim() + ": " + actual + " in memory, " + row.getValue() + " in the database");
+				}
+			}
+			for (Entry e : this._byVin.values()) {
+				if (!expected.containsKey(e.vin)) {
+					problems.add(e.vin.trim() + ": " + e.count + " in memory, 0 in the database");
+				}
+			}
+		} finally {
+			this._lock.readLock().unlock();
+		}
+		return problems;
+	}//end verify
+
+	// reads make and model for the listed cars that do not have them yet
+	private void describe(MechanicShop esql, Map<String, Entry> missing) throws SQLException {
+		if (missing.isEmpty()) {
+			return;
+		}
+		String[] vins = missing.keySet().toArray(new String[missing.size()]);
+		// makes and models repeat across cars, so the entries share their strings
+		ColumnarResult rows = esql.executeQueryAndReturnColumns(CAR_NAMES_SQL, (Object) vins);
+		this._lock.writeLock().lock();
+		try {
+			for (int i = 0; i < rows.rowCount(); ++i) {
+				Entry e = missing.get(rows.getString(i, 1));
+				if (e != null) {
+					e.make = rows.getString(i, 2);
+					e.model = rows.getString(i, 3);
+				}
+			}
+		} finally {
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private boolean current() {
+		return this._loaded && (this._refreshMillis <= 0 || System.currentTimeMillis() - this._loadedAt < this._refreshMillis);
+	}
+
+	// replaces the counts with the database's, keeping the makes and models already read
+	private void load(MechanicShop esql) throws SQLException {
+		Map<String, Entry> previous = new HashMap<String, Entry>(this._byVin);
+		this._byVin.clear();
+		this._heap.clear();
+		try (RowCursor rs = esql.openCursor(VERIFY_SQL)) {
+			while (rs.next()) {
+				Entry e = new Entry(rs.getString(1));
+				e.count = rs.getInt(2);
+				Entry old = previous.get(e.vin);
+				if (old != null) {
+					e.make = old.make;
+					e.model = old.model;
+				}
+				e.pos = this._heap.size();
+				this._heap.add(e);
+				this._byVin.put(e.vin, e);
+			}
+		}
+		for (int i = this._heap.size() / 2 - 1; i >= 0; --i) {
+			siftDown(i);
+		}
+	}
+
+	// heap order: more open requests first, then by VIN
+	private static int compare(Entry a, Entry b) {
+		if (a.count != b.count) {
+			return a.count > b.count ? -1 : 1;
+		}
+		return a.vin.compareTo(b.vin);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (compare(this._heap.get(i), this._heap.get(parent)) >= 0) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		int n = this._heap.size();
+		while (true) {
+			int best = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < n && compare(this._heap.get(left), this._heap.get(best)) < 0) {
+				best = left;
+			}
+			if (right < n && compare(this._heap.get(right), this._heap.get(best)) < 0) {
+				best = right;
+			}
+			if (best == i) {
+				return;
+			}
+			swap(i, best);
+			i = best;
+		}
+	}
+
+	private void swap(int i, int j) {
+		Entry a = this._heap.get(i);
+		Entry b = this._heap.get(j);
+		a.pos = j;
+		b.pos = i;
+		this._heap.set(i, b);
+		this._heap.set(j, a);
+	}
+}
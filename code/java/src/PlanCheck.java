@@ -0,0 +1,281 @@
+/*
+ * Query plan regression checks for the Mechanic Shop
+ * ===================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class defines the plan regression suite for the SQL issued by the ten
+ * menu operations. Each statement runs under EXPLAIN (ANALYZE, BUFFERS) with
+ * representative values, writes inside a rolled back transaction. A check
+ * fails when its plan sequentially scans a table larger than the scan
+ * threshold, unless the statement is expected to read that whole table, or
+ * when its execution time crosses the time threshold. A scan of a partition
+ * counts as a scan of its table, and the date-range reports also fail when
+ * they read a partition outside their range. Run it against a scaled
+ * dataset; on the small seed set the planner rightly prefers scans.
+ *
+ */
+public class PlanCheck {
+
+	/**
+	 * One statement to explain.
+	 */
+	static class Check {
+		final String name;
+		final String sql;
+		final Object[] params;
+		final Set<String> fullScans;
+		// the only partitions of the pruned table the plan may read
+		String prunedTable;
+		Set<String> partitions;
+
+		Check(String name, String sql, Object[] params, String... fullScans) {
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+			this.fullScans = new HashSet<String>(Arrays.asList(fullScans));
+		}
+
+		Check prunes(String table, String... partitions) {
+			this.prunedTable = table;
+			this.partitions = new HashSet<String>(Arrays.asList(partitions));
+			return this;
+		}
+	}//end Check
+
+	private final MechanicShop _esql;
+	private final long _maxMillis;
+	private final long _seqScanRows;
+	private final Map<String, Double> _tableRows = new HashMap<String, Double>();
+	private final Map<String, String> _parents = new HashMap<String, String>();
+
+	public PlanCheck(MechanicShop esql, long maxMillis, long seqScanRows) {
+		this._esql = esql;
+		this._maxMillis = maxMillis;
+		this._seqScanRows = seqScanRows;
+	}
+
+	/**
+	 * Method to run the command line form of the suite.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: [maxMillis] [seqScanRows]
+	 * @return true when every check passed
+	 * @throws java.sql.SQLException when a statement cannot be explained
+	 */
+	public static boolean run(MechanicShop esql, String[] args) throws SQLException {
+		long maxMillis = args.length > 0 ? Long.parseLong(args[0]) : Long.getLong("shop.plancheck.maxMs", 250L);
+		long seqScanRows = args.length > 1 ? Long.parseLong(args[1]) : Long.getLong("shop.plancheck.seqScanRows", 1000L);
+		return new PlanCheck(esql, maxMillis, seqScanRows).runAll();
+	}
+
+	/**
+	 * Method to explain every menu statement and print one line per check.
+	 *
+	 * @return true when every check passed
+	 * @throws java.sql.SQLException when a statement cannot be explained
+	 */
+	public boolean runAll() throws SQLException {
+		int failures = 0;
+		List<Check> checks = checks();
+		for (Check check : checks) {
+			List<String> problems = explain(check);
+			System.out.println((problems.isEmpty() ? "PASS  " : "FAIL  ") + check.name);
+			for (String problem : problems) {
+				System.out.println("        " + problem);
+			}
+			if (!problems.isEmpty()) {
+				++failures;
+			}
+		}
+		System.out.println((checks.size() - failures) + " of " + checks.size() + " plan checks passed");
+		return failures == 0;
+	}
+
+	/**
+	 * Method to build the checks, one per statement of the menu operations,
+	 * with parameter values taken from the loaded data.
+	 *
+	 * @return the checks in menu order
+	 * @throws java.sql.SQLException when the sample values cannot be read
+	 */
+	List<Check> checks() throws SQLException {
+		int customerId = Integer.parseInt(required("SELECT id FROM customer ORDER BY id LIMIT 1"));
+		String vin = required("SELECT vin FROM car ORDER BY vin LIMIT 1");
+		int mechanicId = Integer.parseInt(required("SELECT id FROM mechanic ORDER BY id LIMIT 1"));
+		int rid = Integer.parseInt(required("SELECT rid FROM service_request ORDER BY rid DESC LIMIT 1"));
+		java.sql.Date today = java.sql.Date.valueOf(java.time.LocalDate.now());
+		// the date-range reports ask about the latest year with closed requests
+		int year = Integer.parseInt(required("SELECT extract(year FROM MAX(date))::integer FROM closed_request"));
+		java.sql.Date from = java.sql.Date.valueOf(java.time.LocalDate.of(year, 1, 1));
+		java.sql.Date to = java.sql.Date.valueOf(java.time.LocalDate.of(year + 1, 1, 1));
+		String newVin = "PLANCHECK0000000";
+
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("1. AddCustomer insert", MechanicShop.INSERT_CUSTOMER_SQL,
+			new Object[] { -1, "Plan", "Check", "(000)000-0000", "plan check" }));
+		checks.add(new Check("2. AddMechanic insert", MechanicShop.INSERT_MECHANIC_SQL,
+			new Object[] { -1, "Plan", "Check", 1 }));
+		checks.add(new Check("3. AddCar vin check", MechanicShop.CAR_BY_VIN_SQL, new Object[] { vin }));
+		checks.add(new Check("3. AddCar insert", MechanicShop.INSERT_CAR_SQL, new Object[] { newVin, "Make", "Model", 2000 }));
+		// loaded once per process into the customer directory
+		checks.add(new Check("3. AddCar customer directory", CustomerDirectory.CUSTOMERS_SQL, new Object[0], "customer"));
+		// customers the directory does not have yet
+		checks.add(new Check("3. AddCar customer name search", CustomerDirectory.SEARCH_SQL, new Object[] { "plan%", 20 }));
+		checks.add(new Check("3. AddCar ownership insert", MechanicShop.INSERT_OWNS_SQL, new Object[] { -1, customerId, vin }));
+		checks.add(new Check("4. InsertServiceRequest cars owned", MechanicShop.CARS_OWNED_SQL, new Object[] { customerId }));
+		checks.add(new Check("4. InsertServiceRequest insert", MechanicShop.INSERT_SERVICE_REQUEST_SQL,
+			new Object[] { -1, customerId, vin, today, 1, "plan check" }));
+		checks.add(new Check("5. CloseServiceRequest mechanic check", MechanicShop.MECHANIC_BY_ID_SQL, new Object[] { mechanicId }));
+		checks.add(new Check("5. CloseServiceRequest insert", MechanicShop.INSERT_CLOSED_REQUEST_SQL,
+			new Object[] { -1, rid, mechanicId, today, "plan check", 1 }));
+		checks.add(new Check("5. CloseServiceRequest bill total", MechanicShop.ADD_BILL_TOTAL_SQL, new Object[] { 1, rid }));
+		// read from the partial index of the open requests on every lookup
+		checks.add(new Check("5. CloseServiceRequest open request page", OpenRequestQueue.PAGE_SQL,
+			new Object[] { Integer.MIN_VALUE, MechanicShop.OPEN_REQUEST_PAGE_SIZE }));
+		checks.add(new Check("5. CloseServiceRequest open requests by vin", OpenRequestQueue.BY_VIN_SQL, new Object[] { vin }));
+		checks.add(new Check("5. CloseServiceRequest open request count", OpenRequestQueue.SIZE_SQL, new Object[0]));
+		checks.add(new Check("6. ListCustomersWithBillLessThan100", MechanicShop.REPORT_BILL_LESS_THAN_100_SQL, new Object[0]));
+		checks.add(new Check("6. ListCustomersWithBillLessThan100 in " + year, MechanicShop.REPORT_BILL_LESS_THAN_100_WINDOW_SQL,
+			new Object[] { from, to }).prunes("closed_request", "closed_request_" + year));
+		// the report counts every ownership
+		checks.add(new Check("7. ListCustomersWithMoreThan20Cars", MechanicShop.REPORT_MORE_THAN_20_CARS_SQL, new Object[0],
+			"owns", "customer"));
+		checks.add(new Check("8. ListCarsBefore1995With50000Milles", MechanicShop.REPORT_CARS_BEFORE_1995_SQL, new Object[0]));
+		// report 9 is served from the open service counts, which V and R count again
+		checks.add(new Check("9. ListKCarsWithTheMostServices open service counts", OpenServiceCounts.VERIFY_SQL, new Object[0]));
+		checks.add(new Check("9. ListKCarsWithTheMostServices car names", OpenServiceCounts.CAR_NAMES_SQL,
+			new Object[] { new String[] { vin } }));
+		// lists every customer with a total
+		checks.add(new Check("10. ListCustomersInDescendingOrderOfTheirTotalBill", MechanicShop.REPORT_TOTAL_BILL_SQL, new Object[0],
+			"customer_bill_total", "customer"));
+		checks.add(new Check("10. ListCustomersInDescendingOrderOfTheirTotalBill top 10", MechanicShop.REPORT_TOP_N_TOTAL_BILL_SQL, new Object[] { 10 }));
+		// sums the closed requests of the year, whose requests may be from any year before, per customer
+		checks.add(new Check("10. ListCustomersInDescendingOrderOfTheirTotalBill in " + year, MechanicShop.REPORT_TOTAL_BILL_WINDOW_SQL,
+			new Object[] { from, to, to }, "closed_request", "service_request", "customer").prunes("closed_request", "closed_request_" + year));
+		return checks;
+	}
+
+	/**
+	 * Method to explain one statement and list what is wrong with its plan.
+	 *
+	 * @param check the statement and its parameters
+	 * @return the problems found, empty when the check passes
+	 * @throws java.sql.SQLException when the statement cannot be explained
+	 */
+	@SuppressWarnings("unchecked")
+	List<String> explain(Check check) throws SQLException {
+		List<String> problems = new ArrayList<String>();
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		Connection c = conn.connection();
+		try {
+			// EXPLAIN ANALYZE runs the statement, so writes are rolled back
+			c.setAutoCommit(false);
+			Object plan;
+			try (PreparedStatement stmt = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) " + check.sql)) {
+				StatementCache.bind(stmt, check.params);
+				try (ResultSet rs = stmt.executeQuery()) {
+					rs.next();
+					plan = Json.parse(rs.getString(1));
+				}
+			} finally {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			Map<String, Object> root = (Map<String, Object>) ((List<Object>) plan).get(0);
+			double millis = ((Number) root.get("Execution Time")).doubleValue();
+			if (millis > this._maxMillis) {
+				problems.add(String.format("execution took %.1f ms, threshold %d ms", millis, this._maxMillis));
+			}
+			List<String> scans = new ArrayList<String>();
+			List<String> reads = new ArrayList<String>();
+			collectScans((Map<String, Object>) root.get("Plan"), scans, reads);
+			for (String table : scans) {
+				if (!check.fullScans.contains(parent(table)) && tableRows(table) > this._seqScanRows) {
+					problems.add("sequential scan on " + table + " (" + (long) tableRows(table) + " rows)");
+				}
+			}
+			if (check.prunedTable != null) {
+				for (String table : reads) {
+					if (check.prunedTable.equals(parent(table)) && !check.partitions.contains(table)) {
+						problems.add("reads partition " + table + " outside the date range");
+					}
+				}
+			}
+		} finally {
+			this._esql.release();
+		}
+		return problems;
+	}
+
+	// the sequentially scanned relations, and every relation read
+	@SuppressWarnings("unchecked")
+	private static void collectScans(Map<String, Object> node, List<String> scans, List<String> reads) {
+		Object relation = node.get("Relation Name");
+		if (relation != null) {
+			reads.add(((String) relation).toLowerCase());
+			if ("Seq Scan".equals(node.get("Node Type"))) {
+				scans.add(((String) relation).toLowerCase());
+			}
+		}
+		Object children = node.get("Plans");
+		if (children != null) {
+			for (Object child : (List<Object>) children) {
+				collectScans((Map<String, Object>) child, scans, reads);
+			}
+		}
+	}
+
+	// the partitioned table of a partition, the table itself otherwise
+	private String parent(String table) throws SQLException {
+		String parent = this._parents.get(table);
+		if (parent == null) {
+			parent = sample("SELECT i.inhparent::regclass::text FROM pg_inherits i, pg_class c " +
+				"WHERE i.inhrelid = c.oid AND c.relname = '" + table.replace("'", "''") + "'");
+			parent = parent == null ? table : parent.toLowerCase();
+			this._parents.put(table, parent);
+		}
+		return parent;
+	}
+
+	private double tableRows(String table) throws SQLException {
+		Double rows = this._tableRows.get(table);
+		if (rows == null) {
+			String value = sample("SELECT reltuples FROM pg_class WHERE relname = '" + table.replace("'", "''") + "' AND relkind IN ('r', 'p')");
+			rows = value == null ? 0.0 : Double.parseDouble(value);
+			this._tableRows.put(table, rows);
+		}
+		return rows;
+	}
+
+	private String required(String query) throws SQLException {
+		String value = sample(query);
+		if (value == null) {
+			throw new IllegalStateException("The plan checks need loaded data, nothing found for: " + query);
+		}
+		return value;
+	}
+
+	private String sample(String query) throws SQLException {
+		List<List<String>> rows = this._esql.executeQueryAndReturnResult(query);
+		if (rows.isEmpty()) {
+			return null;
+		}
+		return rows.get(0).get(0).trim();
+	}
+}
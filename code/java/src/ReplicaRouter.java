@@ -0,0 +1,280 @@
+/*
+ * Read replica routing for the Mechanic Shop
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the routing of reports to read replicas. Every
+ * shop.replica.checkMs each replica in shop.replica.urls is asked how far
+ * it has replayed the primary's WAL, which gives the instant up to which it
+ * holds every commit of the primary. A report goes to a replica, in turn,
+ * when that instant is no older than shop.replica.maxLagMs and no older
+ * than the last write this client committed, so a clerk always sees their
+ * own writes. Otherwise, or when the replica cannot be reached, the report
+ * runs on the primary. Writes and the lookups of the menu operations always
+ * run on the primary.
+ *
+ * A server that is not in recovery counts as fully caught up, so any second
+ * PostgreSQL instance with the shop's tables can stand in for a replica.
+ *
+ */
+public class ReplicaRouter {
+	static final long DEFAULT_MAX_LAG_MS = 5000;
+	static final long DEFAULT_CHECK_MS = 1000;
+	static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::text";
+	// in recovery, caught up with the given primary LSN, and the age of the last replayed commit
+	static final String REPLICA_STATE_SQL =
+		"SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn() >= ?::pg_lsn, " +
+		"(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::bigint";
+
+	/**
+	 * One replica endpoint and what the last check found.
+	 */
+	static class Replica {
+		final String url;
+		volatile ConnectionPool pool;
+		// local time up to which every commit of the primary is visible on the replica
+		volatile long freshAsOf = Long.MIN_VALUE;
+		volatile long lagMillis = -1;
+		volatile boolean inRecovery;
+		// why the replica is not used, or null
+		volatile String problem = "not checked yet";
+
+		Replica(String url) {
+			this.url = url;
+		}
+	}//end Replica
+
+	private final MechanicShop _esql;
+	private final String _user;
+	private final String _passwd;
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final long _maxLagMillis;
+	private final ScheduledExecutorService _checks;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final AtomicLong _routed = new AtomicLong();
+	private final AtomicLong _fallbacks = new AtomicLong();
+	private volatile long _lastWrite = Long.MIN_VALUE;
+
+	public ReplicaRouter(MechanicShop esql, List<String> urls, String user, String passwd, long maxLagMillis, long checkMillis) {
+		this._esql = esql;
+		this._user = user;
+		this._passwd = passwd;
+		this._maxLagMillis = maxLagMillis;
+		for (String url : urls) {
+			this._replicas.add(new Replica(url));
+		}
+		this._checks = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "shop-replica-check");
+			t.setDaemon(true);
+			return t;
+		});
+		this._checks.scheduleWithFixedDelay(this::checkAll, 0, Math.max(100, checkMillis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to create the router configured by the shop.replica.*
+	 * properties.
+	 *
+	 * @param esql the shop whose primary the replicas follow
+	 * @param dbname the database name, for endpoints given as host:port
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @return the router, or null when shop.replica.urls is not set
+	 */
+	public static ReplicaRouter fromProperties(MechanicShop esql, String dbname, String user, String passwd) {
+		String urls = System.getProperty("shop.replica.urls", "").trim();
+		if (urls.isEmpty()) {
+			return null;
+		}
+		List<String> list = new ArrayList<String>();
+		for (String url : urls.split(",")) {
+			url = url.trim();
+			if (!url.isEmpty()) {
+				list.add(url.startsWith("jdbc:") ? url : "jdbc:postgresql://" + url + (url.contains("/") ? "" : "/" + dbname));
+			}
+		}
+		return new ReplicaRouter(esql, list,
+			user, passwd,
+			Long.getLong("shop.replica.maxLagMs", DEFAULT_MAX_LAG_MS),
+			Long.getLong("shop.replica.checkMs", DEFAULT_CHECK_MS));
+	}
+
+	/**
+	 * Method to run the command line form: check every replica and print
+	 * its state.
+	 *
+	 * @param esql the connected shop
+	 * @return true when a replica is fresh enough for reports
+	 */
+	public static boolean run(MechanicShop esql) {
+		ReplicaRouter router = esql.replicas();
+		if (router == null) {
+			System.out.println("No read replica configured; set shop.replica.urls");
+			return false;
+		}
+		router.checkAll();
+		for (String line : router.status()) {
+			System.out.println(line);
+		}
+		return router.usable() > 0;
+	}
+
+	/**
+	 * Method to count the replicas a report could run on now.
+	 *
+	 * @return the number of replicas fresh enough for reports
+	 */
+	public int usable() {
+		long needed = Math.max(this._lastWrite, System.currentTimeMillis() - this._maxLagMillis);
+		int usable = 0;
+		for (Replica r : this._replicas) {
+			if (r.pool != null && r.problem == null && r.freshAsOf >= needed) {
+				++usable;
+			}
+		}
+		return usable;
+	}
+
+	/**
+	 * Method to pick the replica a report runs on.
+	 *
+	 * @return the pool of a replica fresh enough, or null for the primary
+	 */
+	public ConnectionPool choose() {
+		long needed = Math.max(this._lastWrite, System.currentTimeMillis() - this._maxLagMillis);
+		int n = this._replicas.size();
+		int start = Math.floorMod(this._next.getAndIncrement(), n);
+		for (int i = 0; i < n; ++i) {
+			Replica r = this._replicas.get((start + i) % n);
+			ConnectionPool pool = r.pool;
+			if (pool != null && r.problem == null && r.freshAsOf >= needed) {
+				this._routed.incrementAndGet();
+				return pool;
+			}
+		}
+		this._fallbacks.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Method to record that this client committed a write, so reports wait
+	 * for the replicas to replay it.
+	 */
+	public void wrote() {
+		this._lastWrite = System.currentTimeMillis();
+	}
+
+	/**
+	 * Method to stop using a replica whose connection failed, until the
+	 * next check finds it reachable.
+	 *
+	 * @param pool the pool chosen for the report
+	 * @param e the failure
+	 */
+	public void failed(ConnectionPool pool, SQLException e) {
+		for (Replica r : this._replicas) {
+			if (r.pool == pool) {
+				r.problem = "failed: " + e.getMessage();
+				r.freshAsOf = Long.MIN_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * Method to describe each replica, as the replicas command prints it.
+	 *
+	 * @return one line per replica, then the routing counts
+	 */
+	public List<String> status() {
+		List<String> lines = new ArrayList<String>();
+		long needed = Math.max(this._lastWrite, System.currentTimeMillis() - this._maxLagMillis);
+		for (Replica r : this._replicas) {
+			String state = r.problem != null ? r.problem
+				: (r.inRecovery ? "replica, lag " + r.lagMillis + " ms" : "not in recovery, counts as caught up") +
+					(r.freshAsOf >= needed ? ", used for reports" : ", too stale for reports");
+			lines.add(r.url + ": " + state);
+		}
+		lines.add(this._routed.get() + " reports routed to replicas, " + this._fallbacks.get() + " ran on the primary");
+		return lines;
+	}
+
+	/**
+	 * Method to check every replica once, at once.
+	 */
+	public void checkAll() {
+		for (Replica r : this._replicas) {
+			try {
+				check(r);
+			} catch (Exception e) {
+				r.problem = "unreachable: " + e.getMessage();
+				r.freshAsOf = Long.MIN_VALUE;
+			}
+		}
+	}
+
+	// the primary's position is read first, so a caught up replica holds every commit before start
+	private void check(Replica r) throws SQLException {
+		long start = System.currentTimeMillis();
+		String primaryLsn = this._esql.executeQueryAndReturnResult(PRIMARY_LSN_SQL).get(0).get(0);
+		if (r.pool == null) {
+			r.pool = new ConnectionPool(r.url, this._user, this._passwd);
+		}
+		ConnectionPool.PooledConnection conn = r.pool.borrow();
+		try {
+			Connection c = conn.connection();
+			try (PreparedStatement stmt = c.prepareStatement(REPLICA_STATE_SQL)) {
+				stmt.setString(1, primaryLsn);
+				try (ResultSet rs = stmt.executeQuery()) {
+					rs.next();
+					boolean inRecovery = rs.getBoolean(1);
+					boolean caughtUp = rs.getBoolean(2);
+					long replayAge = rs.getLong(3);
+					boolean replayed = !rs.wasNull();
+					r.inRecovery = inRecovery;
+					if (!inRecovery || caughtUp) {
+						r.lagMillis = 0;
+						r.freshAsOf = start;
+						r.problem = null;
+					} else if (replayed) {
+						r.lagMillis = replayAge;
+						r.freshAsOf = System.currentTimeMillis() - replayAge;
+						r.problem = null;
+					} else {
+						r.freshAsOf = Long.MIN_VALUE;
+						r.problem = "has not replayed any commit yet";
+					}
+				}
+			}
+		} finally {
+			r.pool.giveBack(conn);
+		}
+	}
+
+	/**
+	 * Method to stop the checks and close the replica connections.
+	 */
+	public void close() {
+		this._checks.shutdownNow();
+		for (Replica r : this._replicas) {
+			if (r.pool != null) {
+				r.pool.close();
+			}
+		}
+	}
+}
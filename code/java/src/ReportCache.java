@@ -0,0 +1,248 @@
+/*
+ * Report result cache for the Mechanic Shop
+ * =========================================
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class defines a read-through cache of rendered report text. Entries
+ * are keyed by the report query and its parameters and tagged with the
+ * tables the query reads. Each write path invalidates the tables it
+ * changed once its transaction commits, which drops exactly the entries
+ * that read them. The cache is bounded by the characters it holds and
+ * evicts the least recently used entries first. A report rendered while
+ * one of its tables was being invalidated is not stored, so a stale result
+ * never outlives a write of this process.
+ *
+ * Writes of other processes, such as another console, batch or serve in
+ * another JVM, or psql, invalidate nothing here. Entries therefore expire
+ * after shop.reportCache.ttlMs, a few seconds by default, which bounds how
+ * long such a write goes unseen by the reports of this process.
+ *
+ */
+public class ReportCache {
+	static final long DEFAULT_MAX_CHARS = 1L << 24;
+	static final long DEFAULT_TTL_MS = 5000;
+
+	private static class Entry {
+		final String text;
+		final String[] tables;
+		final long expiresAt;
+
+		Entry(String text, String[] tables, long expiresAt) {
+			this.text = text;
+			this.tables = tables;
+			this.expiresAt = expiresAt;
+		}
+	}//end Entry
+
+	/**
+	 * A writer that passes text through while keeping a copy of it, until
+	 * the copy would exceed a limit.
+	 */
+	public static class Capture extends Writer {
+		private final Writer _out;
+		private final long _limit;
+		private StringBuilder _copy = new StringBuilder();
+
+		Capture(Writer out, long limit) {
+			this._out = out;
+			this._limit = limit;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) throws IOException {
+			this._out.write(buf, off, len);
+			if (this._copy != null) {
+				if (this._copy.length() + len > this._limit) {
+					this._copy = null;
+				} else {
+					this._copy.append(buf, off, len);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this._out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		/**
+		 * @return the text written, or null when it exceeded the limit
+		 */
+		public String text() {
+			return this._copy == null ? null : this._copy.toString();
+		}
+	}//end Capture
+
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, Set<String>> _byTable = new HashMap<String, Set<String>>();
+	// invalidations so far, and the last one of each table
+	private long _generation = 0;
+	private final Map<String, Long> _invalidated = new HashMap<String, Long>();
+	private long _cleared = 0;
+	private final long _maxChars;
+	private final long _ttlMillis;
+	private long _chars = 0;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public ReportCache() {
+		this(Long.getLong("shop.reportCache.maxChars", DEFAULT_MAX_CHARS), Long.getLong("shop.reportCache.ttlMs", DEFAULT_TTL_MS));
+	}
+
+	/**
+	 * @param maxChars the most characters held, 0 disables the cache
+	 * @param ttlMillis how long an entry lives, 0 for no expiry, which only
+	 *                  suits a database no other process writes
+	 */
+	public ReportCache(long maxChars, long ttlMillis) {
+		this._maxChars = maxChars;
+		this._ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Method to build the key of a report run.
+	 *
+	 * @param query the report query
+	 * @param params the values bound to it
+	 * @return the cache key
+	 */
+	public static String key(String query, Object... params) {
+		return params.length == 0 ? query : query + '\0' + Arrays.deepToString(params);
+	}
+
+	public synchronized String get(String key) {
+		Entry e = this._entries.get(key);
+		if (e != null && this._ttlMillis > 0 && System.currentTimeMillis() >= e.expiresAt) {
+			remove(key);
+			e = null;
+		}
+		if (e == null) {
+			++this._misses;
+			return null;
+		}
+		++this._hits;
+		return e.text;
+	}
+
+	/**
+	 * Method to mark the start of rendering a report.
+	 *
+	 * @return the stamp to hand to put
+	 */
+	public synchronized long stamp() {
+		return this._generation;
+	}
+
+	/**
+	 * Method to store a rendered report, unless one of its tables was
+	 * invalidated since the stamp was taken or the text alone would take
+	 * more than a quarter of the cache.
+	 *
+	 * @param key the key from key()
+	 * @param text the rendered report
+	 * @param stamp the stamp taken before the report was read
+	 * @param tables the tables the report reads
+	 */
+	public synchronized void put(String key, String text, long stamp, String... tables) {
+		if (text == null || text.length() > this._maxChars / 4 || this._cleared > stamp) {
+			return;
+		}
+		for (String table : tables) {
+			Long last = this._invalidated.get(table);
+			if (last != null && last > stamp) {
+				return;
+			}
+		}
+		remove(key);
+		this._entries.put(key, new Entry(text, tables, System.currentTimeMillis() + this._ttlMillis));
+		this._chars += text.length();
+		for (String table : tables) {
+			this._byTable.computeIfAbsent(table, t -> new HashSet<String>()).add(key);
+		}
+		Iterator<Map.Entry<String, Entry>> eldest = this._entries.entrySet().iterator();
+		while (this._chars > this._maxChars && eldest.hasNext()) {
+			Map.Entry<String, Entry> victim = eldest.next();
+			eldest.remove();
+			forget(victim.getKey(), victim.getValue());
+		}
+	}
+
+	/**
+	 * Method to drop every entry that reads one of the given tables.
+	 *
+	 * @param tables the tables a write changed
+	 */
+	public synchronized void invalidate(String... tables) {
+		++this._generation;
+		for (String table : tables) {
+			this._invalidated.put(table, this._generation);
+			Set<String> keys = this._byTable.remove(table);
+			if (keys != null) {
+				for (String key : keys) {
+					remove(key);
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		this._cleared = ++this._generation;
+		this._entries.clear();
+		this._byTable.clear();
+		this._chars = 0;
+	}
+
+	public long maxChars() {
+		return this._maxChars;
+	}
+
+	public synchronized long hits() {
+		return this._hits;
+	}
+
+	public synchronized long misses() {
+		return this._misses;
+	}
+
+	public synchronized int size() {
+		return this._entries.size();
+	}
+
+	private void remove(String key) {
+		Entry e = this._entries.remove(key);
+		forget(key, e);
+	}
+
+	private void forget(String key, Entry e) {
+		if (e == null) {
+			return;
+		}
+		this._chars -= e.text.length();
+		for (String table : e.tables) {
+			Set<String> keys = this._byTable.get(table);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					this._byTable.remove(table);
+				}
+			}
+		}
+	}
+}
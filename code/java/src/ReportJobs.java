@@ -0,0 +1,462 @@
+/*
+ * Background report execution for the Mechanic Shop console
+ * =========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines how the console runs reports. Each report runs on its
+ * own background thread and pooled connection, so the menu can wait for it,
+ * send it to the background or cancel it. Cancelling interrupts the thread
+ * and cancels the running statement with Statement.cancel, and a report
+ * running longer than shop.report.&lt;name&gt;.timeoutMs, or
+ * shop.report.timeoutMs for every report, is cancelled by the database.
+ *
+ * A report prints to the console while the menu waits for it and is
+ * spooled to a temporary file once it runs in the background, to be shown
+ * from the background reports menu when it is done.
+ *
+ */
+public class ReportJobs {
+	static final long POLL_MS = 200;
+	static final long PROGRESS_MS = 1000;
+	private static final ThreadLocal<Job> CURRENT = new ThreadLocal<Job>();
+
+	/**
+	 * A report body, writing its rows to the given writer.
+	 */
+	public interface Body {
+		void run(PrintWriter out) throws Exception;
+	}
+
+	/**
+	 * Where a report writes: the console until the report is sent to the
+	 * background, a spool file after that.  Lines are counted for the
+	 * progress output.
+	 */
+	static class Output extends Writer {
+		private Writer _target;
+		private Path _spool = null;
+		private long _lines = 0;
+
+		Output(boolean background) throws IOException {
+			this._target = new BufferedWriter(new OutputStreamWriter(System.out), 8192);
+			if (background) {
+				detach();
+			}
+		}
+
+		synchronized void detach() throws IOException {
+			if (this._spool != null) {
+				return;
+			}
+			this._target.flush();
+			this._spool = Files.createTempFile("shop-report-", ".txt");
+			this._spool.toFile().deleteOnExit();
+			this._target = Files.newBufferedWriter(this._spool, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public synchronized void write(char[] buf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; ++i) {
+				if (buf[i] == '\n') {
+					++this._lines;
+				}
+			}
+			this._target.write(buf, off, len);
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			this._target.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (this._spool != null) {
+				this._target.close();
+			} else {
+				this._target.flush();
+			}
+		}
+
+		synchronized long lines() {
+			return this._lines;
+		}
+
+		// copies the spooled part to the console and deletes the spool
+		synchronized void show() throws IOException {
+			if (this._spool == null) {
+				return;
+			}
+			Writer console = new OutputStreamWriter(System.out);
+			try (Reader spooled = Files.newBufferedReader(this._spool, StandardCharsets.UTF_8)) {
+				char[] buf = new char[8192];
+				for (int n; (n = spooled.read(buf)) > 0; ) {
+					console.write(buf, 0, n);
+				}
+			}
+			console.flush();
+			discard();
+		}
+
+		synchronized void discard() {
+			if (this._spool != null) {
+				try {
+					Files.deleteIfExists(this._spool);
+				} catch (IOException e) {
+					// removed on exit
+				}
+			}
+		}
+	}//end Output
+
+	/**
+	 * One report run.
+	 */
+	public static class Job {
+		final int id;
+		final String title;
+		final int timeoutSeconds;
+		final Output output;
+		private final long _started = System.nanoTime();
+		private volatile long _finished = 0;
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private volatile Throwable _failure = null;
+		private Thread _thread = null;
+		private Statement _running = null;
+		private boolean _canceled = false;
+
+		Job(int id, String title, int timeoutSeconds, boolean background) throws IOException {
+			this.id = id;
+			this.title = title;
+			this.timeoutSeconds = timeoutSeconds;
+			this.output = new Output(background);
+		}
+
+		/**
+		 * Method to note the statement the report is running, so a cancel
+		 * reaches it, or null once it is done.
+		 *
+		 * @param stmt the running statement, or null
+		 * @throws java.sql.SQLException when the report was already cancelled
+		 */
+		public synchronized void running(Statement stmt) throws SQLException {
+			if (stmt != null && this._canceled) {
+				throw new SQLException("Canceled", "57014");
+			}
+			this._running = stmt;
+		}
+
+		/**
+		 * Method to cancel the report.  The statement it is running is
+		 * cancelled on the server and its thread is interrupted.
+		 */
+		public synchronized void cancel() {
+			this._canceled = true;
+			if (this._running != null) {
+				try {
+					this._running.cancel();
+				} catch (SQLException e) {
+					// the interrupt still stops it between rows
+				}
+			}
+			if (this._thread != null) {
+				this._thread.interrupt();
+			}
+		}
+
+		private synchronized void started(Thread thread) {
+			this._thread = this._canceled ? null : thread;
+			if (this._canceled) {
+				thread.interrupt();
+			}
+		}
+
+		// the thread goes back to the executor, so a late cancel must not interrupt it
+		private synchronized void ended() {
+			this._thread = null;
+			this._running = null;
+		}
+
+		public boolean await(long millis) throws InterruptedException {
+			return this._done.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		public boolean isDone() {
+			return this._done.getCount() == 0;
+		}
+
+		public long rows() {
+			return Math.max(0, this.output.lines() - 1);
+		}
+
+		public double seconds() {
+			long end = this._finished != 0 ? this._finished : System.nanoTime();
+			return (end - this._started) / 1e9;
+		}
+
+		/**
+		 * @return running, done, canceled, timed out or the failure message
+		 */
+		public synchronized String status() {
+			if (!isDone()) {
+				return this._canceled ? "canceling" : "running";
+			}
+			if (this._failure == null) {
+				return "done";
+			}
+			if (this._canceled) {
+				return "canceled";
+			}
+			if (this._failure instanceof SQLException && "57014".equals(((SQLException) this._failure).getSQLState())) {
+				return "timed out after " + this.timeoutSeconds + " s";
+			}
+			return "failed: " + this._failure.getMessage();
+		}
+
+		public String progress() {
+			return String.format("%d. %s: %s, %d rows, %.1f s", this.id, this.title, status(), rows(), seconds());
+		}
+	}//end Job
+
+	private final MechanicShop _esql;
+	private final ExecutorService _executor;
+	private final AtomicInteger _ids = new AtomicInteger();
+	// reports sent to the background and not shown yet
+	private final List<Job> _background = new ArrayList<Job>();
+
+	public ReportJobs(MechanicShop esql) {
+		this._esql = esql;
+		AtomicInteger threads = new AtomicInteger();
+		this._executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "shop-report-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @return the report run by the current thread, or null outside a report
+	 */
+	public static Job current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Method to start a report on a background thread.
+	 *
+	 * @param title the report name, also its operation name in the metrics
+	 * @param name the short name its timeout is configured under
+	 * @param background true to spool the output from the start
+	 * @param body the report
+	 * @return the running report
+	 * @throws java.io.IOException when the spool file cannot be created
+	 */
+	public Job submit(String title, String name, boolean background, Body body) throws IOException {
+		long timeoutMs = Long.getLong("shop.report." + name + ".timeoutMs", Long.getLong("shop.report.timeoutMs", 0L));
+		Job job = new Job(this._ids.incrementAndGet(), title, (int) ((timeoutMs + 999) / 1000), background);
+		this._executor.execute(() -> {
+			CURRENT.set(job);
+			job.started(Thread.currentThread());
+			PrintWriter out = new PrintWriter(job.output);
+			try {
+				this._esql.metrics().time(title, () -> body.run(out));
+			} catch (Throwable e) {
+				job._failure = e;
+			} finally {
+				out.flush();
+				try {
+					job.output.close();
+				} catch (IOException e) {
+					// reported by the show
+				}
+				job.ended();
+				CURRENT.remove();
+				job._finished = System.nanoTime();
+				job._done.countDown();
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Method to wait for a report at the console while its rows print.
+	 * Until the first row arrives, its progress is shown every second.
+	 * On an interactive console, Enter sends the report to the background
+	 * and C then Enter cancels it.
+	 *
+	 * @param job the report
+	 * @throws java.io.IOException when the console cannot be read
+	 * @throws java.lang.InterruptedException when the wait is interrupted
+	 */
+	public void follow(Job job) throws IOException, InterruptedException {
+		boolean interactive = System.console() != null;
+		if (interactive) {
+			System.out.println("\t(Enter runs the report in the background, C then Enter cancels it)");
+		}
+		long nextProgress = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MS);
+		while (!job.await(POLL_MS)) {
+			if (interactive && MechanicShop.in.ready()) {
+				String line = MechanicShop.in.readLine();
+				if (line != null && line.trim().equalsIgnoreCase("C")) {
+					job.cancel();
+				} else {
+					job.output.detach();
+					synchronized (this._background) {
+						this._background.add(job);
+					}
+					System.out.println("\n\tReport " + job.id + " continues in the background");
+					return;
+				}
+			}
+			// whole lines, as the rows may start printing at any time
+			if (job.output.lines() == 0 && System.nanoTime() >= nextProgress) {
+				System.err.println("\t" + job.progress());
+				nextProgress += TimeUnit.MILLISECONDS.toNanos(PROGRESS_MS);
+			}
+		}
+		if (job._failure != null) {
+			System.err.println("\t" + job.title + " " + job.status());
+		}
+	}
+
+	/**
+	 * Method to wait for several reports spooled in the background, showing
+	 * how many are done every second, and print them in order.  On an
+	 * interactive console, C then Enter cancels the ones still running.
+	 *
+	 * @param jobs the reports
+	 * @throws java.io.IOException when the console cannot be read
+	 * @throws java.lang.InterruptedException when the wait is interrupted
+	 */
+	public void followAll(List<Job> jobs) throws IOException, InterruptedException {
+		boolean interactive = System.console() != null;
+		if (interactive) {
+			System.out.println("\t(C then Enter cancels the reports still running)");
+		}
+		long start = System.nanoTime();
+		long nextProgress = start + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MS);
+		boolean progressShown = false;
+		for (Job job : jobs) {
+			while (!job.await(POLL_MS)) {
+				if (interactive && MechanicShop.in.ready()) {
+					String line = MechanicShop.in.readLine();
+					if (line != null && line.trim().equalsIgnoreCase("C")) {
+						for (Job j : jobs) {
+							j.cancel();
+						}
+					}
+				}
+				if (System.nanoTime() >= nextProgress) {
+					int done = 0;
+					for (Job j : jobs) {
+						done += j.isDone() ? 1 : 0;
+					}
+					System.err.print(String.format("\r\t%d of %d reports done, %.1f s", done, jobs.size(), (System.nanoTime() - start) / 1e9));
+					progressShown = true;
+					nextProgress += TimeUnit.MILLISECONDS.toNanos(PROGRESS_MS);
+				}
+			}
+		}
+		if (progressShown) {
+			System.err.println();
+		}
+		double total = 0;
+		for (Job job : jobs) {
+			System.out.println("\n== " + job.progress());
+			job.output.show();
+			total += job.seconds();
+		}
+		System.out.println(String.format("\n\t%d reports in %.1f s, %.1f s of report time", jobs.size(), (System.nanoTime() - start) / 1e9, total));
+	}
+
+	/**
+	 * Method to list the reports in the background, then show or cancel one.
+	 *
+	 * @throws java.io.IOException when the console cannot be read
+	 */
+	public void manage() throws IOException {
+		while (true) {
+			List<Job> jobs;
+			synchronized (this._background) {
+				jobs = new ArrayList<Job>(this._background);
+			}
+			if (jobs.isEmpty()) {
+				System.out.println("\tNo reports in the background");
+				return;
+			}
+			for (Job job : jobs) {
+				System.out.println("\t" + job.progress());
+			}
+			System.out.print("\tEnter a report number to show it, C and a number to cancel it, or nothing to go back: $ ");
+			String input = MechanicShop.in.readLine();
+			if (input == null || input.trim().isEmpty()) {
+				return;
+			}
+			input = input.trim();
+			boolean cancel = input.length() > 1 && Character.toUpperCase(input.charAt(0)) == 'C';
+			Job job = null;
+			try {
+				int id = Integer.parseInt((cancel ? input.substring(1) : input).trim());
+				for (Job j : jobs) {
+					if (j.id == id) {
+						job = j;
+					}
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			if (job == null) {
+				System.err.println("Error: Not a report in the background");
+			} else if (cancel) {
+				job.cancel();
+			} else if (!job.isDone()) {
+				System.out.println("\tReport " + job.id + " is still running");
+			} else {
+				job.output.show();
+				if (!job.status().equals("done")) {
+					System.err.println("\t" + job.title + " " + job.status());
+				}
+				synchronized (this._background) {
+					this._background.remove(job);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to cancel the running reports and delete their spool files.
+	 */
+	public void close() {
+		synchronized (this._background) {
+			for (Job job : this._background) {
+				job.cancel();
+				job.output.discard();
+			}
+			this._background.clear();
+		}
+		this._executor.shutdownNow();
+	}
+}
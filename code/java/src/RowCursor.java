@@ -0,0 +1,140 @@
+/*
+ * Lazy row cursor for the Mechanic Shop JDBC layer
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class defines a forward-only cursor over a query result. Rows are read
+ * from the driver one fetch at a time and columns are read with typed getters,
+ * so callers that only look at a few rows or numeric columns never build
+ * per-row lists or stringify integers. The cursor holds the connection leased
+ * by the opening thread and must be closed on that same thread.
+ *
+ */
+public class RowCursor implements AutoCloseable {
+	private final MechanicShop _esql;
+	private final Connection _connection;
+	private final ResultSet _rs;
+	private final boolean _ownsTransaction;
+	private final ResultSetMetaData _rsmd;
+	// timed until the cursor closes, with the rows read and the bytes of the values read
+	private final Metrics.Call _call;
+	private long _rows = 0;
+	private long _bytes = 0;
+	private boolean _closed = false;
+
+	RowCursor(MechanicShop esql, Connection connection, ResultSet rs, boolean ownsTransaction, Metrics.Call call) throws SQLException {
+		this._esql = esql;
+		this._connection = connection;
+		this._rs = rs;
+		this._ownsTransaction = ownsTransaction;
+		this._rsmd = rs.getMetaData();
+		this._call = call;
+	}
+
+	/**
+	 * Method to advance to the next row.
+	 *
+	 * @return false once the result is exhausted
+	 * @throws java.sql.SQLException when the next fetch fails
+	 */
+	public boolean next() throws SQLException {
+		if (!this._closed && this._rs.next()) {
+			++this._rows;
+			return true;
+		}
+		return false;
+	}
+
+	public int columnCount() throws SQLException {
+		return this._rsmd.getColumnCount();
+	}
+
+	public String columnName(int col) throws SQLException {
+		return this._rsmd.getColumnName(col);
+	}
+
+	/**
+	 * @return the column's java.sql.Types code
+	 */
+	public int columnType(int col) throws SQLException {
+		return this._rsmd.getColumnType(col);
+	}
+
+	public int getInt(int col) throws SQLException {
+		this._bytes += 4;
+		return this._rs.getInt(col);
+	}
+
+	public long getLong(int col) throws SQLException {
+		this._bytes += 8;
+		return this._rs.getLong(col);
+	}
+
+	public String getString(int col) throws SQLException {
+		String value = this._rs.getString(col);
+		this._bytes += value == null ? 0 : value.length();
+		return value;
+	}
+
+	public Date getDate(int col) throws SQLException {
+		this._bytes += 4;
+		return this._rs.getDate(col);
+	}
+
+	public boolean wasNull() throws SQLException {
+		return this._rs.wasNull();
+	}
+
+	/**
+	 * Method to copy the remaining rows into a columnar result.
+	 *
+	 * @return the remaining rows, column by column
+	 * @throws java.sql.SQLException when a fetch fails
+	 */
+	public ColumnarResult toColumns() throws SQLException {
+		ColumnarResult result = ColumnarResult.read(this._rs);
+		this._rows += result.rowCount();
+		return result;
+	}
+
+	/**
+	 * Method to close the result, end the read transaction opened for it and
+	 * release the connection lease. Closing twice has no effect.
+	 */
+	@Override
+	public void close() {
+		if (this._closed) {
+			return;
+		}
+		this._closed = true;
+		this._call.done(this._rows, this._bytes);
+		try {
+			this._rs.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+		// a cancel must not reach the connection once it is given back
+		ReportJobs.Job job = ReportJobs.current();
+		if (job != null) {
+			try {
+				job.running(null);
+			} catch (SQLException e) {
+				// only a new statement is refused
+			}
+		}
+		if (this._ownsTransaction) {
+			MechanicShop.endReadTransaction(this._connection);
+		}
+		this._esql.release();
+	}
+}
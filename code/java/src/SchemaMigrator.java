@@ -0,0 +1,230 @@
+/*
+ * Schema migrations for the Mechanic Shop
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * This class defines the schema migration runner. The scripts in
+ * &lt;shop.sql.dir&gt;/migrations are named V&lt;version&gt;__&lt;description&gt;.sql and
+ * applied in version order, each exactly once; the schema_version table
+ * records the applied versions with a checksum of their script.
+ *
+ * When every migration is applied, a start costs one small query. Otherwise
+ * the pending migrations run in one transaction under an advisory lock, so
+ * clients starting together apply them once between them and the others
+ * wait, then skip them. A script edited after it was applied stops the
+ * start instead of leaving the databases of different clients apart.
+ *
+ * load only calls migrate and never runs a script again; it moves the id
+ * sequences, rebuilds the summaries and recreates the indexes it dropped
+ * itself. The headers of migrations 1, 2, 3 and 5 still say that load
+ * reruns them, which is out of date, but an applied script is not edited.
+ *
+ */
+public class SchemaMigrator {
+	// pg_advisory_xact_lock key held while migrating
+	static final long LOCK_KEY = 0x4d65636853686f70L;
+	static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+	static final String CREATE_VERSION_TABLE_SQL =
+		"CREATE TABLE IF NOT EXISTS schema_version (" +
+			"version INTEGER PRIMARY KEY, " +
+			"description TEXT NOT NULL, " +
+			"checksum BIGINT NOT NULL, " +
+			"installed_on TIMESTAMPTZ NOT NULL DEFAULT now(), " +
+			"execution_ms BIGINT NOT NULL)";
+	static final String APPLIED_SQL = "SELECT version, checksum FROM schema_version";
+	static final String RECORD_SQL = "INSERT INTO schema_version (version, description, checksum, execution_ms) VALUES (?, ?, ?, ?)";
+
+	/**
+	 * One migration script.
+	 */
+	static class Migration {
+		final int version;
+		final String description;
+		final String sql;
+		final long checksum;
+
+		Migration(int version, String description, String sql) {
+			this.version = version;
+			this.description = description;
+			this.sql = sql;
+			CRC32 crc = new CRC32();
+			// line endings depend on the checkout
+			crc.update(sql.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+			this.checksum = crc.getValue();
+		}
+	}//end Migration
+
+	private final MechanicShop _esql;
+	private final File _dir;
+
+	public SchemaMigrator(MechanicShop esql, File dir) {
+		this._esql = esql;
+		this._dir = dir;
+	}
+
+	public SchemaMigrator(MechanicShop esql) {
+		this(esql, new File(sqlDir(), "migrations"));
+	}
+
+	/**
+	 * @return the directory of the SQL scripts, shop.sql.dir or ../sql
+	 */
+	public static File sqlDir() {
+		return new File(System.getProperty("shop.sql.dir", "../sql"));
+	}
+
+	/**
+	 * @param name a migration file name
+	 * @return the path of the migration script
+	 */
+	public static String path(String name) {
+		return new File(new File(sqlDir(), "migrations"), name).getPath();
+	}
+
+	/**
+	 * Method to run the command line form of the runner, printing the
+	 * version the schema is at.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.lang.Exception when a migration fails
+	 */
+	public static void run(MechanicShop esql) throws Exception {
+		SchemaMigrator migrator = new SchemaMigrator(esql);
+		List<Migration> applied = migrator.migrate();
+		List<Migration> all = migrator.migrations();
+		System.out.println("Schema at version " + (all.isEmpty() ? 0 : all.get(all.size() - 1).version) +
+			", " + applied.size() + " migrations applied now");
+	}
+
+	/**
+	 * Method to read the migration scripts in version order.
+	 *
+	 * @return the migrations found
+	 * @throws java.io.IOException when the directory or a script cannot be read
+	 */
+	public List<Migration> migrations() throws IOException {
+		File[] files = this._dir.listFiles();
+		if (files == null) {
+			throw new IOException("Missing migration directory " + this._dir.getPath());
+		}
+		List<Migration> all = new ArrayList<Migration>();
+		for (File f : files) {
+			Matcher m = FILE_NAME.matcher(f.getName());
+			if (m.matches()) {
+				all.add(new Migration(Integer.parseInt(m.group(1)), m.group(2),
+					new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)));
+			}
+		}
+		Collections.sort(all, (a, b) -> Integer.compare(a.version, b.version));
+		for (int i = 1; i < all.size(); ++i) {
+			if (all.get(i).version == all.get(i - 1).version) {
+				throw new IOException("Two migrations have version " + all.get(i).version);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Method to apply the pending migrations.
+	 *
+	 * @return the migrations applied by this call
+	 * @throws java.sql.SQLException when a migration fails, which rolls back
+	 *         every migration of the call, or an applied script was changed
+	 * @throws java.io.IOException when the scripts cannot be read
+	 */
+	public List<Migration> migrate() throws SQLException, IOException {
+		List<Migration> all = migrations();
+		ConnectionPool.PooledConnection conn = this._esql.acquire();
+		Connection c = conn.connection();
+		try {
+			List<Migration> pending = pending(all, applied(c, false));
+			if (pending.isEmpty()) {
+				return pending;
+			}
+			c.setAutoCommit(false);
+			try (Statement stmt = c.createStatement()) {
+				// a client starting at the same time waits here, then finds nothing pending
+				stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+				stmt.execute(CREATE_VERSION_TABLE_SQL);
+				pending = pending(all, applied(c, true));
+				for (Migration m : pending) {
+					long start = System.currentTimeMillis();
+					stmt.execute(m.sql);
+					long millis = System.currentTimeMillis() - start;
+					try (PreparedStatement record = c.prepareStatement(RECORD_SQL)) {
+						StatementCache.bind(record, m.version, m.description, m.checksum, millis);
+						record.executeUpdate();
+					}
+					System.out.println("Applied migration V" + m.version + " " + m.description + " in " + millis + " ms");
+				}
+				c.commit();
+				return pending;
+			} catch (SQLException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		} finally {
+			this._esql.release();
+		}
+	}
+
+	// the applied versions and checksums; none when the table does not exist yet
+	private static Map<Integer, Long> applied(Connection c, boolean exists) throws SQLException {
+		Map<Integer, Long> applied = new HashMap<Integer, Long>();
+		try (Statement stmt = c.createStatement()) {
+			if (!exists) {
+				try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('schema_version') IS NOT NULL")) {
+					rs.next();
+					if (!rs.getBoolean(1)) {
+						return applied;
+					}
+				}
+			}
+			try (ResultSet rs = stmt.executeQuery(APPLIED_SQL)) {
+				while (rs.next()) {
+					applied.put(rs.getInt(1), rs.getLong(2));
+				}
+			}
+		}
+		return applied;
+	}
+
+	// versions newer than this client's scripts were applied by a newer client and are left alone
+	private static List<Migration> pending(List<Migration> all, Map<Integer, Long> applied) throws SQLException {
+		List<Migration> pending = new ArrayList<Migration>();
+		for (Migration m : all) {
+			Long checksum = applied.get(m.version);
+			if (checksum == null) {
+				pending.add(m);
+			} else if (checksum != m.checksum) {
+				throw new SQLException("Migration V" + m.version + " " + m.description +
+					" was changed after it was applied; add a new migration instead");
+			}
+		}
+		return pending;
+	}
+}
@@ -0,0 +1,460 @@
+/*
+ * Benchmarks for the Mechanic Shop
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * This class defines the benchmark suite for the statements behind the menu:
+ * the insert paths of operations 1 to 5 and reports 6 to 10. Each benchmark
+ * runs a number of warmup iterations, then measurement iterations of a fixed
+ * time, on one or more threads, and scores the average time per operation.
+ * Writes run in a transaction that is rolled back, so the data set is the
+ * same for every run; they measure the statements, not the commit. Reports
+ * run their query and format every row, bypassing the report cache. The
+ * results are written in the JSON layout of JMH, so existing JMH tooling can
+ * chart them, and can be compared with an earlier results file.
+ *
+ */
+public class ShopBenchmark {
+	static final int DEFAULT_WARMUP = 3;
+	static final int DEFAULT_ITERATIONS = 5;
+	static final long DEFAULT_TIME_MS = 1000;
+	static final double DEFAULT_TOLERANCE = 10.0;
+	static final int SAMPLE_SIZE = 1000;
+	static final String LETTERS = "ABCDEFGHJKLMNPRSTUVWXYZ0123456789";
+	static final double[] PERCENTILES = { 0.0, 50.0, 90.0, 95.0, 99.0, 99.9, 99.99, 99.999, 99.9999, 100.0 };
+
+	/**
+	 * The operation a benchmark times, run with a per-thread random source
+	 * on a thread that holds a connection lease.
+	 */
+	interface Body {
+		void run(SplittableRandom random) throws SQLException;
+	}
+
+	static class Benchmark {
+		final String name;
+		final Body body;
+
+		Benchmark(String name, Body body) {
+			this.name = name;
+			this.body = body;
+		}
+	}//end Benchmark
+
+	static class Result {
+		final String name;
+		// microseconds per operation, one per measurement iteration
+		final double[] scores;
+
+		Result(String name, double[] scores) {
+			this.name = name;
+			this.scores = scores;
+		}
+
+		double mean() {
+			double sum = 0;
+			for (double s : this.scores) {
+				sum += s;
+			}
+			return sum / this.scores.length;
+		}
+
+		// half width of the 99.9% confidence interval of the mean
+		double error() {
+			int n = this.scores.length;
+			if (n < 2) {
+				return Double.NaN;
+			}
+			double mean = mean();
+			double squares = 0;
+			for (double s : this.scores) {
+				squares += (s - mean) * (s - mean);
+			}
+			return studentT999(n - 1) * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+		}
+	}//end Result
+
+	private final MechanicShop _esql;
+	private final int _warmup;
+	private final int _iterations;
+	private final long _timeMillis;
+	private final int _threads;
+	private final PrintWriter _sink = new PrintWriter(Writer.nullWriter());
+	private final Date _today = Date.valueOf(LocalDate.now());
+	private final Map<String, String> _params = new LinkedHashMap<String, String>();
+
+	public ShopBenchmark(MechanicShop esql, int warmup, int iterations, long timeMillis, int threads) {
+		this._esql = esql;
+		this._warmup = warmup;
+		this._iterations = iterations;
+		this._timeMillis = timeMillis;
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to run the command line form of the suite.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: [pattern] [--warmup n]
+	 *             [--iterations n] [--time ms] [--threads n] [--out file]
+	 *             [--baseline file] [--tolerance percent]
+	 * @return false when a benchmark is slower than its baseline by more than the tolerance
+	 * @throws java.lang.Exception when a benchmark fails or the results cannot be written
+	 */
+	public static boolean run(MechanicShop esql, String[] args) throws Exception {
+		Pattern pattern = null;
+		int warmup = DEFAULT_WARMUP;
+		int iterations = DEFAULT_ITERATIONS;
+		long time = DEFAULT_TIME_MS;
+		int threads = 1;
+		String out = "bench-results.json";
+		String baseline = null;
+		double tolerance = DEFAULT_TOLERANCE;
+		for (int i = 0; i < args.length; ++i) {
+			boolean hasValue = i + 1 < args.length;
+			if (args[i].equals("--warmup") && hasValue) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--iterations") && hasValue) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--time") && hasValue) {
+				time = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--threads") && hasValue) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--out") && hasValue) {
+				out = args[++i];
+			} else if (args[i].equals("--baseline") && hasValue) {
+				baseline = args[++i];
+			} else if (args[i].equals("--tolerance") && hasValue) {
+				tolerance = Double.parseDouble(args[++i]);
+			} else {
+				pattern = Pattern.compile(args[i]);
+			}
+		}
+		ShopBenchmark suite = new ShopBenchmark(esql, Math.max(0, warmup), Math.max(1, iterations), Math.max(1, time), Math.max(1, threads));
+		List<Result> results = suite.runAll(pattern);
+		suite.write(results, out);
+		System.out.println("Results written to " + out);
+		return baseline == null || compare(results, baseline, tolerance);
+	}
+
+	/**
+	 * Method to run every benchmark whose name matches the pattern and print
+	 * its score.
+	 *
+	 * @param pattern the names to run, or null for all
+	 * @return the results in suite order
+	 * @throws java.lang.Exception when a benchmark fails
+	 */
+	public List<Result> runAll(Pattern pattern) throws Exception {
+		List<Result> results = new ArrayList<Result>();
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		try {
+			for (Benchmark b : benchmarks()) {
+				if (pattern != null && !pattern.matcher(b.name).find()) {
+					continue;
+				}
+				for (int i = 0; i < this._warmup; ++i) {
+					iteration(workers, b, i);
+				}
+				double[] scores = new double[this._iterations];
+				for (int i = 0; i < this._iterations; ++i) {
+					scores[i] = iteration(workers, b, this._warmup + i);
+				}
+				Result r = new Result(b.name, scores);
+				System.out.println(String.format("%-45s %12.3f +- %9.3f us/op", r.name, r.mean(), Double.isNaN(r.error()) ? 0 : r.error()));
+				results.add(r);
+			}
+		} finally {
+			workers.shutdown();
+		}
+		return results;
+	}
+
+	/**
+	 * Method to build the benchmarks, with sample ids and VINs taken from the
+	 * loaded data.  Benchmarks whose tables are empty are left out.
+	 *
+	 * @return the benchmarks in menu order
+	 * @throws java.sql.SQLException when the sample values cannot be read
+	 */
+	List<Benchmark> benchmarks() throws SQLException {
+		final int[] customers = ints("SELECT id FROM customer ORDER BY id LIMIT ?");
+		final String[] vins = strings("SELECT vin FROM car ORDER BY vin LIMIT ?");
+		final int[] mechanics = ints("SELECT id FROM mechanic ORDER BY id LIMIT ?");
+		final int[] open = ints("SELECT S.rid FROM Service_Request S WHERE S.status = 'W' ORDER BY S.rid LIMIT ?");
+		for (String table : new String[] { "customer", "mechanic", "car", "owns", "service_request", "closed_request" }) {
+			this._params.put(table, this._esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM " + table).get(0).get(0));
+		}
+		final MechanicShop esql = this._esql;
+		esql.openServiceCounts().ensureLoaded(esql);
+		esql.vins().ensureLoaded(esql);
+
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new Benchmark("ShopBenchmark.insertCustomer", random -> rolledBack(() ->
+			esql.executeUpdate(MechanicShop.INSERT_CUSTOMER_SQL, esql.ids().next(IdAllocator.CUSTOMER),
+				word(random, 8), word(random, 10), "(555)555-0100", "1 Benchmark Way"))));
+		if (customers.length > 0) {
+			list.add(new Benchmark("ShopBenchmark.insertCarAndOwns", random -> rolledBack(() -> {
+				String vin = word(random, 16);
+				// the duplicate check of AddCar
+				if (esql.vins().mightContain(vin)) {
+					esql.executeQuery(MechanicShop.CAR_BY_VIN_SQL, vin);
+				}
+				esql.executeUpdate(MechanicShop.INSERT_CAR_SQL, vin, "Bench", "Mark", 2000);
+				esql.executeUpdate(MechanicShop.INSERT_OWNS_SQL, esql.ids().next(IdAllocator.OWNS), pick(random, customers), vin);
+			})));
+		}
+		if (customers.length > 0 && vins.length > 0) {
+			list.add(new Benchmark("ShopBenchmark.insertServiceRequest", random -> rolledBack(() ->
+				esql.executeUpdate(MechanicShop.INSERT_SERVICE_REQUEST_SQL, esql.ids().next(IdAllocator.SERVICE_REQUEST),
+					pick(random, customers), vins[random.nextInt(vins.length)], this._today, 1 + random.nextInt(200000), "benchmark"))));
+		}
+		if (open.length > 0 && mechanics.length > 0) {
+			list.add(new Benchmark("ShopBenchmark.closeServiceRequest", random -> rolledBack(() ->
+				esql.closeRequest(pick(random, open), null, pick(random, mechanics), this._today, "benchmark", 1 + random.nextInt(1000)))));
+		}
+		list.add(new Benchmark("ShopBenchmark.report6BillsUnder100", random ->
+			esql.executeQueryAndWriteResult(this._sink, MechanicShop.REPORT_BILL_LESS_THAN_100_SQL)));
+		list.add(new Benchmark("ShopBenchmark.report7CustomersOver20Cars", random ->
+			esql.executeQueryAndWriteResult(this._sink, MechanicShop.REPORT_MORE_THAN_20_CARS_SQL)));
+		list.add(new Benchmark("ShopBenchmark.report8CarsBefore1995", random ->
+			esql.executeQueryAndWriteResult(this._sink, MechanicShop.REPORT_CARS_BEFORE_1995_SQL)));
+		list.add(new Benchmark("ShopBenchmark.report9MostServicedCars", random ->
+			esql.openServiceCounts().top(esql, 10)));
+		list.add(new Benchmark("ShopBenchmark.report10TotalBills", random ->
+			esql.executeQueryAndWriteResult(this._sink, MechanicShop.REPORT_TOTAL_BILL_SQL)));
+		list.add(new Benchmark("ShopBenchmark.report10TotalBillsTop10", random ->
+			esql.executeQueryAndWriteResult(this._sink, MechanicShop.REPORT_TOP_N_TOTAL_BILL_SQL, 10)));
+		return list;
+	}
+
+	/**
+	 * Method to run one iteration of a benchmark on every thread.
+	 *
+	 * @return the average microseconds per operation
+	 */
+	private double iteration(ExecutorService workers, Benchmark b, int iteration) throws Exception {
+		final long deadline = System.nanoTime() + this._timeMillis * 1000000L;
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		for (int t = 0; t < this._threads; ++t) {
+			final SplittableRandom random = new SplittableRandom(31L * iteration + t);
+			futures.add(workers.submit(() -> {
+				long ops = 0;
+				long start = System.nanoTime();
+				this._esql.acquire();
+				try {
+					do {
+						b.body.run(random);
+						++ops;
+					} while (System.nanoTime() < deadline);
+				} finally {
+					this._esql.release();
+				}
+				return new long[] { ops, System.nanoTime() - start };
+			}));
+		}
+		long ops = 0;
+		long nanos = 0;
+		for (Future<long[]> f : futures) {
+			try {
+				long[] r = f.get();
+				ops += r[0];
+				nanos += r[1];
+			} catch (ExecutionException e) {
+				throw new SQLException(b.name + " failed: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+		return nanos / 1000.0 / ops;
+	}
+
+	private interface Write {
+		void run() throws SQLException;
+	}
+
+	// runs a write in a transaction that is always rolled back
+	private void rolledBack(Write write) throws SQLException {
+		this._esql.beginTransaction();
+		try {
+			write.run();
+		} finally {
+			this._esql.rollbackTransaction();
+		}
+	}
+
+	/**
+	 * Method to write the results in the JSON layout of JMH.
+	 */
+	void write(List<Result> results, String file) throws IOException {
+		StringBuilder out = new StringBuilder(4096).append("[\n");
+		for (int i = 0; i < results.size(); ++i) {
+			Result r = results.get(i);
+			out.append("    {\n");
+			member(out, 8, "jdkVersion", Json.quote(System.getProperty("java.version")), true);
+			member(out, 8, "vmName", Json.quote(System.getProperty("java.vm.name")), true);
+			member(out, 8, "benchmark", Json.quote(r.name), true);
+			member(out, 8, "mode", "\"avgt\"", true);
+			member(out, 8, "threads", Integer.toString(this._threads), true);
+			member(out, 8, "forks", "0", true);
+			member(out, 8, "warmupIterations", Integer.toString(this._warmup), true);
+			member(out, 8, "warmupTime", Json.quote(this._timeMillis + " ms"), true);
+			member(out, 8, "measurementIterations", Integer.toString(this._iterations), true);
+			member(out, 8, "measurementTime", Json.quote(this._timeMillis + " ms"), true);
+			out.append("        \"params\" : {\n");
+			int p = 0;
+			for (Map.Entry<String, String> param : this._params.entrySet()) {
+				member(out, 12, param.getKey(), Json.quote(param.getValue()), ++p < this._params.size());
+			}
+			out.append("        },\n");
+			out.append("        \"primaryMetric\" : {\n");
+			double mean = r.mean();
+			double error = r.error();
+			member(out, 12, "score", number(mean), true);
+			member(out, 12, "scoreError", number(error), true);
+			member(out, 12, "scoreConfidence", "[ " + number(mean - error) + ", " + number(mean + error) + " ]", true);
+			double[] sorted = r.scores.clone();
+			Arrays.sort(sorted);
+			out.append("            \"scorePercentiles\" : {\n");
+			for (int k = 0; k < PERCENTILES.length; ++k) {
+				member(out, 16, Double.toString(PERCENTILES[k]), number(percentile(sorted, PERCENTILES[k])), k + 1 < PERCENTILES.length);
+			}
+			out.append("            },\n");
+			member(out, 12, "scoreUnit", "\"us/op\"", true);
+			StringBuilder raw = new StringBuilder("[ [ ");
+			for (int k = 0; k < r.scores.length; ++k) {
+				raw.append(k > 0 ? ", " : "").append(number(r.scores[k]));
+			}
+			member(out, 12, "rawData", raw.append(" ] ]").toString(), false);
+			out.append("        },\n");
+			out.append("        \"secondaryMetrics\" : {\n        }\n");
+			out.append(i + 1 < results.size() ? "    },\n" : "    }\n");
+		}
+		out.append("]\n");
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			w.write(out.toString());
+		}
+	}
+
+	/**
+	 * Method to compare the results with an earlier results file and print
+	 * the change of each benchmark found in both.
+	 *
+	 * @param results the results of this run
+	 * @param file the earlier results, in the layout written by write or by JMH
+	 * @param tolerance the slowdown, in percent, allowed before a benchmark is flagged
+	 * @return false when a benchmark got slower by more than the tolerance
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	static boolean compare(List<Result> results, String file, double tolerance) throws IOException {
+		Map<String, Double> before = new HashMap<String, Double>();
+		Object parsed = Json.parse(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+		for (Object o : (List<?>) parsed) {
+			Map<?, ?> entry = (Map<?, ?>) o;
+			Object score = ((Map<?, ?>) entry.get("primaryMetric")).get("score");
+			if (score instanceof Number) {
+				before.put((String) entry.get("benchmark"), ((Number) score).doubleValue());
+			}
+		}
+		int regressions = 0;
+		int compared = 0;
+		System.out.println("Compared with " + file + ":");
+		for (Result r : results) {
+			Double base = before.get(r.name);
+			if (base == null) {
+				continue;
+			}
+			++compared;
+			double change = (r.mean() - base) / base * 100;
+			boolean regressed = change > tolerance;
+			if (regressed) {
+				++regressions;
+			}
+			System.out.println(String.format("%-45s %12.3f -> %12.3f us/op  %+7.1f%%%s", r.name, base, r.mean(), change, regressed ? "  SLOWER" : ""));
+		}
+		System.out.println(regressions + " of " + compared + " benchmarks are more than " + tolerance + "% slower");
+		return regressions == 0;
+	}
+
+	// the sampled ids come back as one unboxed int column
+	private int[] ints(String sql) throws SQLException {
+		return this._esql.executeQueryAndReturnColumns(sql, SAMPLE_SIZE).intColumn(1);
+	}
+
+	private String[] strings(String sql) throws SQLException {
+		ColumnarResult rows = this._esql.executeQueryAndReturnColumns(sql, SAMPLE_SIZE);
+		String[] values = new String[rows.rowCount()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = rows.getString(i, 1);
+		}
+		return values;
+	}
+
+	private static int pick(SplittableRandom random, int[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static String word(SplittableRandom random, int length) {
+		char[] c = new char[length];
+		for (int i = 0; i < length; ++i) {
+			c[i] = LETTERS.charAt(random.nextInt(i == 0 ? 23 : LETTERS.length()));
+		}
+		return new String(c);
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		double rank = p / 100 * (sorted.length - 1);
+		int lo = (int) Math.floor(rank);
+		int hi = (int) Math.ceil(rank);
+		return sorted[lo] + (sorted[hi] - sorted[lo]) * (rank - lo);
+	}
+
+	private static void member(StringBuilder out, int indent, String name, String value, boolean more) {
+		for (int i = 0; i < indent; ++i) {
+			out.append(' ');
+		}
+		Json.quote(out, name);
+		out.append(" : ").append(value).append(more ? ",\n" : "\n");
+	}
+
+	// JMH writes NaN as a string
+	private static String number(double d) {
+		return Double.isNaN(d) ? "\"NaN\"" : Double.toString(d);
+	}
+
+	// two-sided 99.9% quantile of Student's t distribution, rounded up between the tabulated degrees of freedom
+	private static double studentT999(int df) {
+		final double[] table = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587 };
+		if (df <= table.length) {
+			return table[df - 1];
+		}
+		return df < 15 ? 4.587 : df < 20 ? 4.073 : df < 30 ? 3.850 : 3.646;
+	}
+}
@@ -0,0 +1,484 @@
+/*
+ * HTTP API server for the Mechanic Shop
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class defines an HTTP/JSON front end to the shop operations, served
+ * by the JDK's built-in HTTP server so that many clients can share one
+ * process:
+ *
+ *   POST /customers              {fname, lname, phone, address}
+ *   POST /mechanics              {fname, lname, experience}
+ *   POST /cars                   {vin, make, model, year, owner}
+ *   POST /requests               {customer, vin, odometer, complaint}
+ *   POST /requests/{rid}/close   {mechanic, bill, comment}
+ *   GET  /customers?name=        customers whose name starts with the text
+ *   GET  /reports/bills-under-100[?from=&to=]
+ *   GET  /reports/customers-over-20-cars
+ *   GET  /reports/cars-before-1995
+ *   GET  /reports/most-serviced-cars?k=
+ *   GET  /reports/total-bills[?limit=][&from=&to=]
+ *
+ * The from and to dates, yyyy-mm-dd and both included, limit a report to
+ * the closed requests of that range, reading only its partitions.
+ * Writes are checked and applied by the batch runner, one operation per
+ * transaction, and answer 201 with the new ids, 400 with the reason they
+ * were rejected or 409 when the request was already closed or does not exist. Reports answer
+ * a JSON array of rows and go through the report cache. Each exchange runs
+ * on its own virtual thread when the runtime has them, otherwise on a
+ * bounded thread pool; either way at most shop.pool.max exchanges hold a
+ * database connection at once and the rest wait for one, answering 503 when
+ * none frees up within shop.pool.maxWaitMs.
+ *
+ */
+public class ShopHttpServer {
+	static final int DEFAULT_PORT = 8080;
+	static final String DEFAULT_HOST = "localhost";
+	static final int DEFAULT_THREADS = 64;
+	static final int MAX_BODY_BYTES = 64 * 1024;
+	static final Set<String> ROUTES = new HashSet<String>(Arrays.asList(
+		"/customers", "/mechanics", "/cars", "/requests", "/requests/{rid}/close",
+		"/reports/bills-under-100", "/reports/customers-over-20-cars", "/reports/cars-before-1995",
+		"/reports/most-serviced-cars", "/reports/total-bills"));
+
+	/**
+	 * An error answered with the given status and message.
+	 */
+	static class HttpError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final int status;
+
+		HttpError(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}//end HttpError
+
+	private final MechanicShop _esql;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+
+	public ShopHttpServer(MechanicShop esql, InetSocketAddress address) throws IOException {
+		this._esql = esql;
+		this._executor = newExecutor();
+		this._server = HttpServer.create(address, 0);
+		this._server.setExecutor(this._executor);
+		this._server.createContext("/", this::handle);
+	}
+
+	/**
+	 * Method to run the command line form of the server.  It prepares the
+	 * shop as the menu does and serves until the process is stopped.
+	 *
+	 * @param esql the connected shop
+	 * @param args the arguments after the command name: [port]
+	 * @return true once the server has stopped
+	 * @throws java.lang.Exception when the shop cannot be prepared or the port bound
+	 */
+	public static boolean run(MechanicShop esql, String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("shop.http.port", DEFAULT_PORT);
+		String host = System.getProperty("shop.http.host", DEFAULT_HOST);
+		esql.startup();
+		ShopHttpServer server = new ShopHttpServer(esql, new InetSocketAddress(host, port));
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+		server.start();
+		System.out.println("Serving on http://" + host + ":" + server.port() + "/");
+		server.awaitStop();
+		return true;
+	}
+
+	public void start() {
+		this._server.start();
+	}
+
+	public int port() {
+		return this._server.getAddress().getPort();
+	}
+
+	/**
+	 * Method to stop taking exchanges, give those in progress a second to
+	 * finish and release the threads.
+	 */
+	public void stop() {
+		if (this._stopped.getCount() == 0) {
+			return;
+		}
+		this._server.stop(1);
+		this._executor.shutdown();
+		this._stopped.countDown();
+	}
+
+	public void awaitStop() throws InterruptedException {
+		this._stopped.await();
+	}
+
+	// one virtual thread per exchange on Java 21 and later, a bounded pool before that
+	static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("shop.http.threads", DEFAULT_THREADS)));
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			this._esql.metrics().time(routeName(exchange), () -> route(exchange));
+		} catch (HttpError e) {
+			sendError(exchange, e.status, e.getMessage());
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (SQLTransientException e) {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendError(exchange, 503, e.getMessage());
+		} catch (Exception e) {
+			sendError(exchange, 500, e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void route(HttpExchange exchange) throws IOException, SQLException {
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+		Map<String, String> query = query(exchange);
+		switch (path[0]) {
+			case "customers":
+				if (path.length == 1 && method.equals("GET")) {
+					searchCustomers(exchange, query.getOrDefault("name", ""));
+					return;
+				}
+				expect(exchange, path.length == 1, "POST");
+				Map<String, Object> customer = body(exchange);
+				write(exchange, BatchRunner.CUSTOMER, field(customer, "fname"), field(customer, "lname"), field(customer, "phone"), field(customer, "address"));
+				return;
+			case "mechanics":
+				expect(exchange, path.length == 1, "POST");
+				Map<String, Object> mechanic = body(exchange);
+				write(exchange, BatchRunner.MECHANIC, field(mechanic, "fname"), field(mechanic, "lname"), field(mechanic, "experience"));
+				return;
+			case "cars":
+				expect(exchange, path.length == 1, "POST");
+				Map<String, Object> car = body(exchange);
+				write(exchange, BatchRunner.CAR, field(car, "vin"), field(car, "make"), field(car, "model"), field(car, "year"), field(car, "owner"));
+				return;
+			case "requests":
+				if (path.length == 3 && path[2].equals("close")) {
+					expect(exchange, true, "POST");
+					Map<String, Object> close = body(exchange);
+					write(exchange, BatchRunner.CLOSE, path[1], field(close, "mechanic"), field(close, "bill"), field(close, "comment"));
+					return;
+				}
+				expect(exchange, path.length == 1, "POST");
+				Map<String, Object> request = body(exchange);
+				write(exchange, BatchRunner.REQUEST, field(request, "customer"), field(request, "vin"), field(request, "odometer"), field(request, "complaint"));
+				return;
+			case "reports":
+				expect(exchange, path.length == 2, "GET");
+				report(exchange, path[1], query);
+				return;
+			default:
+				throw new HttpError(404, "No such resource");
+		}
+	}
+
+	// the method and path of a known endpoint, with the request number replaced, so each endpoint has one histogram
+	private static String routeName(HttpExchange exchange) {
+		String path = exchange.getRequestURI().getPath().replaceAll("/+$", "").replaceAll("/\\d+(?=/|$)", "/{rid}");
+		String method = exchange.getRequestMethod();
+		return ROUTES.contains(path) && (method.equals("GET") || method.equals("POST")) ? method + " " + path : "other";
+	}
+
+	// runs one write through the batch runner and answers its result
+	private void write(HttpExchange exchange, String kind, String... fields) throws IOException, SQLException {
+		BatchRunner.Op op = new BatchRunner(this._esql, 1, null).runOne(kind, fields);
+		StringBuilder out = new StringBuilder(128).append('{');
+		BatchRunner.describe(out, op);
+		out.append('}');
+		int status = BatchRunner.OK.equals(op.status) ? 201 : BatchRunner.SKIPPED.equals(op.status) ? 409 : 400;
+		send(exchange, status, out);
+	}
+
+	private void searchCustomers(HttpExchange exchange, String name) throws IOException, SQLException {
+		CustomerDirectory directory = this._esql.customers();
+		directory.ensureLoaded(this._esql);
+		int limit = Math.max(1, Integer.getInteger("shop.directory.maxMatches", MechanicShop.DEFAULT_MAX_MATCHES));
+		StringBuilder out = new StringBuilder(256).append('[');
+		for (CustomerDirectory.Customer c : directory.search(this._esql, name, limit)) {
+			if (out.length() > 1) {
+				out.append(',');
+			}
+			out.append("{\"id\":").append(c.id).append(",\"fname\":");
+			Json.quote(out, c.fname);
+			out.append(",\"lname\":");
+			Json.quote(out, c.lname);
+			out.append(",\"phone\":");
+			Json.quote(out, c.phone);
+			out.append(",\"address\":");
+			Json.quote(out, c.address);
+			out.append('}');
+		}
+		send(exchange, 200, out.append(']'));
+	}
+
+	private void report(HttpExchange exchange, String name, Map<String, String> query) throws IOException, SQLException {
+		Date[] range;
+		switch (name) {
+			case "bills-under-100":
+				range = range(query);
+				if (range == null) {
+					report(exchange, MechanicShop.REPORT_BILL_LESS_THAN_100_TABLES, MechanicShop.REPORT_BILL_LESS_THAN_100_SQL);
+				} else {
+					report(exchange, MechanicShop.REPORT_BILL_LESS_THAN_100_TABLES, MechanicShop.REPORT_BILL_LESS_THAN_100_WINDOW_SQL, range[0], range[1]);
+				}
+				return;
+			case "customers-over-20-cars":
+				report(exchange, MechanicShop.REPORT_MORE_THAN_20_CARS_TABLES, MechanicShop.REPORT_MORE_THAN_20_CARS_SQL);
+				return;
+			case "cars-before-1995":
+				report(exchange, MechanicShop.REPORT_CARS_BEFORE_1995_TABLES, MechanicShop.REPORT_CARS_BEFORE_1995_SQL);
+				return;
+			case "most-serviced-cars":
+				mostServicedCars(exchange, positive(query.get("k"), "k"));
+				return;
+			case "total-bills":
+				String limit = query.get("limit");
+				range = range(query);
+				if (range != null && (limit == null || limit.isEmpty())) {
+					report(exchange, MechanicShop.REPORT_TOTAL_BILL_WINDOW_TABLES, MechanicShop.REPORT_TOTAL_BILL_WINDOW_SQL, range[0], range[1], range[1]);
+				} else if (range != null) {
+					report(exchange, MechanicShop.REPORT_TOTAL_BILL_WINDOW_TABLES, MechanicShop.REPORT_TOP_N_TOTAL_BILL_WINDOW_SQL,
+						range[0], range[1], range[1], positive(limit, "limit"));
+				} else if (limit == null || limit.isEmpty()) {
+					report(exchange, MechanicShop.REPORT_TOTAL_BILL_TABLES, MechanicShop.REPORT_TOTAL_BILL_SQL);
+				} else {
+					report(exchange, MechanicShop.REPORT_TOTAL_BILL_TABLES, MechanicShop.REPORT_TOP_N_TOTAL_BILL_SQL, positive(limit, "limit"));
+				}
+				return;
+			default:
+				throw new HttpError(404, "No such report");
+		}
+	}
+
+	// served from the counts kept in memory, as in the menu
+	private void mostServicedCars(HttpExchange exchange, int k) throws IOException, SQLException {
+		this._esql.openServiceCounts().ensureLoaded(this._esql);
+		List<OpenServiceCounts.CarCount> cars = this._esql.openServiceCounts().top(this._esql, k);
+		StringBuilder out = new StringBuilder(64 * cars.size() + 2).append('[');
+		for (OpenServiceCounts.CarCount car : cars) {
+			if (out.length() > 1) {
+				out.append(',');
+			}
+			out.append("{\"make\":");
+			Json.quote(out, car.make == null ? null : car.make.trim());
+			out.append(",\"model\":");
+			Json.quote(out, car.model == null ? null : car.model.trim());
+			out.append(",\"amt_service\":").append(car.count).append('}');
+		}
+		send(exchange, 200, out.append(']'));
+	}
+
+	/**
+	 * Method to answer a report query as a JSON array of row objects,
+	 * through the report cache.  Rows are streamed to the client as they
+	 * are fetched and kept, unless too large, for the next request.
+	 */
+	private void report(HttpExchange exchange, String[] tables, String query, Object... params) throws IOException, SQLException {
+		ReportCache reports = this._esql.reports();
+		String key = ReportCache.key("json:" + query, params);
+		String text = reports.get(key);
+		if (text != null) {
+			send(exchange, 200, text);
+			return;
+		}
+		long stamp = reports.stamp();
+		try (RowCursor rs = this._esql.openReportCursor(query, params)) {
+			int numCol = rs.columnCount();
+			String[] names = new String[numCol + 1];
+			boolean[] numeric = new boolean[numCol + 1];
+			for (int i = 1; i <= numCol; ++i) {
+				names[i] = Json.quote(rs.columnName(i)) + ':';
+				numeric[i] = isNumeric(rs.columnType(i));
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(200, 0);
+			ReportCache.Capture capture = new ReportCache.Capture(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)), reports.maxChars() / 4);
+			StringBuilder row = new StringBuilder(256);
+			capture.write('[');
+			boolean first = true;
+			while (rs.next()) {
+				row.append(first ? "{" : ",{");
+				first = false;
+				for (int i = 1; i <= numCol; ++i) {
+					if (i > 1) {
+						row.append(',');
+					}
+					row.append(names[i]);
+					String value = rs.getString(i);
+					if (value == null) {
+						row.append("null");
+					} else if (numeric[i]) {
+						row.append(value);
+					} else {
+						Json.quote(row, value.trim());
+					}
+				}
+				row.append('}');
+				capture.write(row.toString());
+				row.setLength(0);
+			}
+			capture.write(']');
+			capture.flush();
+			reports.put(key, capture.text(), stamp, tables);
+		}
+	}
+
+	private static boolean isNumeric(int type) {
+		switch (type) {
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.NUMERIC: case Types.DECIMAL: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static void expect(HttpExchange exchange, boolean found, String method) {
+		if (!found) {
+			throw new HttpError(404, "No such resource");
+		}
+		if (!exchange.getRequestMethod().equals(method)) {
+			exchange.getResponseHeaders().set("Allow", method);
+			throw new HttpError(405, "Use " + method);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> body(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				bytes.write(buf, 0, n);
+				if (bytes.size() > MAX_BODY_BYTES) {
+					throw new HttpError(413, "Request body is larger than " + MAX_BODY_BYTES + " bytes");
+				}
+			}
+		}
+		Object value = Json.parse(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		if (!(value instanceof Map)) {
+			throw new IllegalArgumentException("Request body must be a JSON object");
+		}
+		return (Map<String, Object>) value;
+	}
+
+	// a member of the body as the batch runner expects it: trimmed text, whole numbers without a fraction
+	private static String field(Map<String, Object> body, String name) {
+		Object value = body.get(name);
+		if (value == null) {
+			return "";
+		}
+		if (value instanceof Double && (Double) value == Math.rint((Double) value)) {
+			return Long.toString(((Double) value).longValue());
+		}
+		return value.toString().trim();
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<String, String>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null) {
+			return params;
+		}
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static int positive(String value, String name) {
+		try {
+			int n = Integer.parseInt(value == null ? "" : value.trim());
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException(name + " must be a positive integer");
+	}
+
+	// the from and to parameters as the first date and the date after the last, or null when absent
+	private static Date[] range(Map<String, String> query) {
+		String from = query.get("from");
+		String to = query.get("to");
+		if ((from == null || from.isEmpty()) && (to == null || to.isEmpty())) {
+			return null;
+		}
+		if (from == null || to == null) {
+			throw new IllegalArgumentException("from and to must be given together");
+		}
+		Date[] range = MechanicShop.dateRange(from, to);
+		if (range == null) {
+			throw new IllegalArgumentException("from must not be after to");
+		}
+		return range;
+	}
+
+	private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+		byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) {
+		try {
+			if (exchange.getResponseCode() != -1) {
+				// the headers are out; all that can be done is cutting the body short
+				return;
+			}
+			send(exchange, status, "{\"error\":" + Json.quote(message) + "}");
+		} catch (IOException e) {
+			// the client went away
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Slow query log for the Mechanic Shop
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the slow query log. A database call that takes longer
+ * than shop.slowlog.thresholdMs is written to shop.slowlog.file with its SQL
+ * shape, bound parameters, elapsed time and the operation it ran under,
+ * together with its plan under EXPLAIN (ANALYZE, BUFFERS).
+ *
+ * The plan is captured on a background thread and its own pooled connection,
+ * inside a transaction that is rolled back, so writes are not applied twice
+ * and the caller never waits for it. A write that cannot run again (a
+ * duplicate key, say) falls back to a plain EXPLAIN. Each SQL shape is
+ * explained at most once per shop.slowlog.explainIntervalMs; later entries
+ * refer back to it. The file is rotated once it reaches
+ * shop.slowlog.maxBytes, keeping shop.slowlog.files files.
+ *
+ */
+public class SlowQueryLog {
+	static final long DEFAULT_THRESHOLD_MS = 500;
+	static final long DEFAULT_EXPLAIN_INTERVAL_MS = 60000;
+	static final long DEFAULT_EXPLAIN_TIMEOUT_MS = 30000;
+	static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+	static final int DEFAULT_FILES = 5;
+	// entries waiting for a plan; past that, slow calls are dropped
+	static final int MAX_PENDING = 100;
+	static final int MAX_PARAM_CHARS = 200;
+
+	private final MechanicShop _esql;
+	private final Path _file;
+	private final long _thresholdNanos;
+	private final long _explainIntervalMs;
+	private final long _explainTimeoutMs;
+	private final long _maxBytes;
+	private final int _files;
+	private final ThreadPoolExecutor _explainer;
+	// the last time each SQL shape was explained
+	private final ConcurrentHashMap<String, Long> _explained = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong _dropped = new AtomicLong();
+
+	public SlowQueryLog(MechanicShop esql, Path file, long thresholdMs, long explainIntervalMs, long explainTimeoutMs, long maxBytes, int files) {
+		this._esql = esql;
+		this._file = file;
+		this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+		this._explainIntervalMs = explainIntervalMs;
+		this._explainTimeoutMs = explainTimeoutMs;
+		this._maxBytes = maxBytes;
+		this._files = Math.max(1, files);
+		this._explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING), r -> {
+			Thread t = new Thread(r, "shop-slowlog");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Method to build the log from the shop.slowlog properties.
+	 *
+	 * @param esql the shop whose connections capture the plans
+	 * @return the log, or null when shop.slowlog.file is not set
+	 */
+	public static SlowQueryLog fromProperties(MechanicShop esql) {
+		String file = System.getProperty("shop.slowlog.file");
+		if (file == null) {
+			return null;
+		}
+		return new SlowQueryLog(esql, Paths.get(file),
+			Long.getLong("shop.slowlog.thresholdMs", DEFAULT_THRESHOLD_MS),
+			Long.getLong("shop.slowlog.explainIntervalMs", DEFAULT_EXPLAIN_INTERVAL_MS),
+			Long.getLong("shop.slowlog.explainTimeoutMs", DEFAULT_EXPLAIN_TIMEOUT_MS),
+			Long.getLong("shop.slowlog.maxBytes", DEFAULT_MAX_BYTES),
+			Integer.getInteger("shop.slowlog.files", DEFAULT_FILES));
+	}
+
+	public long thresholdNanos() {
+		return this._thresholdNanos;
+	}
+
+	/**
+	 * Method to log a call that took longer than the threshold.  It returns
+	 * at once; the entry is written once its plan is captured.
+	 *
+	 * @param sql the statement, with ? placeholders
+	 * @param params the values bound to it, or null when it has no single
+	 *        set of values to explain (a batch or a COPY)
+	 * @param elapsedNanos the time the call took
+	 * @param operation the operation the call ran under, or null
+	 */
+	public void offer(String sql, Object[] params, long elapsedNanos, String operation) {
+		if (elapsedNanos < this._thresholdNanos) {
+			return;
+		}
+		String shape = sql.replaceAll("\\s+", " ").trim();
+		Instant at = Instant.now();
+		// the parameters are rendered now, as the caller may reuse the array
+		String values = params == null ? null : render(params);
+		Object[] bound = params == null ? null : params.clone();
+		boolean explain = bound != null && claimExplain(shape);
+		try {
+			this._explainer.execute(() -> {
+				String plan = explain ? explain(sql, bound)
+					: bound == null ? "not captured: the call has no single set of parameters"
+					: "captured for an earlier call of this statement within the last " + this._explainIntervalMs + " ms";
+				write(entry(at, shape, values, elapsedNanos, operation, plan));
+			});
+		} catch (RejectedExecutionException e) {
+			this._dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Method to wait for the pending entries and stop capturing plans.
+	 */
+	public void close() {
+		this._explainer.shutdown();
+		try {
+			if (!this._explainer.awaitTermination(this._explainTimeoutMs, TimeUnit.MILLISECONDS)) {
+				this._explainer.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			this._explainer.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// true for the first caller of each shape per interval
+	private boolean claimExplain(String shape) {
+		long now = System.currentTimeMillis();
+		Long last = this._explained.get(shape);
+		if (last != null && now - last < this._explainIntervalMs) {
+			return false;
+		}
+		return last == null ? this._explained.putIfAbsent(shape, now) == null : this._explained.replace(shape, last, now);
+	}
+
+	/*
+	 * Runs the statement again under EXPLAIN (ANALYZE, BUFFERS) in a rolled
+	 * back transaction, or under a plain EXPLAIN when it cannot run again.
+	 */
+	String explain(String sql, Object[] params) {
+		try {
+			ConnectionPool.PooledConnection conn = this._esql.acquire();
+			try {
+				try {
+					return plan(conn.connection(), "EXPLAIN (ANALYZE, BUFFERS) " + sql, params);
+				} catch (SQLException e) {
+					return "EXPLAIN ANALYZE failed (" + e.getMessage().trim() + "), estimated plan:\n"
+						+ plan(conn.connection(), "EXPLAIN " + sql, params);
+				}
+			} finally {
+				this._esql.release();
+			}
+		} catch (SQLException e) {
+			return "not captured: " + e.getMessage().trim();
+		}
+	}
+
+	private String plan(Connection c, String sql, Object[] params) throws SQLException {
+		c.setAutoCommit(false);
+		try {
+			try (Statement stmt = c.createStatement()) {
+				stmt.execute("SET LOCAL statement_timeout = " + this._explainTimeoutMs);
+			}
+			StringBuilder plan = new StringBuilder();
+			try (PreparedStatement stmt = c.prepareStatement(sql)) {
+				StatementCache.bind(stmt, params);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						plan.append("  ").append(rs.getString(1)).append('\n');
+					}
+				}
+			}
+			return plan.toString();
+		} finally {
+			c.rollback();
+			c.setAutoCommit(true);
+		}
+	}
+
+	private String entry(Instant at, String shape, String values, long elapsedNanos, String operation, String plan) {
+		StringBuilder out = new StringBuilder(1024);
+		out.append("# ").append(at).append(String.format("  %.1f ms", elapsedNanos / 1e6));
+		if (operation != null) {
+			out.append("  operation ").append(operation);
+		}
+		long dropped = this._dropped.getAndSet(0);
+		if (dropped > 0) {
+			out.append("  (").append(dropped).append(" earlier slow calls dropped)");
+		}
+		out.append("\nSQL: ").append(shape).append('\n');
+		if (values != null) {
+			out.append("Parameters: ").append(values).append('\n');
+		}
+		out.append("Plan:").append(plan.startsWith("  ") ? "\n" : " ").append(plan);
+		if (!plan.endsWith("\n")) {
+			out.append('\n');
+		}
+		return out.append('\n').toString();
+	}
+
+	// runs on the explainer thread only, so appends and rotation never interleave
+	private void write(String entry) {
+		try {
+			byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+			if (Files.exists(this._file) && Files.size(this._file) + bytes.length > this._maxBytes) {
+				rotate();
+			}
+			try (Writer out = Files.newBufferedWriter(this._file, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				out.write(entry);
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write the slow query log " + this._file + ": " + e.getMessage());
+		}
+	}
+
+	// file.(n-1) becomes file.n, ..., file becomes file.1; the oldest is dropped
+	private void rotate() throws IOException {
+		Files.deleteIfExists(rotated(this._files - 1));
+		for (int i = this._files - 2; i >= 1; --i) {
+			if (Files.exists(rotated(i))) {
+				Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (this._files > 1) {
+			Files.move(this._file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.delete(this._file);
+		}
+	}
+
+	private Path rotated(int generation) {
+		return generation == 0 ? this._file : this._file.resolveSibling(this._file.getFileName() + "." + generation);
+	}
+
+	static String render(Object[] params) {
+		StringBuilder out = new StringBuilder("[");
+		for (int i = 0; i < params.length; ++i) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			render(out, params[i]);
+		}
+		return out.append(']').toString();
+	}
+
+	private static void render(StringBuilder out, Object value) {
+		if (value == null) {
+			out.append("null");
+		} else if (value.getClass().isArray()) {
+			int n = Array.getLength(value);
+			out.append('{');
+			for (int i = 0; i < n && out.length() < 4 * MAX_PARAM_CHARS; ++i) {
+				if (i > 0) {
+					out.append(", ");
+				}
+				render(out, Array.get(value, i));
+			}
+			out.append(out.length() < 4 * MAX_PARAM_CHARS ? "}" : ", ... (" + n + " values)}");
+		} else if (value instanceof Number || value instanceof Boolean) {
+			out.append(value);
+		} else {
+			String s = value.toString();
+			out.append('\'').append(s.length() > MAX_PARAM_CHARS ? s.substring(0, MAX_PARAM_CHARS) + "..." : s).append('\'');
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Statement cache for the Mechanic Shop JDBC layer
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class defines a per-connection cache of prepared statements keyed by
+ * their SQL shape. Statements are prepared on the server on their first
+ * execution, so repeated calls with the same shape skip parsing and planning.
+ * The least recently used statement is closed once the cache is full.
+ *
+ */
+public class StatementCache {
+	// default number of statements kept open per connection
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection _connection;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	public StatementCache(Connection connection, final int capacity) {
+		this._connection = connection;
+		// access ordered map so the eldest entry is the least recently used
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > capacity) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to fetch the prepared statement for a SQL shape, preparing it on
+	 * the first request.
+	 *
+	 * @param sql the parameterized SQL string, using ? placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt == null || stmt.isClosed()) {
+			stmt = this._connection.prepareStatement(sql);
+			// use a named server-side statement from the first execution on
+			stmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+			this._statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to bind positional parameters to a prepared statement.  A
+	 * String[] is bound as a varchar array, for use with = ANY(?).
+	 *
+	 * @param stmt the prepared statement
+	 * @param params the values bound to the ? placeholders, in order
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	public static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+		stmt.clearParameters();
+		for (int i = 0; i < params.length; ++i) {
+			if (params[i] instanceof String[]) {
+				stmt.setArray(i + 1, stmt.getConnection().createArrayOf("varchar", (String[]) params[i]));
+			} else {
+				stmt.setObject(i + 1, params[i]);
+			}
+		}
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement stmt : this._statements.values()) {
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	public synchronized int size() {
+		return this._statements.size();
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
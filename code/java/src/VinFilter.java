@@ -0,0 +1,181 @@
+/*
+ * VIN membership filter for the Mechanic Shop
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class defines a Bloom filter over the VINs of the Car table. A VIN
+ * the filter has not seen was not in the table when it was built, so AddCar
+ * only asks the database about the few VINs the filter might contain. The
+ * filter is built from the table once, on first use, sized for twice the
+ * cars loaded, and kept current by AddCar; once it fills up it is rebuilt
+ * on the next use. Until it is loaded every VIN is reported as a possible
+ * hit. Cars added by other processes are not in it, so AddCar still
+ * relies on the primary key of Car and asks for another VIN when the
+ * insert finds one.
+ *
+ */
+public class VinFilter {
+
+	/**
+	 * A fixed-size Bloom filter of strings. Bits are set with atomic
+	 * updates, so concurrent adds and lookups need no lock.
+	 */
+	static class Bloom {
+		private final AtomicLongArray _bits;
+		private final long _size;
+		private final int _hashes;
+		private final int _capacity;
+		private final AtomicInteger _count = new AtomicInteger();
+
+		/**
+		 * @param capacity the number of strings the filter is sized for
+		 * @param fpp the false positive rate wanted at capacity
+		 */
+		Bloom(int capacity, double fpp) {
+			long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+			this._bits = new AtomicLongArray((int) Math.max(1, (bits + 63) / 64));
+			this._size = this._bits.length() * 64L;
+			this._hashes = (int) Math.max(1, Math.min(16, Math.round((double) this._size / capacity * Math.log(2))));
+			this._capacity = capacity;
+		}
+
+		void add(String s) {
+			long h1 = hash(s);
+			long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < this._hashes; ++i) {
+				long bit = Math.floorMod(h1 + i * h2, this._size);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long old;
+				do {
+					old = this._bits.get(word);
+				} while ((old & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask));
+			}
+			this._count.incrementAndGet();
+		}
+
+		boolean mightContain(String s) {
+			long h1 = hash(s);
+			long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < this._hashes; ++i) {
+				long bit = Math.floorMod(h1 + i * h2, this._size);
+				if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean full() {
+			return this._count.get() > this._capacity;
+		}
+
+		// FNV-1a over the characters, then a 64-bit finalizer
+		private static long hash(String s) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < s.length(); ++i) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return mix(h);
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}//end Bloom
+
+	static final String VINS_SQL = "SELECT vin FROM car";
+	static final int MIN_CAPACITY = 1 << 16;
+	static final double DEFAULT_FPP = 0.01;
+
+	private volatile Bloom _bloom = null;
+	// the filter being built; VINs added during a build go into both
+	private volatile Bloom _building = null;
+
+	/**
+	 * Method to build the filter from the Car table unless it is already
+	 * built and not full.
+	 *
+	 * @param esql the connected shop
+	 * @throws java.sql.SQLException when the VINs cannot be read
+	 */
+	public void ensureLoaded(MechanicShop esql) throws SQLException {
+		Bloom bloom = this._bloom;
+		if (bloom != null && !bloom.full()) {
+			return;
+		}
+		synchronized (this) {
+			if (this._bloom != bloom) {
+				return;
+			}
+			int cars = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM car").get(0).get(0));
+			Bloom building = new Bloom(Math.max(MIN_CAPACITY, 2 * cars), fpp());
+			// published before the scan starts, so a VIN committed after the
+			// scan's snapshot is added by AddCar instead
+			this._building = building;
+			try (RowCursor rs = esql.openCursor(VINS_SQL)) {
+				while (rs.next()) {
+					building.add(rs.getString(1));
+				}
+				this._bloom = building;
+			} finally {
+				this._building = null;
+			}
+		}
+	}
+
+	/**
+	 * Method to drop the filter so the next use builds it again.
+	 */
+	public synchronized void invalidate() {
+		this._bloom = null;
+	}
+
+	/**
+	 * Method to record a newly inserted car.
+	 *
+	 * @param vin the car's VIN
+	 */
+	public void add(String vin) {
+		// read the filter being built first: a build publishes its filter
+		// before it stops taking adds
+		Bloom building = this._building;
+		if (building != null) {
+			building.add(vin);
+		}
+		Bloom bloom = this._bloom;
+		if (bloom != null && bloom != building) {
+			bloom.add(vin);
+		}
+	}
+
+	/**
+	 * Method to test whether a VIN may already be in the Car table.
+	 *
+	 * @param vin the VIN
+	 * @return false only when the VIN is certainly not in the table
+	 */
+	public boolean mightContain(String vin) {
+		Bloom bloom = this._bloom;
+		return bloom == null || bloom.mightContain(vin);
+	}
+
+	static double fpp() {
+		String fpp = System.getProperty("shop.vinFilter.fpp");
+		return fpp == null ? DEFAULT_FPP : Double.parseDouble(fpp);
+	}
+}
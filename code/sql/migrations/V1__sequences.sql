@@ -0,0 +1,73 @@
+/* Melissa Santos & Joshua Riley
+ * CS166 Project Mechanic Database
+ * Sequences for customer, mechanic, ownership, service request and closed request ids
+ *
+ * Ids are handed out by the client in blocks (hi/lo). Each nextval reserves
+ * the INCREMENT BY ids starting at the returned value, so the increment must
+ * match IdAllocator.BLOCK_SIZE. The column defaults only serve manual inserts.
+ *
+ * Migration 1. Applied once by SchemaMigrator; load runs it again to move the
+ * sequences past the loaded rows, so it must stay safe to rerun.
+ */
+
+/* Customer ids */
+-- Replaces the per-row id trigger of earlier versions
+DROP TRIGGER IF EXISTS set_cust_id on customer;
+DROP FUNCTION IF EXISTS set_cust_id();
+
+CREATE SEQUENCE IF NOT EXISTS cust_id_seq;
+ALTER SEQUENCE cust_id_seq MINVALUE 1 INCREMENT BY 50;
+
+-- Continue after the max id of the customer table, never moving backwards
+SELECT setval('cust_id_seq', GREATEST(
+	(SELECT COALESCE(MAX(id), 0) + 1 FROM customer),
+	(SELECT last_value + CASE WHEN is_called THEN 50 ELSE 0 END FROM cust_id_seq)), false);
+ALTER TABLE customer ALTER COLUMN id SET DEFAULT nextval('cust_id_seq');
+
+/* Mechanic ids */
+DROP TRIGGER IF EXISTS set_mech_id on mechanic;
+DROP FUNCTION IF EXISTS set_mech_id();
+
+CREATE SEQUENCE IF NOT EXISTS mech_id_seq;
+ALTER SEQUENCE mech_id_seq MINVALUE 1 INCREMENT BY 50;
+
+SELECT setval('mech_id_seq', GREATEST(
+	(SELECT COALESCE(MAX(id), 0) + 1 FROM mechanic),
+	(SELECT last_value + CASE WHEN is_called THEN 50 ELSE 0 END FROM mech_id_seq)), false);
+ALTER TABLE mechanic ALTER COLUMN id SET DEFAULT nextval('mech_id_seq');
+
+/* Owns ownership ids */
+DROP TRIGGER IF EXISTS set_owns_id on owns;
+DROP FUNCTION IF EXISTS set_owns_id();
+
+CREATE SEQUENCE IF NOT EXISTS owns_id_seq;
+ALTER SEQUENCE owns_id_seq MINVALUE 1 INCREMENT BY 50;
+
+SELECT setval('owns_id_seq', GREATEST(
+	(SELECT COALESCE(MAX(ownership_id), 0) + 1 FROM owns),
+	(SELECT last_value + CASE WHEN is_called THEN 50 ELSE 0 END FROM owns_id_seq)), false);
+ALTER TABLE owns ALTER COLUMN ownership_id SET DEFAULT nextval('owns_id_seq');
+
+/* Service request rids */
+DROP TRIGGER IF EXISTS set_serv_rid on service_request;
+DROP FUNCTION IF EXISTS set_serv_rid();
+
+CREATE SEQUENCE IF NOT EXISTS serv_rid_seq;
+ALTER SEQUENCE serv_rid_seq MINVALUE 1 INCREMENT BY 50;
+
+SELECT setval('serv_rid_seq', GREATEST(
+	(SELECT COALESCE(MAX(rid), 0) + 1 FROM service_request),
+	(SELECT last_value + CASE WHEN is_called THEN 50 ELSE 0 END FROM serv_rid_seq)), false);
+ALTER TABLE service_request ALTER COLUMN rid SET DEFAULT nextval('serv_rid_seq');
+
+/* Closed request wids */
+DROP TRIGGER IF EXISTS set_clos_wid on closed_request;
+DROP FUNCTION IF EXISTS set_clos_wid();
+
+CREATE SEQUENCE IF NOT EXISTS clos_wid_seq;
+ALTER SEQUENCE clos_wid_seq MINVALUE 1 INCREMENT BY 50;
+
+SELECT setval('clos_wid_seq', GREATEST(
+	(SELECT COALESCE(MAX(wid), 0) + 1 FROM closed_request),
+	(SELECT last_value + CASE WHEN is_called THEN 50 ELSE 0 END FROM clos_wid_seq)), false);
+ALTER TABLE closed_request ALTER COLUMN wid SET DEFAULT nextval('clos_wid_seq');
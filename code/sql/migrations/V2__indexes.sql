@@ -0,0 +1,32 @@
+/* CS166 Project Mechanic Database
+ * Supporting indexes for the menu operations and reports
+ *
+ * Migration 2. Applied once by SchemaMigrator; load runs it again after a
+ * deferred load, so it must stay safe to rerun. New indexes go in a new
+ * migration; PlanCheck verifies that every query still uses them.
+ */
+
+-- Customer last-name lookups in AddCar and InsertServiceRequest
+CREATE INDEX IF NOT EXISTS customer_lname_idx ON customer (lname);
+
+-- Cars of a customer (InsertServiceRequest) and the per-customer car count of report 7
+CREATE INDEX IF NOT EXISTS owns_customer_id_idx ON owns (customer_id, car_vin);
+-- Owners of a car, and the foreign key check when a car is deleted
+CREATE INDEX IF NOT EXISTS owns_car_vin_idx ON owns (car_vin);
+
+-- Requests of a car: report 8 probes and report 9 groups by car
+CREATE INDEX IF NOT EXISTS service_request_car_vin_idx ON service_request (car_vin);
+-- Requests of a customer: report 10 groups by customer
+CREATE INDEX IF NOT EXISTS service_request_customer_id_idx ON service_request (customer_id);
+-- Report 8 only looks at low-mileage requests
+CREATE INDEX IF NOT EXISTS service_request_low_odometer_idx ON service_request (car_vin) WHERE odometer < 50000;
+
+-- Closing a request checks Closed_Request by rid and the open-request
+-- anti-joins probe it by rid; bill makes report 10's join index-only
+CREATE INDEX IF NOT EXISTS closed_request_rid_bill_idx ON closed_request (rid, bill);
+DROP INDEX IF EXISTS closed_request_rid_idx;
+-- Report 6 only looks at bills under 100
+CREATE INDEX IF NOT EXISTS closed_request_low_bill_idx ON closed_request (bill) WHERE bill < 100;
+
+-- Report 8 only looks at cars built before 1995
+CREATE INDEX IF NOT EXISTS car_pre_1995_idx ON car (vin, make, model, year) WHERE year < 1995;
@@ -0,0 +1,29 @@
+/* CS166 Project Mechanic Database
+ * Summary tables maintained by the application
+ *
+ * Migration 3. Applied once by SchemaMigrator; load runs it again before
+ * loading, so it must stay safe to rerun.
+ */
+
+-- Running bill total per customer, kept current by CloseServiceRequest and
+-- served to report 10 in total order straight from its index. The table is
+-- seeded from the closed history only when it is first created.
+DO $$
+BEGIN
+	IF to_regclass('customer_bill_total') IS NULL THEN
+		CREATE TABLE customer_bill_total
+		(
+			customer_id INTEGER NOT NULL,
+			total BIGINT NOT NULL,
+			PRIMARY KEY (customer_id)
+		);
+		CREATE INDEX customer_bill_total_total_idx ON customer_bill_total (total DESC, customer_id);
+
+		INSERT INTO customer_bill_total (customer_id, total)
+		SELECT sr.customer_id, SUM(cr.bill)
+		FROM Closed_Request cr, Service_Request sr
+		WHERE cr.rid = sr.rid
+		GROUP BY sr.customer_id;
+	END IF;
+END
+$$;
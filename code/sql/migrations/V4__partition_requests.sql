@@ -0,0 +1,90 @@
+/* CS166 Project Mechanic Database
+ * Yearly range partitions of Service_Request and Closed_Request by date
+ *
+ * Migration 4. Reports that ask about a date range only read the partitions
+ * of that range, and archive detaches the partitions of old years. Needs
+ * PostgreSQL 11 or later.
+ *
+ * A primary key of a partitioned table must include the partition key, so
+ * the keys become (rid, date) and (wid, date) and Closed_Request can no
+ * longer reference Service_Request(rid). The shop enforces that reference
+ * itself: a request is only closed when it exists and was opened on or
+ * before the closing date. Rows outside the yearly partitions land in the
+ * default partitions until shop_ensure_partitions moves them out.
+ */
+
+-- Creates the partition of each year from first_year to last_year that is
+-- missing, and one for every year with rows in the default partition,
+-- moving those rows into it. Cheap when the default partition is empty.
+CREATE OR REPLACE FUNCTION shop_ensure_partitions(parent regclass, first_year INTEGER, last_year INTEGER) RETURNS void AS $$
+DECLARE
+	default_part TEXT := parent::text || '_default';
+	y INTEGER;
+	part TEXT;
+BEGIN
+	-- clients starting together create each partition once
+	PERFORM pg_advisory_xact_lock(hashtext(parent::text));
+	FOR y IN EXECUTE format(
+			'SELECT g FROM generate_series(%s, %s) g UNION SELECT DISTINCT extract(year FROM date)::integer FROM %I ORDER BY 1',
+			first_year, last_year, default_part)
+	LOOP
+		part := parent::text || '_' || y;
+		CONTINUE WHEN to_regclass(part) IS NOT NULL;
+		EXECUTE format('CREATE TABLE %I (LIKE %s INCLUDING DEFAULTS)', part, parent);
+		EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+			default_part, make_date(y, 1, 1), make_date(y + 1, 1, 1), part);
+		EXECUTE format('ALTER TABLE %s ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+			parent, part, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+	END LOOP;
+END
+$$ LANGUAGE plpgsql;
+
+DO $$
+DECLARE
+	first_year INTEGER;
+	last_year INTEGER;
+	this_year INTEGER := extract(year FROM current_date)::integer;
+BEGIN
+	-- the reference is enforced by the shop from now on
+	ALTER TABLE closed_request DROP CONSTRAINT IF EXISTS closed_request_rid_fkey;
+
+	/* Service requests */
+	IF (SELECT relkind FROM pg_class WHERE oid = 'service_request'::regclass) <> 'p' THEN
+		ALTER TABLE service_request RENAME TO service_request_unpartitioned;
+		ALTER INDEX IF EXISTS service_request_pkey RENAME TO service_request_unpartitioned_pkey;
+		CREATE TABLE service_request (LIKE service_request_unpartitioned INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+		ALTER TABLE service_request ADD CONSTRAINT service_request_pkey PRIMARY KEY (rid, date);
+		ALTER TABLE service_request ADD CONSTRAINT service_request_customer_id_fkey FOREIGN KEY (customer_id) REFERENCES customer(id);
+		ALTER TABLE service_request ADD CONSTRAINT service_request_car_vin_fkey FOREIGN KEY (car_vin) REFERENCES car(vin);
+		CREATE TABLE service_request_default PARTITION OF service_request DEFAULT;
+		SELECT extract(year FROM MIN(date)), extract(year FROM MAX(date)) INTO first_year, last_year FROM service_request_unpartitioned;
+		PERFORM shop_ensure_partitions('service_request', COALESCE(first_year, this_year), GREATEST(last_year, this_year + 1));
+		INSERT INTO service_request SELECT * FROM service_request_unpartitioned;
+		DROP TABLE service_request_unpartitioned;
+	END IF;
+
+	/* Closed requests */
+	IF (SELECT relkind FROM pg_class WHERE oid = 'closed_request'::regclass) <> 'p' THEN
+		ALTER TABLE closed_request RENAME TO closed_request_unpartitioned;
+		ALTER INDEX IF EXISTS closed_request_pkey RENAME TO closed_request_unpartitioned_pkey;
+		CREATE TABLE closed_request (LIKE closed_request_unpartitioned INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+		ALTER TABLE closed_request ADD CONSTRAINT closed_request_pkey PRIMARY KEY (wid, date);
+		ALTER TABLE closed_request ADD CONSTRAINT closed_request_mid_fkey FOREIGN KEY (mid) REFERENCES mechanic(id);
+		CREATE TABLE closed_request_default PARTITION OF closed_request DEFAULT;
+		SELECT extract(year FROM MIN(date)), extract(year FROM MAX(date)) INTO first_year, last_year FROM closed_request_unpartitioned;
+		PERFORM shop_ensure_partitions('closed_request', COALESCE(first_year, this_year), GREATEST(last_year, this_year + 1));
+		INSERT INTO closed_request SELECT * FROM closed_request_unpartitioned;
+		DROP TABLE closed_request_unpartitioned;
+	END IF;
+END
+$$;
+
+-- The supporting indexes of V2, now on every partition
+CREATE INDEX IF NOT EXISTS service_request_car_vin_idx ON service_request (car_vin);
+CREATE INDEX IF NOT EXISTS service_request_customer_id_idx ON service_request (customer_id);
+CREATE INDEX IF NOT EXISTS service_request_low_odometer_idx ON service_request (car_vin) WHERE odometer < 50000;
+CREATE INDEX IF NOT EXISTS closed_request_rid_bill_idx ON closed_request (rid, bill);
+CREATE INDEX IF NOT EXISTS closed_request_low_bill_idx ON closed_request (bill) WHERE bill < 100;
+
+ANALYZE service_request;
+ANALYZE closed_request;
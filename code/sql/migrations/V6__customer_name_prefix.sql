@@ -0,0 +1,17 @@
+/* CS166 Project Mechanic Database
+ * Name prefix index for the customer lookups that miss the directory
+ *
+ * Migration 6. Applied once by SchemaMigrator.
+ *
+ * The customer directory is held in memory by each process, so a customer
+ * added by another console, batch or serve is not in it. A lookup that
+ * finds nothing there searches the database with the same key as the
+ * directory: the trimmed, lowercased last name, a space and the first
+ * name, matched as a prefix. text_pattern_ops lets LIKE 'prefix%' use the
+ * index whatever the collation.
+ */
+
+CREATE INDEX IF NOT EXISTS customer_name_prefix_idx ON customer
+	((lower(trim(lname)) || ' ' || lower(trim(fname))) text_pattern_ops);
+
+ANALYZE customer;
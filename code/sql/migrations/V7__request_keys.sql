@@ -0,0 +1,84 @@
+/* CS166 Project Mechanic Database
+ * Registries of the request numbers, unique across the yearly partitions
+ *
+ * Migration 7. Applied once by SchemaMigrator. Fails, changing nothing,
+ * when a rid or wid is already used twice or a closed request names a
+ * request that does not exist; fix those rows and start again.
+ *
+ * Since migration 4 the primary keys of the request tables are (rid, date)
+ * and (wid, date), as a partitioned table must include its partition key,
+ * so the database no longer kept a rid or wid from appearing in two years,
+ * nor a closed request from naming a request that does not exist. Closing
+ * a request and adding its bill to the customer's total rely on one
+ * request per rid.
+ *
+ * Every rid and wid is now also kept, with its date, in a table that is
+ * not partitioned and is keyed by the number alone, and Closed_Request
+ * references the rid registry. Triggers keep the registries as requests
+ * are inserted, moved between years or deleted, at the cost of one more
+ * index entry per request. load sets shop.bulk_keys and registers the
+ * rows of a whole file in one statement instead, and archive removes the
+ * numbers of the partitions it drops.
+ */
+
+CREATE TABLE IF NOT EXISTS service_request_key (
+	rid INTEGER PRIMARY KEY,
+	date DATE NOT NULL
+);
+CREATE TABLE IF NOT EXISTS closed_request_key (
+	wid INTEGER PRIMARY KEY,
+	date DATE NOT NULL
+);
+
+-- a number used twice fails here on the primary key
+INSERT INTO service_request_key (rid, date)
+SELECT S.rid, S.date FROM service_request S
+WHERE NOT EXISTS (SELECT 1 FROM service_request_key K WHERE K.rid = S.rid AND K.date = S.date);
+INSERT INTO closed_request_key (wid, date)
+SELECT C.wid, C.date FROM closed_request C
+WHERE NOT EXISTS (SELECT 1 FROM closed_request_key K WHERE K.wid = C.wid AND K.date = C.date);
+
+CREATE OR REPLACE FUNCTION shop_service_request_key() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('shop.bulk_keys', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		DELETE FROM service_request_key WHERE rid = OLD.rid AND date = OLD.date;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO service_request_key (rid, date) VALUES (NEW.rid, NEW.date);
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION shop_closed_request_key() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('shop.bulk_keys', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		DELETE FROM closed_request_key WHERE wid = OLD.wid AND date = OLD.date;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO closed_request_key (wid, date) VALUES (NEW.wid, NEW.date);
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+-- a change of date that moves a row to another year fires the delete and insert triggers
+DROP TRIGGER IF EXISTS service_request_key ON service_request;
+CREATE TRIGGER service_request_key AFTER INSERT OR DELETE OR UPDATE OF rid, date ON service_request
+FOR EACH ROW EXECUTE PROCEDURE shop_service_request_key();
+DROP TRIGGER IF EXISTS closed_request_key ON closed_request;
+CREATE TRIGGER closed_request_key AFTER INSERT OR DELETE OR UPDATE OF wid, date ON closed_request
+FOR EACH ROW EXECUTE PROCEDURE shop_closed_request_key();
+
+-- the reference migration 4 had to drop, now to the registry
+ALTER TABLE closed_request DROP CONSTRAINT IF EXISTS closed_request_rid_fkey;
+ALTER TABLE closed_request ADD CONSTRAINT closed_request_rid_fkey FOREIGN KEY (rid) REFERENCES service_request_key (rid);
+
+ANALYZE service_request_key;
+ANALYZE closed_request_key;
@@ -0,0 +1,41 @@
+/* CS166 Project Mechanic Database
+ * Moving requests out of the default partitions keeps their registry rows
+ *
+ * Migration 8. Applied once by SchemaMigrator.
+ *
+ * shop_ensure_partitions of migration 4 moves the rows of a new year out of
+ * the default partition with a DELETE from it and an INSERT into the new
+ * table before that table is attached. Since migration 7 the DELETE fires
+ * the registry triggers and removes the numbers of the moved rows, while
+ * the INSERT and the ATTACH fire none, so nothing registered them again:
+ * a moved request with a closed request failed closed_request_rid_fkey,
+ * and one without lost its registry row. A move keeps every number and
+ * date, so the registries are now left alone while rows are moved.
+ */
+
+CREATE OR REPLACE FUNCTION shop_ensure_partitions(parent regclass, first_year INTEGER, last_year INTEGER) RETURNS void AS $$
+DECLARE
+	default_part TEXT := parent::text || '_default';
+	bulk_keys TEXT := COALESCE(current_setting('shop.bulk_keys', true), '');
+	y INTEGER;
+	part TEXT;
+BEGIN
+	-- clients starting together create each partition once
+	PERFORM pg_advisory_xact_lock(hashtext(parent::text));
+	FOR y IN EXECUTE format(
+			'SELECT g FROM generate_series(%s, %s) g UNION SELECT DISTINCT extract(year FROM date)::integer FROM %I ORDER BY 1',
+			first_year, last_year, default_part)
+	LOOP
+		part := parent::text || '_' || y;
+		CONTINUE WHEN to_regclass(part) IS NOT NULL;
+		EXECUTE format('CREATE TABLE %I (LIKE %s INCLUDING DEFAULTS)', part, parent);
+		-- the moved rows keep their numbers and dates, so their registry rows stay
+		PERFORM set_config('shop.bulk_keys', 'on', true);
+		EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+			default_part, make_date(y, 1, 1), make_date(y + 1, 1, 1), part);
+		PERFORM set_config('shop.bulk_keys', bulk_keys, true);
+		EXECUTE format('ALTER TABLE %s ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+			parent, part, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+	END LOOP;
+END
+$$ LANGUAGE plpgsql;
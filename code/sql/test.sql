@@ -37,3 +37,34 @@ WHERE S.rid > 30000;
 SELECT *
 FROM Closed_Request C
 WHERE C.wid > 30000;
+
+-- Move requests of a year without a partition out of the default partition
+-- Expect service_request_2999 and closed_request_2999, then no rows
+BEGIN;
+INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain)
+SELECT nextval('serv_rid_seq'), S.customer_id, S.car_vin, '2999-06-01', S.odometer, 'partition move test'
+FROM (SELECT * FROM Service_Request ORDER BY rid LIMIT 2) S;
+INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill)
+SELECT nextval('clos_wid_seq'), MIN(S.rid), (SELECT MIN(id) FROM Mechanic), '2999-06-02', 'partition move test', 100
+FROM Service_Request S
+WHERE S.complain = 'partition move test';
+CREATE TEMP TABLE keys_before ON COMMIT DROP AS
+SELECT 'S' AS kind, rid AS id, date FROM service_request_key
+UNION ALL
+SELECT 'C', wid, date FROM closed_request_key;
+SELECT shop_ensure_partitions('service_request', 2999, 2999), shop_ensure_partitions('closed_request', 2999, 2999);
+SELECT DISTINCT tableoid::regclass
+FROM Service_Request
+WHERE complain = 'partition move test'
+UNION ALL
+SELECT DISTINCT tableoid::regclass
+FROM Closed_Request
+WHERE comment = 'partition move test';
+(SELECT * FROM keys_before
+ EXCEPT ALL
+ (SELECT 'S', rid, date FROM service_request_key UNION ALL SELECT 'C', wid, date FROM closed_request_key))
+UNION ALL
+((SELECT 'S', rid, date FROM service_request_key UNION ALL SELECT 'C', wid, date FROM closed_request_key)
+ EXCEPT ALL
+ SELECT * FROM keys_before);
+ROLLBACK;